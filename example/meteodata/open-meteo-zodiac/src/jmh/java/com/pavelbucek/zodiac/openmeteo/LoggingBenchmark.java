@@ -0,0 +1,115 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Config;
+import io.micronaut.http.simple.SimpleHttpHeaders;
+import io.opentelemetry.sdk.resources.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.NOPLogger;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * DEBUG message logged by a tenant configured with INFO log level, while SLF4J debug is off.
+ * <p>
+ * {@link #eager()} is what the former {@code MeteoZodiacFunction.log} did before checking anything (building the
+ * content map and the SLF4J format), {@link #disabled()} and {@link #disabledNoContent()} go through
+ * {@link MeteoLogger}, which is expected to allocate nothing ({@code gc.alloc.rate.norm} close to 0).
+ * <p>
+ * {@link #level(LevelState)} logs a message with content at each level for the same tenant - ERROR, WARN and INFO are
+ * recorded to the log buffer (the buffer stays full and drops the oldest records, nothing is exported), DEBUG and
+ * TRACE are dropped by the level check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggingBenchmark {
+
+    private MeteoLogger logger;
+    private MeteoContext context;
+
+    private String body;
+    private int count;
+
+    @Setup
+    public void setup() {
+        logger = new MeteoLogger(NOPLogger.NOP_LOGGER);
+
+        context = new MeteoContext(new SimpleHttpHeaders(Map.of(), null));
+        context.setConfig(new Config("meteodata", "INFO"));
+        var buffer = new LogRecordBuffer(16, LogRecordBuffer.OverflowPolicy.DROP_OLDEST, 0, 0);
+        context.setLogExporter(new BackgroundLogExporter(logs -> Mono.empty(), dropped -> {
+        }, buffer, Resource.empty(), Duration.ZERO, Schedulers.immediate()));
+
+        body = "{\"total\": 1, \"items\": []}";
+        count = 1000;
+    }
+
+    @Benchmark
+    public Object eager() {
+        Map<String, Object> content = Map.of("body", body, "count", count);
+        return content.entrySet().stream()
+                .map(entry -> Tuples.of(entry.getKey() + ": {}", List.of(entry.getValue())))
+                .reduce((t1, t2) ->
+                        Tuples.of(
+                                t1.getT1() + ", " + t2.getT1(),
+                                Stream.concat(t1.getT2().stream(), t2.getT2().stream()).toList()))
+                .orElseThrow();
+    }
+
+    @Benchmark
+    public void disabled() {
+        logger.log(context, Level.DEBUG, "locations response body", () -> Map.of("body", body, "count", count), null);
+    }
+
+    @Benchmark
+    public void disabledNoContent() {
+        logger.log(context, Level.DEBUG, "fetchLocations", null);
+    }
+
+    @Benchmark
+    public void level(LevelState state) {
+        logger.log(state.context, state.level, "received open meteo data",
+                () -> Map.of("locations.count", count), null);
+    }
+
+    @State(Scope.Benchmark)
+    public static class LevelState {
+
+        @Param({"ERROR", "WARN", "INFO", "DEBUG", "TRACE"})
+        public Level level;
+
+        private MeteoContext context;
+
+        @Setup
+        public void setup() {
+            context = new MeteoContext(new SimpleHttpHeaders(Map.of(), null));
+            context.setConfig(new Config("meteodata", "INFO"));
+            var buffer = new LogRecordBuffer(1024, LogRecordBuffer.OverflowPolicy.DROP_OLDEST, 0, 0);
+            // scheduled flush never runs, records stay in the buffer
+            context.setLogExporter(new BackgroundLogExporter(logs -> Mono.empty(), dropped -> {
+            }, buffer, Resource.empty(), Duration.ZERO, Schedulers.fromExecutor(task -> {
+            })));
+        }
+    }
+}
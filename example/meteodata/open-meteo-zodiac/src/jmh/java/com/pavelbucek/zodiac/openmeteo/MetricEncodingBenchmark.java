@@ -0,0 +1,117 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+import io.netty.buffer.ByteBufAllocator;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.exporter.internal.otlp.metrics.MetricsRequestMarshaler;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.data.MetricDataType;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableDoublePointData;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableGaugeData;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableLongPointData;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableMetricData;
+import io.opentelemetry.sdk.resources.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a window of locations to the OTLP request, as written to the exporter.
+ * <p>
+ * {@link #sdkMarshaler()} is the former path (OTEL {@code MetricData} per gauge, serialized by the SDK marshaler),
+ * {@link #directEncoder()} is {@link OtlpMetricsEncoder}. Both produce the same bytes. Run with the GC profiler
+ * ({@code ./gradlew jmh}) to compare allocations per window ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricEncodingBenchmark {
+
+    private static final InstrumentationScopeInfo SCOPE = InstrumentationScopeInfo.create("meteodata");
+
+    @Param({"1", "100", "1000"})
+    public int locations;
+
+    private List<TrackedLocation> trackedLocations;
+    private List<WeatherBatch.Row> weather;
+
+    @Setup
+    public void setup() throws IOException {
+        var batch = new WeatherBatchDecoder().decode(WeatherDecodingBenchmark.response(locations), locations);
+
+        trackedLocations = new ArrayList<>(locations);
+        weather = new ArrayList<>(locations);
+        for (int i = 0; i < batch.size(); i++) {
+            trackedLocations.add(new TrackedLocation(
+                    new Location("location-" + i, batch.latitude(i), batch.longitude(i))));
+            weather.add(batch.row(i));
+        }
+    }
+
+    @Benchmark
+    public int directEncoder() throws IOException {
+        var encoded = OtlpMetricsEncoder.encode(ByteBufAllocator.DEFAULT, trackedLocations, weather,
+                WeatherVariables.ALL);
+        try {
+            encoded.writeBinaryTo(OutputStream.nullOutputStream());
+            return encoded.getBinarySerializedSize();
+        } finally {
+            encoded.release();
+        }
+    }
+
+    @Benchmark
+    public int sdkMarshaler() throws IOException {
+        var metricData = new ArrayList<MetricData>(locations * WeatherMetric.ALL.size());
+        for (int i = 0; i < trackedLocations.size(); i++) {
+            var location = trackedLocations.get(i).getLocation();
+            var row = weather.get(i);
+            var resource = Resource.create(Attributes.builder()
+                    .put("location.elevation", row.elevation())
+                    .put("location.latitude", location.getLatitude())
+                    .put("location.longitude", location.getLongitude())
+                    .put("location.name", location.getName())
+                    .put("telemetry.sdk.name", "SOLUTION_PREFIX")
+                    .build());
+            addGauges(resource, row, metricData);
+        }
+
+        var marshaler = MetricsRequestMarshaler.create(metricData);
+        marshaler.writeBinaryTo(OutputStream.nullOutputStream());
+        return marshaler.getBinarySerializedSize();
+    }
+
+    private static void addGauges(Resource resource, WeatherBatch.Row row, List<MetricData> metricData) {
+        var epochNanos = row.epochNanos();
+        var startEpochNanos = epochNanos - (60 * 1_000_000_000L);
+        for (var metric : WeatherMetric.ALL) {
+            if (metric.getType() == MetricDataType.LONG_GAUGE) {
+                metricData.add(ImmutableMetricData.createLongGauge(resource, SCOPE, metric.getName(), "",
+                        metric.getUnit(), ImmutableGaugeData.create(List.of(ImmutableLongPointData.create(
+                                startEpochNanos, epochNanos, Attributes.empty(), (long) row.value(metric))))));
+            } else {
+                metricData.add(ImmutableMetricData.createDoubleGauge(resource, SCOPE, metric.getName(), "",
+                        metric.getUnit(), ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
+                                startEpochNanos, epochNanos, Attributes.empty(), row.value(metric))))));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the URI of an Open Meteo batch request
+ * ({@link MeteoZodiacFunction#openMeteoUri(String, List, WeatherVariables)}), for batch sizes from a single location
+ * up to the maximum configured {@code meteo-zodiac.open-meteo.batch-size}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenMeteoRequestBenchmark {
+
+    static final String URL = "https://api.open-meteo.com/v1/forecast";
+
+    @Param({"1", "10", "100"})
+    public int locations;
+
+    private List<TrackedLocation> trackedLocations;
+
+    @Setup
+    public void setup() {
+        trackedLocations = locations(locations);
+    }
+
+    @Benchmark
+    public URI openMeteoUri() {
+        return MeteoZodiacFunction.openMeteoUri(URL, trackedLocations, WeatherVariables.ALL);
+    }
+
+    /**
+     * Locations as users create them - four decimal places (~10 m), spread over the inhabited latitudes.
+     *
+     * @param count number of locations.
+     * @return locations, the same for the same count.
+     */
+    static List<TrackedLocation> locations(int count) {
+        var random = new Random(42);
+        var result = new ArrayList<TrackedLocation>(count);
+        for (int i = 0; i < count; i++) {
+            var latitude = Math.round((random.nextDouble() * 120.0 - 55.0) * 10_000) / 10_000.0;
+            var longitude = Math.round((random.nextDouble() * 360.0 - 180.0) * 10_000) / 10_000.0;
+            result.add(new TrackedLocation(new Location("location-" + i, latitude, longitude)));
+        }
+        return result;
+    }
+}
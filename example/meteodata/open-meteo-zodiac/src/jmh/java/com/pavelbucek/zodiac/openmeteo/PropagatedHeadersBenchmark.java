@@ -0,0 +1,67 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.MutableHttpHeaders;
+import io.micronaut.http.simple.SimpleHttpHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying headers of the Zodiac trigger to a request to a platform service
+ * ({@link MeteoZodiacFunction#addPropagatedHeaders(MutableHttpHeaders, HttpHeaders)}), done for every config,
+ * location page and export request.
+ * <p>
+ * Trigger headers are those of a cron trigger - tenant and tracing headers to be propagated, mixed with headers added
+ * by the ingress which are not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropagatedHeadersBenchmark {
+
+    private HttpHeaders triggerHeaders;
+
+    @Setup
+    public void setup() {
+        var headers = new LinkedHashMap<String, String>();
+        headers.put("Host", "open-meteo-zodiac.default.svc.cluster.local");
+        headers.put("User-Agent", "zodiac-cron/1.0");
+        headers.put("Content-Length", "0");
+        headers.put("Accept", "*/*");
+        headers.put("Accept-Encoding", "gzip");
+        headers.put("appd-cpty", "solution");
+        headers.put("appd-cpid", "meteodata");
+        headers.put("layer-type", "TENANT");
+        headers.put("layer-id", "0f3a9c7e-2b64-4d1f-9e8a-5c7d2e1b4a60");
+        headers.put("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+        headers.put("x-b3-parentspanid", "05e3ac9a4f6e3b90");
+        headers.put("x-b3-spanid", "e457b5a2e4d86bd1");
+        headers.put("x-b3-traceid", "4bf92f3577b34da6a3ce929d0e0e4736");
+        headers.put("x-request-id", "5d2c6a1e-8f3b-4c7a-b9e0-1a2b3c4d5e6f");
+        headers.put("x-forwarded-for", "10.42.0.17");
+        headers.put("x-forwarded-proto", "https");
+        headers.put("x-envoy-attempt-count", "1");
+        triggerHeaders = new SimpleHttpHeaders(headers, null);
+    }
+
+    @Benchmark
+    public MutableHttpHeaders addPropagatedHeaders() {
+        var requestHeaders = new SimpleHttpHeaders(null);
+        MeteoZodiacFunction.addPropagatedHeaders(requestHeaders, triggerHeaders);
+        return requestHeaders;
+    }
+}
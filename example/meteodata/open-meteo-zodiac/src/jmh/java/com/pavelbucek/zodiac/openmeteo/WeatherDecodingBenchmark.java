@@ -0,0 +1,90 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.OpenMeteoResponse;
+import io.micronaut.core.type.Argument;
+import io.micronaut.json.JsonMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of Open Meteo batch responses.
+ * <p>
+ * {@link #serde()} decodes the response to {@link OpenMeteoResponse} objects (the former HTTP client path),
+ * {@link #columnar()} uses the streaming {@link WeatherBatchDecoder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeatherDecodingBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int locations;
+
+    private JsonMapper jsonMapper;
+    private byte[] content;
+
+    @Setup
+    public void setup() {
+        jsonMapper = JsonMapper.createDefault();
+        content = response(locations);
+    }
+
+    @Benchmark
+    public List<OpenMeteoResponse> serde() throws IOException {
+        return jsonMapper.readValue(content, Argument.listOf(OpenMeteoResponse.class));
+    }
+
+    @Benchmark
+    public WeatherBatch columnar() throws IOException {
+        return new WeatherBatchDecoder().decode(content, locations);
+    }
+
+    /**
+     * Response in the format returned by Open Meteo for a batch request.
+     *
+     * @param locations number of locations.
+     * @return raw response body.
+     */
+    static byte[] response(int locations) {
+        var sb = new StringBuilder("[");
+        for (int i = 0; i < locations; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(String.format(Locale.ROOT, """
+                    {"latitude":%.2f,"longitude":%.2f,"generationtime_ms":0.05,"utc_offset_seconds":0,\
+                    "timezone":"GMT","timezone_abbreviation":"GMT","elevation":%.1f,\
+                    "current_units":{"time":"iso8601","interval":"seconds","temperature_2m":"°C",\
+                    "relative_humidity_2m":"%%","apparent_temperature":"°C","is_day":"","precipitation":"mm",\
+                    "rain":"mm","showers":"mm","snowfall":"cm","weather_code":"wmo code","cloud_cover":"%%",\
+                    "pressure_msl":"hPa","surface_pressure":"hPa","wind_speed_10m":"km/h",\
+                    "wind_direction_10m":"°","wind_gusts_10m":"km/h"},\
+                    "current":{"time":"2024-01-01T12:00","interval":900,"temperature_2m":%.1f,\
+                    "relative_humidity_2m":%d,"apparent_temperature":%.1f,"is_day":1,"precipitation":0.2,\
+                    "rain":0.2,"showers":0.0,"snowfall":0.0,"weather_code":61,"cloud_cover":100,\
+                    "pressure_msl":1012.3,"surface_pressure":984.1,"wind_speed_10m":11.2,\
+                    "wind_direction_10m":240,"wind_gusts_10m":24.5}}""",
+                    -60.0 + (i % 120), -180.0 + (i % 360), 100.0 + i % 1000, (i % 40) - 10.0, i % 100,
+                    (i % 40) - 12.0));
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
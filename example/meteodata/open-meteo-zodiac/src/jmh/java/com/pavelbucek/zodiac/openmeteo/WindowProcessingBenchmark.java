@@ -0,0 +1,80 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.netty.buffer.ByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU side of processing one window of locations, without the network: building the Open Meteo request, decoding its
+ * response, encoding the OTLP request and writing it out.
+ * <p>
+ * Sum of the stages benchmarked separately by {@link OpenMeteoRequestBenchmark}, {@link WeatherDecodingBenchmark} and
+ * {@link MetricEncodingBenchmark}; it shows the per location cost of a run (divide by {@code locations}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowProcessingBenchmark {
+
+    // meteo-zodiac.open-meteo.batch-size
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"1", "100", "1000"})
+    public int locations;
+
+    private List<TrackedLocation> trackedLocations;
+    private List<byte[]> responses;
+
+    @Setup
+    public void setup() {
+        trackedLocations = OpenMeteoRequestBenchmark.locations(locations);
+        responses = new ArrayList<>();
+        for (int i = 0; i < locations; i += BATCH_SIZE) {
+            responses.add(WeatherDecodingBenchmark.response(Math.min(BATCH_SIZE, locations - i)));
+        }
+    }
+
+    @Benchmark
+    public int processWindow(Blackhole blackhole) throws IOException {
+        var weather = new ArrayList<WeatherBatch.Row>(locations);
+        for (int batch = 0; batch < responses.size(); batch++) {
+            var from = batch * BATCH_SIZE;
+            var batchLocations = trackedLocations.subList(from, Math.min(from + BATCH_SIZE, locations));
+
+            blackhole.consume(MeteoZodiacFunction.openMeteoUri(OpenMeteoRequestBenchmark.URL, batchLocations,
+                    WeatherVariables.ALL));
+            var decoded = new WeatherBatchDecoder().decode(responses.get(batch), batchLocations.size());
+            for (int i = 0; i < decoded.size(); i++) {
+                weather.add(decoded.row(i));
+            }
+        }
+
+        var encoded = OtlpMetricsEncoder.encode(ByteBufAllocator.DEFAULT, trackedLocations, weather,
+                WeatherVariables.ALL);
+        try {
+            encoded.writeBinaryTo(OutputStream.nullOutputStream());
+            return encoded.getBinarySerializedSize();
+        } finally {
+            encoded.release();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.pavelbucek.zodiac.openmeteo.loadtest;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stub of the OTLP gRPC collector ({@code meteo-zodiac.cis-url}).
+ * <p>
+ * HTTP/2 cleartext server (the OTLP exporters connect with prior knowledge) which reads the whole request and responds
+ * with an empty {@code Export*ServiceResponse}, or with gRPC status {@code UNAVAILABLE} for failed requests. Requests
+ * are not decoded, only counted by the service (metrics or logs).
+ */
+final class CollectorStub implements AutoCloseable {
+
+    // gRPC message frame: not compressed, zero length (empty response message)
+    private static final byte[] EMPTY_MESSAGE = new byte[5];
+
+    private final StubBehavior behavior;
+    private final EventLoopGroup group = new NioEventLoopGroup(2);
+    private final Channel channel;
+
+    private final LongAdder metricRequests = new LongAdder();
+    private final LongAdder logRequests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    CollectorStub(StubBehavior behavior) throws InterruptedException {
+        this.behavior = behavior;
+        this.channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(
+                                Http2FrameCodecBuilder.forServer().build(),
+                                new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                                    @Override
+                                    protected void initChannel(Http2StreamChannel stream) {
+                                        stream.pipeline().addLast(new ExportHandler());
+                                    }
+                                }));
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    /**
+     * @return endpoint in the {@code host:port} form, as expected by {@code meteo-zodiac.cis-url}.
+     */
+    String endpoint() {
+        return "127.0.0.1:" + ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    String stats() {
+        return "metric exports: " + metricRequests.sum() + ", log exports: " + logRequests.sum()
+                + ", errors: " + errors.sum() + ", request bytes: " + bytes.sum();
+    }
+
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    /**
+     * Handler of a single HTTP/2 stream, i.e. single export request.
+     */
+    private final class ExportHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                var endStream = false;
+                if (msg instanceof Http2HeadersFrame headers) {
+                    var path = String.valueOf(headers.headers().path());
+                    if (path.contains("LogsService")) {
+                        logRequests.increment();
+                    } else {
+                        metricRequests.increment();
+                    }
+                    endStream = headers.isEndStream();
+                } else if (msg instanceof Http2DataFrame data) {
+                    bytes.add(data.content().readableBytes());
+                    endStream = data.isEndStream();
+                }
+
+                if (endStream) {
+                    var fail = behavior.fail();
+                    if (behavior.latency().isZero()) {
+                        respond(ctx, fail);
+                    } else {
+                        ctx.executor().schedule(() -> respond(ctx, fail), behavior.latency().toNanos(),
+                                TimeUnit.NANOSECONDS);
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private void respond(ChannelHandlerContext ctx, boolean fail) {
+            Http2Headers headers = new DefaultHttp2Headers()
+                    .status("200")
+                    .set("content-type", "application/grpc");
+            if (fail) {
+                errors.increment();
+                // trailers-only response
+                headers.set("grpc-status", "14").set("grpc-message", "stub failure");
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true));
+                return;
+            }
+            ctx.write(new DefaultHttp2HeadersFrame(headers, false));
+            ctx.write(new DefaultHttp2DataFrame(Unpooled.wrappedBuffer(EMPTY_MESSAGE), false));
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().set("grpc-status", "0"), true));
+        }
+    }
+}
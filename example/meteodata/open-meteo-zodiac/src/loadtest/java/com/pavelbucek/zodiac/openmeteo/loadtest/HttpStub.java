@@ -0,0 +1,108 @@
+package com.pavelbucek.zodiac.openmeteo.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Base of the HTTP stubs, JDK HTTP server on a random local port; each request is handled by its own virtual thread,
+ * so the configured latency doesn't limit the throughput of the stub.
+ */
+abstract class HttpStub implements AutoCloseable {
+
+    protected final StubBehavior behavior;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    HttpStub(StubBehavior behavior) throws IOException {
+        this.behavior = behavior;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                requests.increment();
+                behavior.sleep();
+                if (behavior.fail()) {
+                    errors.increment();
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                handle(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Respond to a request, latency and errors were already applied.
+     */
+    protected abstract void handle(HttpExchange exchange) throws IOException;
+
+    protected void respond(HttpExchange exchange, String etag, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        bytes.add(body.length);
+    }
+
+    protected void respondNotModified(HttpExchange exchange, String etag) throws IOException {
+        notModified.increment();
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(304, -1);
+    }
+
+    protected static Map<String, String> query(HttpExchange exchange) {
+        var query = new HashMap<String, String>();
+        var raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (var param : raw.split("&")) {
+                var separator = param.indexOf('=');
+                if (separator > 0) {
+                    query.put(URLDecoder.decode(param.substring(0, separator), StandardCharsets.UTF_8),
+                            URLDecoder.decode(param.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    protected static String padding(int length) {
+        return "x".repeat(length);
+    }
+
+    /**
+     * @return base URL of the stub, ending with a slash.
+     */
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    String stats() {
+        return "requests: " + requests.sum() + ", errors: " + errors.sum() + ", not modified: " + notModified.sum()
+                + ", response bytes: " + bytes.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,93 @@
+package com.pavelbucek.zodiac.openmeteo.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Stub of the Knowledge store ({@code meteo-zodiac.json-store-url}).
+ * <p>
+ * Every tenant ({@code layer-id}) has the same config and its own {@code meteodata:meteoLocation} objects, which are
+ * the same for every run; both are returned with an ETag, conditional requests are answered by 304, as the real store
+ * does for unchanged objects.
+ */
+final class JsonStoreStub extends HttpStub {
+
+    private final int locations;
+    private final String logLevel;
+    private final String variables;
+
+    /**
+     * @param behavior  latency, errors and padding of each location.
+     * @param locations number of locations of each tenant.
+     * @param logLevel  log level in the config of all tenants, e.g. {@code OFF}.
+     * @param variables comma separated weather variables in the config of all tenants, empty for all variables.
+     */
+    JsonStoreStub(StubBehavior behavior, int locations, String logLevel, String variables) throws IOException {
+        super(behavior);
+        this.locations = locations;
+        this.logLevel = logLevel;
+        this.variables = variables;
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        var path = exchange.getRequestURI().getPath();
+        var tenant = exchange.getRequestHeaders().getFirst("layer-id");
+        var ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+
+        if (path.endsWith("/meteodata:meteoConfig/meteodata:config")) {
+            var etag = "\"config-1\"";
+            if (etag.equals(ifNoneMatch)) {
+                respondNotModified(exchange, etag);
+                return;
+            }
+            // the config must always have a log level, it's required by the function
+            var selection = variables.isBlank() ? ""
+                    : ",\"variables\":[\"" + String.join("\",\"", variables.split(",")) + "\"]";
+            respond(exchange, etag, ("{\"data\":{\"name\":\"config\",\"logLevel\":\"" + logLevel + "\"" + selection
+                    + "}}").getBytes(StandardCharsets.UTF_8));
+        } else if (path.endsWith("/meteodata:meteoLocation")) {
+            var query = query(exchange);
+            var max = Integer.parseInt(query.getOrDefault("max", "100"));
+            var cursor = Integer.parseInt(query.getOrDefault("cursor", "0"));
+
+            var etag = "\"" + tenant + "-" + cursor + "-" + max + "\"";
+            if (etag.equals(ifNoneMatch)) {
+                respondNotModified(exchange, etag);
+                return;
+            }
+            respond(exchange, etag, locationPage(tenant, cursor, max));
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    private byte[] locationPage(String tenant, int cursor, int max) {
+        var end = Math.min(locations, cursor + max);
+        var tenantHash = tenant != null ? tenant.hashCode() : 0;
+        var padding = behavior.padding() > 0 ? ",\"description\":\"" + padding(behavior.padding()) + "\"" : "";
+
+        var sb = new StringBuilder(128 * (end - cursor) + 128).append("{\"total\":").append(locations)
+                .append(",\"items\":[");
+        for (int i = cursor; i < end; i++) {
+            if (i > cursor) {
+                sb.append(',');
+            }
+            // different tenants have different locations, spread over the inhabited latitudes
+            var seed = 31L * tenantHash + i;
+            var latitude = Math.floorMod(seed * 7919, 1_200_000) / 10_000.0 - 55.0;
+            var longitude = Math.floorMod(seed * 104_729, 3_600_000) / 10_000.0 - 180.0;
+            sb.append(String.format(Locale.ROOT, "{\"data\":{\"name\":\"%s-location-%d\",\"latitude\":%.4f,"
+                    + "\"longitude\":%.4f%s}}", tenant, i, latitude, longitude, padding));
+        }
+        sb.append("],\"_links\":{");
+        if (end < locations) {
+            sb.append("\"next\":{\"href\":\"/v1/objects/meteodata:meteoLocation?cursor=").append(end)
+                    .append("&max=").append(max).append("\"}");
+        }
+        return sb.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,362 @@
+package com.pavelbucek.zodiac.openmeteo.loadtest;
+
+import com.pavelbucek.zodiac.openmeteo.Application;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.runtime.Micronaut;
+import io.micronaut.runtime.server.EmbeddedServer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load harness of the function - runs it in this JVM against in-process stubs of all its dependencies (Knowledge
+ * store, Open Meteo and OTLP collector) and fires concurrent {@code POST /} triggers for synthetic tenants, the way
+ * the Zodiac cron does at the top of the quarter hour.
+ * <p>
+ * Each of {@code loadtest.concurrency} clients sends a trigger for the next tenant as soon as its previous trigger
+ * completes (closed loop). After {@code loadtest.warmup}, triggers are measured for {@code loadtest.duration}; the
+ * report contains triggers per second, end-to-end latency percentiles, heap usage, allocation rate and GC activity,
+ * and the requests seen by the stubs.
+ * <p>
+ * Run by {@code ./gradlew loadTest}, parameters are system properties:
+ * <ul>
+ *     <li>{@code loadtest.tenants} - number of synthetic tenants (100)</li>
+ *     <li>{@code loadtest.locations} - number of locations of each tenant (100)</li>
+ *     <li>{@code loadtest.concurrency} - number of concurrent triggers (16)</li>
+ *     <li>{@code loadtest.warmup}, {@code loadtest.duration} - (10s, 60s)</li>
+ *     <li>{@code loadtest.log-level} - log level of the tenant config, {@code off} turns logging off (INFO)</li>
+ *     <li>{@code loadtest.variables} - comma separated weather variables selected by the tenant config (all)</li>
+ *     <li>{@code loadtest.execution-modes} - comma separated {@code meteo-zodiac.execution.mode}s, the load is run
+ *     for each of them and the results are compared (e.g. {@code event-loop,bounded-elastic,virtual-thread})</li>
+ *     <li>{@code loadtest.json-store.*}, {@code loadtest.open-meteo.*}, {@code loadtest.collector.*} - behavior of
+ *     the stubs: {@code latency} (20ms, 80ms, 10ms), {@code error-rate} (0) and {@code padding} (0), see
+ *     {@link StubBehavior}</li>
+ *     <li>{@code loadtest.open-meteo.clock-speed} - how many times faster than the real clock the time reported by the
+ *     Open Meteo stub runs (1), e.g. {@code 3600} makes every run of a tenant backfill about an hour per second since
+ *     its previous run (with {@code -Dmeteo-zodiac.weather-cache.max-size=0}, cached weather doesn't move)</li>
+ * </ul>
+ * Any other {@code meteo-zodiac.*} system property is passed to the function, e.g.
+ * {@code -Dmeteo-zodiac.open-meteo.concurrency=8}.
+ * <p>
+ * Heap and allocation rate are of the whole JVM, including the stubs and the load clients.
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var modes = System.getProperty("loadtest.execution-modes");
+        if (modes == null) {
+            run(args, null);
+            return;
+        }
+
+        // the same load for each execution mode, every mode with a fresh application and stubs
+        var results = new ArrayList<Result>();
+        for (var mode : modes.split(",")) {
+            results.add(run(args, mode.trim()));
+        }
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-16s %10s %8s %10s %10s %12s %12s%n",
+                "mode", "triggers/s", "errors", "p50 ms", "p99 ms", "alloc MB/s", "max heap MB");
+        results.forEach(result -> System.out.printf(Locale.ROOT, "%-16s %10.1f %8d %10.1f %10.1f %12.1f %12.1f%n",
+                result.label(), result.triggersPerSecond(), result.errors(), result.p50(), result.p99(),
+                result.allocationRate(), result.maxHeapUsed()));
+    }
+
+    /**
+     * Start stubs and the application and put it under load.
+     *
+     * @param args          arguments of the application.
+     * @param executionMode {@code meteo-zodiac.execution.mode} of the application, {@code null} for the configured
+     *                      one.
+     * @return result of the measurement.
+     */
+    private static Result run(String[] args, String executionMode) throws Exception {
+        var tenants = Integer.getInteger("loadtest.tenants", 100);
+        var locations = Integer.getInteger("loadtest.locations", 100);
+        var concurrency = Integer.getInteger("loadtest.concurrency", 16);
+        var warmup = StubBehavior.duration("loadtest.warmup", "10s");
+        var duration = StubBehavior.duration("loadtest.duration", "60s");
+        var logLevel = System.getProperty("loadtest.log-level", "INFO");
+        var variables = System.getProperty("loadtest.variables", "");
+
+        var jsonStoreBehavior = StubBehavior.of("json-store", "20ms");
+        var openMeteoBehavior = StubBehavior.of("open-meteo", "80ms");
+        var collectorBehavior = StubBehavior.of("collector", "10ms");
+
+        try (var jsonStore = new JsonStoreStub(jsonStoreBehavior, locations, logLevel, variables);
+             var openMeteo = new OpenMeteoStub(openMeteoBehavior,
+                     Double.parseDouble(System.getProperty("loadtest.open-meteo.clock-speed", "1")));
+             var collector = new CollectorStub(collectorBehavior)) {
+
+            var properties = new HashMap<String, Object>();
+            properties.put("micronaut.server.port", -1);
+            properties.put("meteo-zodiac.json-store-url", jsonStore.url());
+            properties.put("meteo-zodiac.open-meteo.url", openMeteo.url() + "v1/forecast");
+            properties.put("meteo-zodiac.cis-url", collector.endpoint());
+            properties.put("meteo-zodiac.metrics-url", collector.endpoint());
+            // every run starts with an empty spool and export history
+            properties.put("meteo-zodiac.spool.directory",
+                    Files.createTempDirectory("meteo-zodiac-spool").toString());
+            properties.put("meteo-zodiac.backfill.directory",
+                    Files.createTempDirectory("meteo-zodiac-backfill").toString());
+            System.getProperties().stringPropertyNames().stream()
+                    .filter(name -> name.startsWith("meteo-zodiac."))
+                    .forEach(name -> properties.put(name, System.getProperty(name)));
+            if (executionMode != null) {
+                properties.put("meteo-zodiac.execution.mode", executionMode);
+            }
+
+            try (ApplicationContext context = Micronaut.build(args)
+                    .mainClass(Application.class)
+                    .properties(properties)
+                    .start()) {
+
+                var uri = context.getBean(EmbeddedServer.class).getURI();
+                var label = context.getProperty("meteo-zodiac.execution.mode", String.class).orElse("default");
+
+                System.out.printf(Locale.ROOT, "%nexecution mode: %s, tenants: %d, locations per tenant: %d, "
+                                + "concurrency: %d, warmup: %ds, duration: %ds, tenant log level: %s%n",
+                        label, tenants, locations, concurrency, warmup.toSeconds(), duration.toSeconds(), logLevel);
+                System.out.println("json store: " + jsonStoreBehavior);
+                System.out.println("open meteo: " + openMeteoBehavior);
+                System.out.println("collector:  " + collectorBehavior);
+
+                var result = load(label, uri, tenants, concurrency, warmup, duration);
+
+                System.out.println();
+                System.out.println(result.report());
+                System.out.println("json store: " + jsonStore.stats());
+                System.out.println("open meteo: " + openMeteo.stats());
+                System.out.println("collector:  " + collector.stats());
+                System.out.println("spool:      " + spoolStats(uri));
+                return result;
+            }
+        }
+    }
+
+    private static Result load(String label, URI uri, int tenants, int concurrency, Duration warmup,
+                               Duration duration) throws InterruptedException {
+        var client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+
+        var startNanos = System.nanoTime();
+        var measureFromNanos = startNanos + warmup.toNanos();
+        var endNanos = measureFromNanos + duration.toNanos();
+
+        var nextTenant = new AtomicLong();
+        var errors = new LongAdder();
+        var recorders = new ArrayList<LatencyRecorder>();
+        var sampler = new ResourceSampler();
+
+        var clients = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            var recorder = new LatencyRecorder();
+            recorders.add(recorder);
+            clients.execute(() -> {
+                while (System.nanoTime() < endNanos) {
+                    var tenant = "tenant-" + (nextTenant.getAndIncrement() % tenants);
+                    var triggerStart = System.nanoTime();
+                    var ok = trigger(client, uri, tenant);
+                    var triggerEnd = System.nanoTime();
+                    if (triggerStart >= measureFromNanos && triggerEnd <= endNanos) {
+                        recorder.record(triggerEnd - triggerStart);
+                        if (!ok) {
+                            errors.increment();
+                        }
+                    }
+                }
+            });
+        }
+
+        Thread.sleep(Math.max(0, (measureFromNanos - System.nanoTime()) / 1_000_000));
+        sampler.start();
+        Thread.sleep(Math.max(0, (endNanos - System.nanoTime()) / 1_000_000));
+        var resources = sampler.stop();
+
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+
+        var latencies = recorders.stream()
+                .flatMapToLong(recorder -> Arrays.stream(recorder.values()))
+                .sorted()
+                .toArray();
+        var seconds = duration.toNanos() / 1e9;
+
+        var report = String.format(Locale.ROOT, """
+                        triggers: %d, errors: %d, triggers/s: %.1f
+                        latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f
+                        %s""",
+                latencies.length, errors.sum(), latencies.length / seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 1.0), resources.report(seconds, latencies.length));
+
+        return new Result(label, errors.sum(), latencies.length / seconds, percentile(latencies, 0.50),
+                percentile(latencies, 0.99), resources.allocatedBytes() / seconds / 1e6,
+                resources.maxHeapUsed() / 1e6, report);
+    }
+
+    private static boolean trigger(HttpClient client, URI uri, String tenant) {
+        var request = HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .timeout(Duration.ofMinutes(2))
+                .header("layer-id", tenant)
+                .header("layer-type", "TENANT")
+                .header("appd-cpid", "meteodata")
+                .header("appd-cpty", "solution")
+                .header("x-request-id", UUID.randomUUID().toString())
+                .build();
+        try {
+            // failed run still responds 200, with "error" status, or with no status when the config is not available
+            var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() / 100 == 2
+                    && response.body().contains("ok") && !response.body().contains("error");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return spooled requests by operation, summed over tenants, as reported by {@code GET /metrics}.
+     */
+    private static String spoolStats(URI uri) {
+        var prefix = "meteodata_spool_records_total{";
+        var operations = new TreeMap<String, Long>();
+        try (var client = HttpClient.newHttpClient()) {
+            var response = client.send(HttpRequest.newBuilder(uri.resolve("/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofLines());
+            response.body()
+                    .filter(line -> line.startsWith(prefix))
+                    .forEach(line -> {
+                        var labels = line.substring(prefix.length(), line.lastIndexOf('}'));
+                        var operation = labels.replaceAll(".*operation=\"([^\"]*)\".*", "$1");
+                        var value = (long) Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+                        operations.merge(operation, value, Long::sum);
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            return "not available: " + e.getMessage();
+        }
+        return operations.isEmpty() ? "empty" : operations.toString();
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        var index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    /**
+     * Latencies recorded by a single client thread.
+     */
+    private static final class LatencyRecorder {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        // written by the client thread, read once the client finished
+        synchronized void record(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized long[] values() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Heap, allocation and GC of the JVM during the measurement.
+     */
+    private static final class ResourceSampler {
+
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+        private long allocatedBytes;
+        private long gcCount;
+        private long gcMillis;
+        private volatile long maxHeapUsed;
+
+        void start() {
+            allocatedBytes = threads.getTotalThreadAllocatedBytes();
+            gcCount = gcCount();
+            gcMillis = gcMillis();
+            timer.scheduleAtFixedRate(() -> maxHeapUsed = Math.max(maxHeapUsed, heapUsed()),
+                    0, 100, TimeUnit.MILLISECONDS);
+        }
+
+        Resources stop() {
+            timer.shutdownNow();
+            return new Resources(threads.getTotalThreadAllocatedBytes() - allocatedBytes, gcCount() - gcCount,
+                    gcMillis() - gcMillis, maxHeapUsed, heapUsed(),
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted());
+        }
+
+        private static long heapUsed() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private long gcCount() {
+            return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private long gcMillis() {
+            return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+    }
+
+    /**
+     * Result of a single measurement, rates are per second, heap and allocation in MB.
+     */
+    private record Result(String label, long errors, double triggersPerSecond, double p50, double p99,
+                          double allocationRate, double maxHeapUsed, String report) {
+    }
+
+    private record Resources(long allocatedBytes, long gcCount, long gcMillis, long maxHeapUsed, long heapUsed,
+                             long heapCommitted) {
+
+        String report(double seconds, int triggers) {
+            return String.format(Locale.ROOT, """
+                            heap MB: max used %.1f, used at end %.1f, committed %.1f
+                            allocation MB/s: %.1f, per trigger KB: %.1f
+                            gc: %d collections, %d ms""",
+                    maxHeapUsed / 1e6, heapUsed / 1e6, heapCommitted / 1e6,
+                    allocatedBytes / seconds / 1e6, triggers > 0 ? allocatedBytes / 1e3 / triggers : Double.NaN,
+                    gcCount, gcMillis);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.pavelbucek.zodiac.openmeteo.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stub of the Open Meteo forecast API ({@code meteo-zodiac.open-meteo.url}).
+ * <p>
+ * Returns current values ({@code current}), 15-minute series ({@code minutely_15} between
+ * {@code start_minutely_15} and {@code end_minutely_15}) or hourly forecast ({@code hourly} for
+ * {@code forecast_days} days from midnight) of all requested variables for every requested location, in the same
+ * format as Open Meteo - an object for a single location, an array for a batch.
+ * <p>
+ * Time of the current values is the last quarter hour of a simulated clock, which runs {@code clockSpeed} times
+ * faster than the real one, so that consecutive runs of a tenant see missed intervals to backfill.
+ */
+final class OpenMeteoStub extends HttpStub {
+
+    private static final long INTERVAL_SECONDS = Duration.ofMinutes(15).toSeconds();
+    private static final long HOUR_SECONDS = Duration.ofHours(1).toSeconds();
+    private static final long DAY_SECONDS = Duration.ofDays(1).toSeconds();
+
+    private final double clockSpeed;
+    private final long startEpochSecond;
+    private final long startNanos;
+    private final LongAdder backfillRequests = new LongAdder();
+    private final LongAdder backfillPoints = new LongAdder();
+    private final LongAdder forecastRequests = new LongAdder();
+    private final LongAdder forecastPoints = new LongAdder();
+
+    /**
+     * @param clockSpeed how many times faster than the real clock the simulated one runs.
+     */
+    OpenMeteoStub(StubBehavior behavior, double clockSpeed) throws IOException {
+        super(behavior);
+        this.clockSpeed = clockSpeed;
+        this.startEpochSecond = System.currentTimeMillis() / 1000;
+        this.startNanos = System.nanoTime();
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().endsWith("/v1/forecast")) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        var query = query(exchange);
+        var latitudes = query.getOrDefault("latitude", "").split(",");
+        var longitudes = query.getOrDefault("longitude", "").split(",");
+        var series = query.containsKey("minutely_15") ? "minutely_15" : query.containsKey("hourly") ? "hourly" : null;
+        var variables = query.getOrDefault(series != null ? series : "current", "").split(",");
+        var padding = behavior.padding() > 0 ? "\"padding\":\"" + padding(behavior.padding()) + "\"," : "";
+
+        long start = 0;
+        long step = 0;
+        var points = 1;
+        if ("minutely_15".equals(series)) {
+            start = parseTime(query.get("start_minutely_15"));
+            step = INTERVAL_SECONDS;
+            points = (int) ((parseTime(query.get("end_minutely_15")) - start) / step) + 1;
+            backfillRequests.increment();
+            backfillPoints.add((long) points * latitudes.length);
+        } else if ("hourly".equals(series)) {
+            var now = now();
+            start = now - now % DAY_SECONDS;
+            step = HOUR_SECONDS;
+            points = Integer.parseInt(query.getOrDefault("forecast_days", "7")) * 24;
+            forecastRequests.increment();
+            forecastPoints.add((long) points * latitudes.length);
+        }
+
+        var sb = new StringBuilder(512 * latitudes.length * points);
+        if (latitudes.length > 1) {
+            sb.append('[');
+        }
+        for (int i = 0; i < latitudes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(String.format(Locale.ROOT, "{\"latitude\":%s,\"longitude\":%s,\"generationtime_ms\":0.05,"
+                            + "\"utc_offset_seconds\":0,\"timezone\":\"GMT\",\"timezone_abbreviation\":\"GMT\","
+                            + "\"elevation\":%.1f,%s",
+                    latitudes[i], longitudes[i], 100.0 + i % 1000, padding));
+            if (series != null) {
+                sb.append('"').append(series).append("\":{\"time\":[");
+                for (int p = 0; p < points; p++) {
+                    sb.append(p > 0 ? ",\"" : "\"").append(formatTime(start + p * step)).append('"');
+                }
+                sb.append(']');
+                for (int v = 0; v < variables.length; v++) {
+                    if (!variables[v].isEmpty()) {
+                        sb.append(",\"").append(variables[v]).append("\":[");
+                        for (int p = 0; p < points; p++) {
+                            sb.append(p > 0 ? "," : "").append(value(i + p, v));
+                        }
+                        sb.append(']');
+                    }
+                }
+            } else {
+                sb.append("\"current\":{\"time\":\"").append(formatTime(now())).append("\",\"interval\":900");
+                for (int v = 0; v < variables.length; v++) {
+                    if (!variables[v].isEmpty()) {
+                        sb.append(",\"").append(variables[v]).append("\":").append(value(i, v));
+                    }
+                }
+            }
+            sb.append("}}");
+        }
+        if (latitudes.length > 1) {
+            sb.append(']');
+        }
+
+        respond(exchange, null, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    String stats() {
+        return super.stats() + ", backfill requests: " + backfillRequests.sum() + ", backfill points: "
+                + backfillPoints.sum() + ", forecast requests: " + forecastRequests.sum() + ", forecast points: "
+                + forecastPoints.sum();
+    }
+
+    // last quarter hour of the simulated clock
+    private long now() {
+        var elapsed = (long) ((System.nanoTime() - startNanos) / 1e9 * clockSpeed);
+        var epochSecond = startEpochSecond + elapsed;
+        return epochSecond - epochSecond % INTERVAL_SECONDS;
+    }
+
+    private static String value(int i, int v) {
+        return String.format(Locale.ROOT, "%.1f", (i * 7 + v * 13) % 100 / 2.0);
+    }
+
+    private static long parseTime(String time) {
+        return LocalDateTime.parse(time).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static String formatTime(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC).toString();
+    }
+}
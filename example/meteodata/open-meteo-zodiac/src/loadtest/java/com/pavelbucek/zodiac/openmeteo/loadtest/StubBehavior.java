@@ -0,0 +1,54 @@
+package com.pavelbucek.zodiac.openmeteo.loadtest;
+
+import io.micronaut.core.convert.ConversionService;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Behavior of a stubbed dependency, read from system properties prefixed by the stub name, e.g.
+ * {@code -Dloadtest.open-meteo.latency=80ms}.
+ *
+ * @param latency   delay before the response is sent.
+ * @param errorRate ratio of requests which fail (0 - 1); HTTP stubs respond with 503, the collector with gRPC
+ *                  {@code UNAVAILABLE}.
+ * @param padding   bytes added to each returned item (location), to simulate larger payloads.
+ */
+record StubBehavior(Duration latency, double errorRate, int padding) {
+
+    static StubBehavior of(String stub, String defaultLatency) {
+        return new StubBehavior(
+                duration("loadtest." + stub + ".latency", defaultLatency),
+                Double.parseDouble(System.getProperty("loadtest." + stub + ".error-rate", "0")),
+                Integer.getInteger("loadtest." + stub + ".padding", 0));
+    }
+
+    /**
+     * @return {@code true} when the current request should fail.
+     */
+    boolean fail() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    /**
+     * Block the current (virtual) thread for the configured latency.
+     */
+    void sleep() {
+        if (!latency.isZero()) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static Duration duration(String property, String defaultValue) {
+        return ConversionService.SHARED.convertRequired(System.getProperty(property, defaultValue), Duration.class);
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + latency.toMillis() + "ms, error-rate=" + errorRate + ", padding=" + padding;
+    }
+}
@@ -0,0 +1,192 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.logs.Severity;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.resources.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Exporter of log records of a single run, while the run is still in progress.
+ * <p>
+ * Records are collected in a {@link LogRecordBuffer} and exported in batches: when the buffer reports a full batch
+ * (record count or size), and every {@code meteo-zodiac.logs.flush-interval}, so logs of a stalled run still reach
+ * the platform. Exports run on the given scheduler, never on the thread which logs the message. {@link #close()}
+ * exports only what remains in the buffer, its result completes once the exports still in progress do as well. Each
+ * batch is sent by the given export function, which completes once the batch was accepted (see
+ * {@link OtlpDispatcher}).
+ * <p>
+ * Outcome of the exports is logged only locally, recording it would produce new records to be exported. Records
+ * dropped by the full buffer are counted by the given counter (see {@link PipelineMetrics#logsDropped}) and reported
+ * to the tenant by an additional WARN record of the next export.
+ */
+final class BackgroundLogExporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundLogExporter.class);
+
+    // attribute of the log record reporting records dropped by the full log buffer
+    static final AttributeKey<Long> LOGS_DROPPED = AttributeKey.longKey("meteodata.logs.dropped");
+
+    private final Function<List<LogRecordData>, Mono<Void>> exporter;
+    private final LongConsumer droppedCounter;
+    private final LogRecordBuffer buffer;
+    private final Resource resource;
+    private final Scheduler scheduler;
+    private final Disposable timer;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // exports which were not completed yet
+    private final Set<CompletableResultCode> pending = ConcurrentHashMap.newKeySet();
+    private CompletableResultCode closeResult;
+
+    private final LongAdder exportedRecords = new LongAdder();
+    private final LongAdder exportedBatches = new LongAdder();
+    private final LongAdder droppedRecords = new LongAdder();
+
+    /**
+     * @param exporter       export of a batch of records of the tenant.
+     * @param droppedCounter counter of the records dropped by the full buffer.
+     * @param buffer         buffer of the run.
+     * @param resource       resource of the exported records.
+     * @param flushInterval  interval of periodic exports, non-positive value disables them.
+     * @param scheduler      scheduler the exports run on.
+     */
+    BackgroundLogExporter(Function<List<LogRecordData>, Mono<Void>> exporter, LongConsumer droppedCounter,
+                          LogRecordBuffer buffer, Resource resource, Duration flushInterval, Scheduler scheduler) {
+        this.exporter = exporter;
+        this.droppedCounter = droppedCounter;
+        this.buffer = buffer;
+        this.resource = resource;
+        this.scheduler = scheduler;
+
+        var intervalMillis = flushInterval.toMillis();
+        this.timer = intervalMillis > 0
+                ? scheduler.schedulePeriodically(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS)
+                : Disposables.disposed();
+    }
+
+    /**
+     * Record log message, export of the buffered records is scheduled once there's enough of them.
+     */
+    void add(long epochNanos, Severity severity, String body, Attributes attributes) {
+        if (buffer.add(epochNanos, severity, body, attributes)
+                && !closed.get()
+                && flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Stop periodic exports and export remaining records. Only the first call exports anything.
+     *
+     * @return result of all exports of the run, including those still in progress; the same result is returned by
+     * every call.
+     */
+    synchronized CompletableResultCode close() {
+        if (closeResult != null) {
+            return closeResult;
+        }
+        closed.set(true);
+        timer.dispose();
+
+        // the last export may have failed already, then it's no longer pending
+        var last = flush();
+        var exports = new ArrayList<>(pending);
+        exports.add(last);
+        var result = CompletableResultCode.ofAll(exports);
+        result.whenComplete(() -> LOGGER.debug("logs exported: {}, batches: {}, dropped: {}",
+                exportedRecords.sum(), exportedBatches.sum(), droppedRecords.sum()));
+        closeResult = result;
+        return result;
+    }
+
+    /**
+     * Export records currently held by the buffer.
+     *
+     * @return result of the export, successful when there was nothing to export.
+     */
+    CompletableResultCode flush() {
+        // registered before the buffer is drained, so that close() waits for records drained by a concurrent flush
+        var result = new CompletableResultCode();
+        pending.add(result);
+        result.whenComplete(() -> pending.remove(result));
+
+        var drain = buffer.drain(resource);
+        var logs = new ArrayList<LogRecordData>(drain.records());
+
+        if (drain.dropped() > 0) {
+            droppedRecords.add(drain.dropped());
+            droppedCounter.accept(drain.dropped());
+            LOGGER.warn("log records dropped: {}, capacity: {}", drain.dropped(), buffer.capacity());
+            logs.add(new MeteoZodiacFunction.LogRecord(resource, Severity.WARN,
+                    Attributes.of(LOGS_DROPPED, drain.dropped()), "log records dropped",
+                    System.currentTimeMillis() * 1_000_000));
+        }
+
+        if (logs.isEmpty()) {
+            return result.succeed();
+        }
+
+        exporter.apply(logs).subscribe(
+                null,
+                throwable -> {
+                    // failure was already logged by the dispatcher
+                    LOGGER.debug("logs export failure, log.count: {}", logs.size(), throwable);
+                    result.fail();
+                },
+                () -> {
+                    exportedRecords.add(logs.size());
+                    exportedBatches.increment();
+                    LOGGER.debug("logs export success, log.count: {}", logs.size());
+                    result.succeed();
+                });
+        return result;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    long getExportedRecordCount() {
+        return exportedRecords.sum();
+    }
+
+    long getExportedBatchCount() {
+        return exportedBatches.sum();
+    }
+
+    long getDroppedRecordCount() {
+        return droppedRecords.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BackgroundLogExporter{" +
+                "exported=" + exportedRecords.sum() +
+                ", buffered=" + buffer.size() +
+                ", closed=" + closed.get() +
+                '}';
+    }
+}
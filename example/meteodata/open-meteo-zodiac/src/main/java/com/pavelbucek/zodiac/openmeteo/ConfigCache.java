@@ -0,0 +1,126 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Config;
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Singleton;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per tenant cache of {@code meteodata:meteoConfig/meteodata:config}.
+ * <p>
+ * Cached config is considered fresh for {@code meteo-zodiac.config-cache.ttl}; stale config is still used, but
+ * the caller is expected to revalidate it in the background (see {@link Entry#tryStartRefresh()}). Entity tag
+ * returned by the Knowledge store is kept with the config, so the revalidation can be a conditional request. The
+ * number of cached tenants is capped by {@code meteo-zodiac.config-cache.max-size}, non-positive value disables the
+ * cache.
+ */
+@Singleton
+public class ConfigCache {
+
+    private final long ttlNanos;
+    private final int maxSize;
+
+    private final LinkedHashMap<TenantKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TenantKey, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public ConfigCache(@Value("${meteo-zodiac.config-cache.ttl:5m}") Duration ttl,
+                       @Value("${meteo-zodiac.config-cache.max-size:1000}") int maxSize) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get cached config.
+     *
+     * @param key tenant.
+     * @return cached entry or {@code null}.
+     */
+    public Entry get(TenantKey key) {
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Store freshly received config.
+     *
+     * @param key    tenant.
+     * @param config received config.
+     * @param etag   entity tag of the received config, can be {@code null}.
+     * @return new entry.
+     */
+    public Entry put(TenantKey key, Config config, String etag) {
+        var entry = new Entry(config, etag, System.nanoTime());
+        if (maxSize > 0) {
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Cached config is still valid (i.e. Knowledge store returned "304 Not Modified"), renew its TTL.
+     *
+     * @param key   tenant.
+     * @param entry revalidated entry.
+     * @return new entry.
+     */
+    public Entry revalidated(TenantKey key, Entry entry) {
+        return put(key, entry.getConfig(), entry.getEtag());
+    }
+
+    public class Entry {
+
+        private final Config config;
+        private final String etag;
+        private final long fetchedAtNanos;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(Config config, String etag, long fetchedAtNanos) {
+            this.config = config;
+            this.etag = etag;
+            this.fetchedAtNanos = fetchedAtNanos;
+        }
+
+        public Config getConfig() {
+            return config;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public boolean isStale() {
+            return System.nanoTime() - fetchedAtNanos > ttlNanos;
+        }
+
+        /**
+         * Only single refresh per stale entry should be running.
+         *
+         * @return {@code true} when the caller should refresh the entry.
+         */
+        public boolean tryStartRefresh() {
+            return refreshing.compareAndSet(false, true);
+        }
+
+        /**
+         * Refresh failed, allow another one.
+         */
+        public void refreshFailed() {
+            refreshing.set(false);
+        }
+    }
+}
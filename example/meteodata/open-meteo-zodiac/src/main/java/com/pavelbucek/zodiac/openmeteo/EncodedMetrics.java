@@ -0,0 +1,135 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.netty.buffer.ByteBuf;
+import io.opentelemetry.exporter.internal.marshal.Marshaler;
+import io.opentelemetry.exporter.internal.marshal.Serializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * OTLP {@code ExportMetricsServiceRequest} encoded by {@link OtlpMetricsEncoder}.
+ * <p>
+ * This is a {@link Marshaler}, so it can be sent by the OTLP gRPC exporter as is; encoded bytes are copied to the
+ * request body in small chunks, never as a whole. The exporter can write the request multiple times (retries), so the
+ * buffer must be released only once the export completes.
+ * <p>
+ * Requests replayed from the {@link MetricSpool} have no locations, they wrap the spooled bytes.
+ */
+final class EncodedMetrics extends Marshaler {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final ByteBuf buffer;
+    private final List<TrackedLocation> locations;
+    private final List<WeatherBatch.Row> weather;
+    private final int pointCount;
+
+    /**
+     * @param buffer     encoded request.
+     * @param locations  encoded locations.
+     * @param weather    encoded weather data, in the same order as {@code locations}.
+     * @param pointCount number of encoded data points, missing values are not encoded.
+     */
+    EncodedMetrics(ByteBuf buffer, List<TrackedLocation> locations, List<WeatherBatch.Row> weather, int pointCount) {
+        this.buffer = buffer;
+        this.locations = locations;
+        this.weather = weather;
+        this.pointCount = pointCount;
+    }
+
+    /**
+     * @param buffer     already encoded request.
+     * @param pointCount number of encoded data points.
+     */
+    EncodedMetrics(ByteBuf buffer, int pointCount) {
+        this.buffer = buffer;
+        this.locations = List.of();
+        this.weather = List.of();
+        this.pointCount = pointCount;
+    }
+
+    /**
+     * @return encoded locations.
+     */
+    List<TrackedLocation> getLocations() {
+        return locations;
+    }
+
+    /**
+     * @return encoded weather data, in the same order as {@link #getLocations()}.
+     */
+    List<WeatherBatch.Row> getWeather() {
+        return weather;
+    }
+
+    /**
+     * @return number of encoded data points.
+     */
+    int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Record the encoded weather data as exported (or safely spooled), see
+     * {@link TrackedLocation#markExported(long)}. Forecast is not recorded, it lies in the future.
+     */
+    void markExported() {
+        for (int i = 0; i < locations.size(); i++) {
+            var row = weather.get(i);
+            if (!row.batch().isForecast()) {
+                locations.get(i).markExported(row.epochNanos());
+            }
+        }
+    }
+
+    /**
+     * Copy encoded request.
+     *
+     * @param target buffer of exactly {@link #getBinarySerializedSize()} remaining bytes.
+     */
+    void copyTo(ByteBuffer target) {
+        buffer.getBytes(buffer.readerIndex(), target);
+    }
+
+    /**
+     * Release the underlying buffer, encoded request can't be used anymore.
+     */
+    void release() {
+        if (buffer.refCnt() > 0) {
+            buffer.release();
+        }
+    }
+
+    @Override
+    public int getBinarySerializedSize() {
+        return buffer.readableBytes();
+    }
+
+    @Override
+    protected void writeTo(Serializer output) throws IOException {
+        var chunk = new byte[Math.min(CHUNK_SIZE, buffer.readableBytes())];
+        var index = buffer.readerIndex();
+        var end = buffer.writerIndex();
+
+        while (index < end) {
+            var length = Math.min(chunk.length, end - index);
+            if (length < chunk.length) {
+                chunk = new byte[length];
+            }
+            buffer.getBytes(index, chunk, 0, length);
+            // JSON is not supported, the request is always sent as protobuf
+            output.writeSerializedMessage(chunk, "");
+            index += length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMetrics{" +
+                "locations=" + locations.size() +
+                ", bytes=" + buffer.readableBytes() +
+                '}';
+    }
+}
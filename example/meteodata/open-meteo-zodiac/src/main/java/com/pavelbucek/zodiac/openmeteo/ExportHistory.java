@@ -0,0 +1,179 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timestamps of the last exported weather data per tenant and location, which outlive the {@link TrackedLocation}s,
+ * so that gaps are backfilled (see {@link WeatherGap}) also after a restart of the service or an eviction from the
+ * {@link LocationSnapshotCache}.
+ * <p>
+ * Timestamps are recorded by every processed window and written to a file in {@code meteo-zodiac.backfill.directory}
+ * (empty directory keeps them in memory only) every {@code meteo-zodiac.backfill.flush-interval} and on shutdown. The
+ * file is replaced atomically, a crash loses only the timestamps recorded since the last flush; intervals exported
+ * in the meantime are backfilled again. Timestamps older than {@code meteo-zodiac.backfill.max-window} are not kept,
+ * a location without a timestamp is backfilled as far back anyway.
+ */
+@Singleton
+public class ExportHistory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportHistory.class);
+
+    private static final String FILE_NAME = "export-history.bin";
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final Duration maxWindow;
+
+    private final Map<Key, Long> timestamps = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public ExportHistory(@Value("${meteo-zodiac.backfill.directory:}") String directory,
+                         @Value("${meteo-zodiac.backfill.max-window:24h}") Duration maxWindow) {
+        this.file = directory == null || directory.isBlank() ? null : Path.of(directory).resolve(FILE_NAME);
+        this.maxWindow = maxWindow;
+
+        if (file != null) {
+            load();
+        }
+    }
+
+    /**
+     * @param tenant   tenant of the location.
+     * @param location location.
+     * @return timestamp of the last exported weather data of the location, either by this run, a previous one or
+     *         before a restart; {@code 0} when there's none.
+     */
+    long lastExported(TenantKey tenant, TrackedLocation location) {
+        var recorded = timestamps.get(Key.of(tenant, location));
+        var current = location.getLastExportedEpochNanos();
+        return recorded == null ? current : Math.max(current, recorded);
+    }
+
+    /**
+     * Record timestamps of the last exported weather data of given locations, locations without exported data are
+     * skipped.
+     *
+     * @param tenant    tenant of the locations.
+     * @param locations locations.
+     */
+    void record(TenantKey tenant, List<TrackedLocation> locations) {
+        for (var location : locations) {
+            var epochNanos = location.getLastExportedEpochNanos();
+            if (epochNanos > 0) {
+                timestamps.merge(Key.of(tenant, location), epochNanos, Math::max);
+                dirty.set(true);
+            }
+        }
+    }
+
+    /**
+     * Write recorded timestamps, when there is anything new.
+     */
+    @Scheduled(fixedDelay = "${meteo-zodiac.backfill.flush-interval:1m}")
+    synchronized void flush() {
+        if (file == null || !dirty.getAndSet(false)) {
+            return;
+        }
+
+        var expiredBefore = System.currentTimeMillis() * 1_000_000L - maxWindow.toNanos();
+        timestamps.values().removeIf(epochNanos -> epochNanos < expiredBefore);
+
+        try {
+            Files.createDirectories(file.getParent());
+            var temporary = file.resolveSibling(FILE_NAME + ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                // entries recorded while writing are written by the next flush
+                var entries = List.copyOf(timestamps.entrySet());
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (var entry : entries) {
+                    var key = entry.getKey();
+                    writeString(out, key.tenant().layerId());
+                    writeString(out, key.tenant().principalId());
+                    writeString(out, key.tenant().principalType());
+                    writeString(out, key.name());
+                    out.writeDouble(key.latitude());
+                    out.writeDouble(key.longitude());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("export history can't be written to {}", file, e);
+            dirty.set(true);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        flush();
+    }
+
+    /**
+     * @return number of recorded locations.
+     */
+    int size() {
+        return timestamps.size();
+    }
+
+    private void load() {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            var version = in.readInt();
+            if (version != VERSION) {
+                LOGGER.warn("export history {} has unknown version {}, ignored", file, version);
+                return;
+            }
+            var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                var tenant = new TenantKey(readString(in), readString(in), readString(in));
+                var key = new Key(tenant, readString(in), in.readDouble(), in.readDouble());
+                timestamps.put(key, in.readLong());
+            }
+            LOGGER.info("export history of {} locations loaded from {}", count, file);
+        } catch (NoSuchFileException e) {
+            // first start
+        } catch (IOException e) {
+            // gaps of the locations which were not read are backfilled as if they were never exported
+            LOGGER.warn("export history can't be read from {}, {} locations recovered", file, timestamps.size(), e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private record Key(TenantKey tenant, String name, double latitude, double longitude) {
+
+        static Key of(TenantKey tenant, TrackedLocation location) {
+            var value = location.getLocation();
+            return new Key(tenant, value.getName(), value.getLatitude(), value.getLongitude());
+        }
+    }
+}
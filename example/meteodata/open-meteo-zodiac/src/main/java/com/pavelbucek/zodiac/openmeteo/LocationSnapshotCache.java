@@ -0,0 +1,144 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Singleton;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per tenant snapshot of {@code meteodata:meteoLocation} objects, as they were read by the last successful run.
+ * <p>
+ * Snapshot is organized by pages, as returned by the Knowledge store. Each page keeps its entity tag and a hash of
+ * the raw response, next run sends the entity tag as a conditional request and compares the hash; when the page
+ * didn't change, the page is not decoded at all and its {@link TrackedLocation}s (including all derived state) are
+ * reused. When it did change, only new locations are tracked from scratch, the unchanged ones are taken over from
+ * the previous snapshot and removed ones are dropped with it.
+ * <p>
+ * The number of cached tenants is capped by {@code meteo-zodiac.location-cache.max-size}, non-positive value disables
+ * the cache.
+ */
+@Singleton
+public class LocationSnapshotCache {
+
+    private final int maxSize;
+
+    private final LinkedHashMap<TenantKey, Snapshot> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TenantKey, Snapshot> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public LocationSnapshotCache(@Value("${meteo-zodiac.location-cache.max-size:1000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get snapshot stored by the last successful run.
+     *
+     * @param key tenant.
+     * @return snapshot, {@code null} when there is none.
+     */
+    public Snapshot get(TenantKey key) {
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Store snapshot of the run which read all pages.
+     *
+     * @param key      tenant.
+     * @param snapshot complete snapshot.
+     */
+    public void put(TenantKey key, Snapshot snapshot) {
+        if (maxSize <= 0) {
+            return;
+        }
+
+        synchronized (entries) {
+            entries.put(key, snapshot);
+        }
+    }
+
+    /**
+     * Hash of the raw page content.
+     *
+     * @param content raw response body.
+     * @return hash.
+     */
+    static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * All pages of the tenant.
+     */
+    public static final class Snapshot {
+
+        private final List<Page> pages;
+        private Map<Location, TrackedLocation> index;
+
+        public Snapshot(List<Page> pages) {
+            this.pages = List.copyOf(pages);
+        }
+
+        public List<Page> getPages() {
+            return pages;
+        }
+
+        /**
+         * @param index index of the page.
+         * @return page or {@code null}, when the snapshot has fewer pages.
+         */
+        public Page page(int index) {
+            return index < pages.size() ? pages.get(index) : null;
+        }
+
+        /**
+         * Reuse tracked location from this snapshot, or start tracking new one.
+         *
+         * @param location location read from the Knowledge store.
+         * @return tracked location.
+         */
+        public synchronized TrackedLocation track(Location location) {
+            if (index == null) {
+                index = new HashMap<>();
+                pages.forEach(page -> page.locations().forEach(tracked -> index.put(tracked.getLocation(), tracked)));
+            }
+
+            var tracked = index.get(location);
+            return tracked != null ? tracked : new TrackedLocation(location);
+        }
+    }
+
+    /**
+     * Single page of {@code meteodata:meteoLocation} objects.
+     *
+     * @param etag       entity tag returned by the Knowledge store, can be {@code null}.
+     * @param hash       hash of the raw response.
+     * @param total      total number of objects reported by the Knowledge store.
+     * @param nextCursor cursor of the next page, {@code null} for the last page.
+     * @param locations  locations of the page.
+     */
+    public record Page(String etag, byte[] hash, int total, String nextCursor, List<TrackedLocation> locations) {
+
+        Page withEtag(String etag) {
+            return etag == null ? this : new Page(etag, hash, total, nextCursor, locations);
+        }
+    }
+}
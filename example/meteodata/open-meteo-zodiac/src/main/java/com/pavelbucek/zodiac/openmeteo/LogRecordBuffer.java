@@ -0,0 +1,153 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.logs.Severity;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.resources.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log records of a single run, waiting for the export.
+ * <p>
+ * Ring buffer of a fixed capacity ({@code meteo-zodiac.logs.capacity}), allocated once when the logging is enabled
+ * for the run. Records are kept column by column, timestamp as epoch nanos; {@link LogRecordData} objects are created
+ * only when the buffer is drained for the export. When the buffer is full, either the oldest or the new record is
+ * dropped ({@code meteo-zodiac.logs.overflow}) and the number of dropped records is reported with the next drain.
+ * <p>
+ * Buffer is drained in batches while the run is still in progress (see {@link BackgroundLogExporter}); it signals
+ * that a batch is ready once it holds {@code meteo-zodiac.logs.batch-size} records or approximately
+ * {@code meteo-zodiac.logs.batch-bytes} bytes.
+ * <p>
+ * Records are added from multiple threads, all methods are synchronized.
+ */
+final class LogRecordBuffer {
+
+    /**
+     * What to drop when the buffer is full.
+     */
+    enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST;
+
+        /**
+         * @param value policy name, e.g. {@code drop-oldest}.
+         * @return parsed policy.
+         */
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // rough per record overhead of the encoded record (timestamps, severity, resource and scope references)
+    private static final int RECORD_OVERHEAD_BYTES = 64;
+
+    private final OverflowPolicy overflowPolicy;
+    private final int batchSize;
+    private final long batchBytes;
+
+    private final long[] epochNanos;
+    private final Severity[] severities;
+    private final String[] bodies;
+    private final Attributes[] attributes;
+
+    // index of the oldest record
+    private int head;
+    private int size;
+    private long bytes;
+    private long dropped;
+
+    LogRecordBuffer(int capacity, OverflowPolicy overflowPolicy, int batchSize, long batchBytes) {
+        var bufferCapacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.batchSize = batchSize > 0 ? Math.min(batchSize, bufferCapacity) : bufferCapacity;
+        this.batchBytes = batchBytes > 0 ? batchBytes : Long.MAX_VALUE;
+        this.epochNanos = new long[bufferCapacity];
+        this.severities = new Severity[bufferCapacity];
+        this.bodies = new String[bufferCapacity];
+        this.attributes = new Attributes[bufferCapacity];
+    }
+
+    /**
+     * Add a record, or drop one when the buffer is full.
+     *
+     * @param epochNanos time of the record.
+     * @param severity   severity.
+     * @param body       body of the record.
+     * @param attributes attributes of the record.
+     * @return {@code true} when the buffer holds enough records for a batch.
+     */
+    synchronized boolean add(long epochNanos, Severity severity, String body, Attributes attributes) {
+        int index;
+        if (size < this.epochNanos.length) {
+            index = (head + size++) % this.epochNanos.length;
+        } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            dropped++;
+            index = head;
+            head = (head + 1) % this.epochNanos.length;
+            bytes -= size(this.bodies[index]);
+        } else {
+            dropped++;
+            return true;
+        }
+
+        this.epochNanos[index] = epochNanos;
+        this.severities[index] = severity;
+        this.bodies[index] = body;
+        this.attributes[index] = attributes;
+        bytes += size(body);
+
+        return size >= batchSize || bytes >= batchBytes;
+    }
+
+    /**
+     * Remove all records from the buffer.
+     *
+     * @param resource resource of the records.
+     * @return records in the order they were added, and number of records dropped since the last drain.
+     */
+    synchronized Drain drain(Resource resource) {
+        var records = new ArrayList<LogRecordData>(size);
+        for (int i = 0; i < size; i++) {
+            var index = (head + i) % epochNanos.length;
+            records.add(new MeteoZodiacFunction.LogRecord(resource, severities[index], attributes[index],
+                    bodies[index], epochNanos[index]));
+
+            // release references, the arrays stay allocated for the rest of the run
+            severities[index] = null;
+            bodies[index] = null;
+            attributes[index] = null;
+        }
+
+        var result = new Drain(records, dropped);
+        head = 0;
+        size = 0;
+        bytes = 0;
+        dropped = 0;
+
+        return result;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    int capacity() {
+        return epochNanos.length;
+    }
+
+    // attributes carry the same content as the body (see MeteoLogger), so they are counted as the body once again
+    private static long size(String body) {
+        return RECORD_OVERHEAD_BYTES + (body != null ? 2L * body.length() : 0);
+    }
+
+    /**
+     * Drained records.
+     *
+     * @param records records in the order they were added.
+     * @param dropped number of records dropped because the buffer was full.
+     */
+    record Drain(List<LogRecordData> records, long dropped) {
+    }
+}
@@ -1,32 +1,33 @@
 package com.pavelbucek.zodiac.openmeteo;
 
 import com.pavelbucek.zodiac.openmeteo.model.Config;
-import com.pavelbucek.zodiac.openmeteo.model.Location;
 import io.micronaut.http.HttpHeaders;
-import io.micronaut.runtime.http.scope.RequestScope;
-import io.opentelemetry.exporter.otlp.logs.OtlpGrpcLogRecordExporter;
-import io.opentelemetry.sdk.logs.data.LogRecordData;
-import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.logs.Severity;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Request scoped context.
+ * Context of a single run for a single tenant.
  * <p>
  * Holds various processing related objects, starting with headers of initial request, ending with result and log
- * events reported back to the platform.
+ * events reported back to the platform. Single HTTP request can process multiple tenants (see
+ * {@link MeteoZodiacFunction#reportMeteoDataBulk}), so the context is not bound to the request scope.
  */
-@RequestScope
 public class MeteoContext {
 
     Config config;
+    WeatherVariables variables = WeatherVariables.ALL;
     HttpHeaders headers;
-    List<Location> locations;
-    OtlpGrpcLogRecordExporter logRecordExporter;
-    final ConcurrentLinkedDeque<LogRecordData> logs = new ConcurrentLinkedDeque<>();
-    Resource logResource;
+    volatile BackgroundLogExporter logExporter;
+    OtlpExporterCache.Lease exporters;
+    boolean exportersReleased;
+    volatile boolean spooled;
+    final AtomicLong backfilledPoints = new AtomicLong();
+
+    public MeteoContext(HttpHeaders headers) {
+        this.headers = headers;
+    }
 
     public Config getConfig() {
         return config;
@@ -34,6 +35,14 @@ public class MeteoContext {
 
     public void setConfig(Config config) {
         this.config = config;
+        this.variables = config == null ? WeatherVariables.ALL : WeatherVariables.of(config.getVariables());
+    }
+
+    /**
+     * @return weather variables selected by the config of the tenant, all variables when there's no selection.
+     */
+    WeatherVariables getVariables() {
+        return variables;
     }
 
     public HttpHeaders getHeaders() {
@@ -44,35 +53,81 @@ public class MeteoContext {
         this.headers = headers;
     }
 
-    public List<Location> getLocations() {
-        return locations;
+    /**
+     * @return exporter of the log records of this run, {@code null} when the logging is not enabled for this run.
+     */
+    BackgroundLogExporter getLogExporter() {
+        return logExporter;
     }
 
-    public void setLocations(List<Location> locations) {
-        this.locations = locations;
+    void setLogExporter(BackgroundLogExporter logExporter) {
+        this.logExporter = logExporter;
     }
 
-    public OtlpGrpcLogRecordExporter getLogRecordExporter() {
-        return logRecordExporter;
+    /**
+     * Exporters of the tenant, held by this run from the first export until {@link #releaseExporters()}.
+     *
+     * @param cache cache the exporters are acquired from.
+     * @return lease of the exporters of the tenant.
+     */
+    synchronized OtlpExporterCache.Lease getExporters(OtlpExporterCache cache) {
+        // export of a cancelled run, which was already finished
+        if (exportersReleased) {
+            throw new IllegalStateException("Run already finished");
+        }
+        if (exporters == null) {
+            exporters = cache.acquire(headers);
+        }
+        return exporters;
     }
 
-    public void setLogRecordExporter(OtlpGrpcLogRecordExporter logRecordExporter) {
-        this.logRecordExporter = logRecordExporter;
+    /**
+     * Release exporters of the tenant, the run must not export anything afterwards.
+     */
+    synchronized void releaseExporters() {
+        exportersReleased = true;
+        if (exporters != null) {
+            exporters.release();
+        }
     }
 
-    public void setLogResource(Resource logResource) {
-        this.logResource = logResource;
+    /**
+     * @return {@code true} when metric data of this run were spooled, because the ingestion was not available.
+     */
+    boolean isSpooled() {
+        return spooled;
     }
 
-    public Resource getLogResource() {
-        return logResource;
+    void markSpooled() {
+        this.spooled = true;
     }
 
-    public void addLogRecord(LogRecordData logRecordData) {
-        logs.add(logRecordData);
+    /**
+     * Reserve backfilled data points of this run.
+     *
+     * @param points data points to be backfilled.
+     * @param limit  max data points backfilled by a single run, non-positive value means no limit.
+     * @return {@code true} when the points fit into the limit and were reserved.
+     */
+    boolean reserveBackfill(long points, long limit) {
+        while (true) {
+            var current = backfilledPoints.get();
+            if (limit > 0 && current + points > limit) {
+                return false;
+            }
+            if (backfilledPoints.compareAndSet(current, current + points)) {
+                return true;
+            }
+        }
     }
 
-    public Collection<LogRecordData> getLogs() {
-        return logs;
+    /**
+     * Record log message to be exported, ignored when the logging is not enabled for this run.
+     */
+    public void addLogRecord(long epochNanos, Severity severity, Attributes attributes, String body) {
+        var exporter = logExporter;
+        if (exporter != null) {
+            exporter.add(epochNanos, severity, body, attributes);
+        }
     }
 }
@@ -2,37 +2,29 @@ package com.pavelbucek.zodiac.openmeteo;
 
 import com.pavelbucek.zodiac.openmeteo.model.Config;
 import com.pavelbucek.zodiac.openmeteo.model.ConfigResponseWrapper;
-import com.pavelbucek.zodiac.openmeteo.model.Location;
 import com.pavelbucek.zodiac.openmeteo.model.LocationResponseWrapper;
-import com.pavelbucek.zodiac.openmeteo.model.OpenMeteoResponse;
 import io.micronaut.context.annotation.Value;
-import io.micronaut.core.type.Argument;
+import io.micronaut.core.convert.ConversionService;
 import io.micronaut.http.HttpHeaders;
 import io.micronaut.http.HttpRequest;
-import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
 import io.micronaut.http.MutableHttpHeaders;
 import io.micronaut.http.annotation.Controller;
 import io.micronaut.http.annotation.Post;
+import io.micronaut.http.simple.SimpleHttpHeaders;
 import io.micronaut.http.uri.UriBuilder;
+import io.micronaut.json.JsonMapper;
 import io.micronaut.reactor.http.client.ReactorHttpClient;
+import io.netty.buffer.ByteBufAllocator;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.logs.Severity;
 import io.opentelemetry.api.trace.SpanContext;
-import io.opentelemetry.api.trace.TraceFlags;
-import io.opentelemetry.api.trace.TraceState;
-import io.opentelemetry.exporter.otlp.logs.OtlpGrpcLogRecordExporter;
-import io.opentelemetry.exporter.otlp.metrics.OtlpGrpcMetricExporter;
+import io.opentelemetry.exporter.internal.otlp.logs.LogsRequestMarshaler;
 import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
 import io.opentelemetry.sdk.logs.data.Body;
 import io.opentelemetry.sdk.logs.data.LogRecordData;
-import io.opentelemetry.sdk.metrics.data.MetricData;
-import io.opentelemetry.sdk.metrics.internal.data.ImmutableDoublePointData;
-import io.opentelemetry.sdk.metrics.internal.data.ImmutableGaugeData;
-import io.opentelemetry.sdk.metrics.internal.data.ImmutableLongPointData;
-import io.opentelemetry.sdk.metrics.internal.data.ImmutableMetricData;
 import io.opentelemetry.sdk.resources.Resource;
-import io.opentelemetry.sdk.resources.ResourceBuilder;
 import jakarta.inject.Inject;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
@@ -40,18 +32,25 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.event.Level;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.util.function.Tuples;
+import reactor.core.scheduler.Schedulers;
 
-import java.time.Instant;
-import java.time.ZonedDateTime;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * The only resource in the Zodiac function.
@@ -71,6 +70,12 @@ import java.util.stream.Stream;
 public class MeteoZodiacFunction {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MeteoZodiacFunction.class);
+    private static final MeteoLogger LOG = new MeteoLogger(LOGGER);
+
+    private static final Resource LOG_RESOURCE = Resource.builder()
+            .put("meteodata.name", "meteodata")
+            .put("telemetry.sdk.name", "SOLUTION_PREFIX")
+            .build();
 
     // headers to be propagated
     static final List<String> PROPAGATED_HEADERS = new ArrayList<>() {{
@@ -85,19 +90,113 @@ public class MeteoZodiacFunction {
         add("x-request-id");
     }};
 
+    // pages requested in addition to the planned ones, when the Knowledge store still returns a cursor
+    static final int LOCATION_PAGES_OVERRUN = 1;
+
     private final ReactorHttpClient httpClient;
-    private final MeteoContext meteoContext;
+    private final OtlpExporterCache exporterCache;
+    private final WeatherCache weatherCache;
+    private final WeatherRequestCoalescer weatherRequestCoalescer;
+    private final ConfigCache configCache;
+    private final LocationSnapshotCache locationSnapshotCache;
+    private final JsonMapper jsonMapper;
+    private final PipelineMetrics metrics;
+    private final StageScheduler stageScheduler;
+    private final OtlpDispatcher dispatcher;
+    private final MetricSpool spool;
+    private final ExportHistory exportHistory;
 
     @Value("${meteo-zodiac.json-store-url}")
     protected String jsonStoreUrl;
 
-    @Value("${meteo-zodiac.cis-url}")
-    protected String cisUrl;
+    @Value("${meteo-zodiac.locations.page-size:100}")
+    protected int locationsPageSize;
+
+    @Value("${meteo-zodiac.open-meteo.url:`https://api.open-meteo.com/v1/forecast`}")
+    protected String openMeteoUrl;
+
+    @Value("${meteo-zodiac.open-meteo.batch-size:100}")
+    protected int openMeteoBatchSize;
+
+    @Value("${meteo-zodiac.open-meteo.concurrency:4}")
+    protected int openMeteoConcurrency;
+
+    @Value("${meteo-zodiac.pipeline.window-size:100}")
+    protected int pipelineWindowSize;
+
+    @Value("${meteo-zodiac.pipeline.window-concurrency:2}")
+    protected int pipelineWindowConcurrency;
+
+    @Value("${meteo-zodiac.bulk.concurrency:8}")
+    protected int bulkConcurrency;
+
+    @Value("${meteo-zodiac.bulk.allowed-tenants:}")
+    protected List<String> bulkAllowedTenants;
+
+    @Value("${meteo-zodiac.logs.capacity:10000}")
+    protected int logsCapacity;
+
+    @Value("${meteo-zodiac.logs.overflow:drop-oldest}")
+    protected String logsOverflow;
+
+    @Value("${meteo-zodiac.logs.batch-size:512}")
+    protected int logsBatchSize;
+
+    @Value("${meteo-zodiac.logs.batch-bytes:1048576}")
+    protected long logsBatchBytes;
+
+    @Value("${meteo-zodiac.logs.flush-interval:5s}")
+    protected Duration logsFlushInterval;
+
+    @Value("${meteo-zodiac.export.max-request-bytes:1048576}")
+    protected int exportMaxRequestBytes;
+
+    @Value("${meteo-zodiac.export.max-request-points:5000}")
+    protected int exportMaxRequestPoints;
+
+    @Value("${meteo-zodiac.export.chunk-concurrency:4}")
+    protected int exportChunkConcurrency;
+
+    @Value("${meteo-zodiac.spool.replay-batch:64}")
+    protected int spoolReplayBatch;
+
+    @Value("${meteo-zodiac.backfill.enabled:true}")
+    protected boolean backfillEnabled;
+
+    @Value("${meteo-zodiac.backfill.max-window:24h}")
+    protected Duration backfillMaxWindow;
+
+    @Value("${meteo-zodiac.backfill.batch-size:20}")
+    protected int backfillBatchSize;
+
+    @Value("${meteo-zodiac.backfill.max-points:100000}")
+    protected long backfillMaxPoints;
+
+    @Value("${meteo-zodiac.forecast.days:0}")
+    protected int forecastDays;
+
+    @Value("${meteo-zodiac.forecast.max-request-points:50000}")
+    protected int forecastMaxRequestPoints;
 
     @Inject
-    public MeteoZodiacFunction(ReactorHttpClient httpClient, MeteoContext meteoContext) {
+    public MeteoZodiacFunction(ReactorHttpClient httpClient,
+                               OtlpExporterCache exporterCache, WeatherCache weatherCache,
+                               WeatherRequestCoalescer weatherRequestCoalescer,
+                               ConfigCache configCache, LocationSnapshotCache locationSnapshotCache,
+                               JsonMapper jsonMapper, PipelineMetrics metrics, StageScheduler stageScheduler,
+                               OtlpDispatcher dispatcher, MetricSpool spool, ExportHistory exportHistory) {
         this.httpClient = httpClient;
-        this.meteoContext = meteoContext;
+        this.exporterCache = exporterCache;
+        this.weatherCache = weatherCache;
+        this.weatherRequestCoalescer = weatherRequestCoalescer;
+        this.configCache = configCache;
+        this.locationSnapshotCache = locationSnapshotCache;
+        this.jsonMapper = jsonMapper;
+        this.metrics = metrics;
+        this.stageScheduler = stageScheduler;
+        this.dispatcher = dispatcher;
+        this.spool = spool;
+        this.exportHistory = exportHistory;
     }
 
     /**
@@ -109,37 +208,311 @@ public class MeteoZodiacFunction {
      */
     @Post
     public Flux<String> reportMeteoData(HttpHeaders headers) {
-        meteoContext.setHeaders(headers);
+        var context = new MeteoContext(headers);
 
-        log(Level.INFO, "trigger received", Map.of("headers", headers.asMap()), null);
+        log(context, Level.INFO, "trigger received", () -> Map.of("headers", headers.asMap()), null);
 
-        return fetchConfig()
-                .flatMap((Function<Config, Publisher<String>>) config -> initLogging(config))
-                .flatMap((Function<String, Publisher<List<Location>>>) unused -> fetchLocations())
-                .flatMap((Function<List<Location>, Publisher<List<OpenMeteoResponse>>>) this::fetchOpenMeteoData)
-                .flatMap((Function<List<OpenMeteoResponse>, Publisher<List<MetricData>>>) this::prepareMetricData)
-                .flatMap((Function<List<MetricData>, Publisher<String>>) this::exportMetricData)
-                .flatMap((Function<String, Publisher<String>>) unused -> exportLogs())
+        var trigger = metrics.stage(PipelineMetrics.FETCH_CONFIG, context, fetchConfig(context))
+                .flatMap((Function<Config, Publisher<String>>) config ->
+                        metrics.stage(PipelineMetrics.INIT_LOGGING, context, initLogging(context, config)))
+                .flatMap((Function<String, Publisher<String>>) unused -> processLocations(context))
+                .flatMap((Function<String, Publisher<String>>) unused -> replaySpool(context))
+                .flatMap((Function<String, Publisher<String>>) unused -> exportLogs(context))
                 .flatMap((Function<String, Publisher<String>>) unused -> Flux.just("ok"))
                 .onErrorResume(throwable -> {
-                    log(Level.ERROR, "processing error", Map.of(), throwable);
-                    return Flux.just("error");
+                    log(context, Level.ERROR, "processing error", throwable);
+                    return exportLogs(context).onErrorComplete().thenMany(Flux.just("error"));
+                })
+                // cancelled run (e.g. the trigger disconnected) must not leave the periodic log export running
+                .doFinally(signal -> closeRun(context));
+
+        return metrics.trigger("single", context, trigger);
+    }
+
+    /**
+     * Bulk variant of {@link #reportMeteoData(HttpHeaders)}, processes multiple tenants within a single HTTP request.
+     * <p>
+     * Request body is a list of header sets, each of them defines single tenant the same way as headers of the cron
+     * trigger do (i.e. {@code layer-id}, {@code layer-type}, {@code appd-cpty}, {@code appd-cpid}). Processing has
+     * three phases:
+     * <ol>
+     *     <li>config and locations are loaded for all tenants, at most {@code meteo-zodiac.bulk.concurrency} tenants
+     *     at the same time,</li>
+     *     <li>coordinates are deduplicated across tenants and fetched from open-meteo service in shared batches,</li>
+     *     <li>weather data are fanned out back to tenants, each tenant exports its metrics and logs with its own
+     *     headers (and therefore with its own OTLP exporter).</li>
+     * </ol>
+     * Failure of a single tenant doesn't affect other tenants.
+     * <p>
+     * Tenant identities come from the request body, not from the platform, so they are not trusted as they are: a
+     * tenant is processed only on behalf of the calling principal ({@code appd-cpid} and {@code appd-cpty} of the
+     * tenant are the same as of the bulk request), and only when it's the tenant of the bulk request itself or its
+     * {@code layer-id} is listed in {@code meteo-zodiac.bulk.allowed-tenants}. Other tenants are reported as
+     * "forbidden" and not processed at all, see {@link #isBulkTenantAllowed}.
+     *
+     * @param headers headers of the bulk request, identity of the caller; used also for local logging and open-meteo
+     *                requests.
+     * @param tenants header sets of tenants to be processed.
+     * @return status of each tenant ("ok", "error" or "forbidden"), keyed by {@code layer-id}.
+     */
+    @Post("/bulk")
+    public Mono<Map<String, String>> reportMeteoDataBulk(HttpHeaders headers,
+                                                         @io.micronaut.http.annotation.Body
+                                                         List<Map<String, String>> tenants) {
+        var bulkContext = new MeteoContext(headers);
+
+        log(bulkContext, Level.INFO, "bulk trigger received", () -> Map.of("tenants.count", tenants.size()), null);
+
+        var concurrency = Math.max(1, bulkConcurrency);
+        var contexts = new ArrayList<MeteoContext>();
+        var forbidden = new ArrayList<String>();
+        for (var tenantHeaders : tenants) {
+            var context = new MeteoContext(new SimpleHttpHeaders(tenantHeaders, ConversionService.SHARED));
+            if (isBulkTenantAllowed(headers, context.getHeaders(), bulkAllowedTenants)) {
+                contexts.add(context);
+            } else {
+                forbidden.add(String.valueOf(context.getHeaders().get("layer-id")));
+            }
+        }
+        if (!forbidden.isEmpty()) {
+            log(bulkContext, Level.WARN, "bulk tenants not allowed", () -> Map.of("tenants", forbidden), null);
+        }
+
+        var bulk = Flux.fromIterable(contexts)
+                .flatMap(this::loadTenant, concurrency)
+                .collectList()
+                .flatMap(runs -> {
+                    // the same coordinates are requested only once, even when they are tracked by multiple tenants
+                    var distinct = new LinkedHashMap<Coordinates, TrackedLocation>();
+                    runs.forEach(run -> run.locations().forEach(location ->
+                            distinct.putIfAbsent(Coordinates.of(location), location)));
+                    var locations = List.copyOf(distinct.values());
+                    // single request per location serves all tenants, each of them exports only its own selection
+                    var variables = runs.stream()
+                            .filter(TenantRun::loaded)
+                            .map(run -> run.context().getVariables())
+                            .reduce(WeatherVariables::union)
+                            .orElse(WeatherVariables.ALL);
+
+                    log(bulkContext, Level.INFO, "bulk locations", () -> Map.of(
+                            "tenants.count", runs.size(),
+                            "locations.count", runs.stream().mapToInt(run -> run.locations().size()).sum(),
+                            "locations.distinct", locations.size()), null);
+
+                    return metrics.stage(PipelineMetrics.FETCH_OPEN_METEO_DATA, bulkContext,
+                                    fetchOpenMeteoData(bulkContext, locations, variables, 0))
+                            .next()
+                            .map(responses -> {
+                                var weather = new HashMap<Coordinates, WeatherBatch.Row>();
+                                for (int i = 0; i < locations.size(); i++) {
+                                    weather.put(Coordinates.of(locations.get(i)), responses.get(i));
+                                }
+                                return weather;
+                            })
+                            .defaultIfEmpty(new HashMap<>())
+                            .onErrorResume(throwable -> {
+                                log(bulkContext, Level.ERROR, "open meteo error", throwable);
+                                return Mono.just(new HashMap<>());
+                            })
+                            .flatMapMany(weather -> Flux.fromIterable(runs)
+                                    .flatMap(run -> exportTenant(run, weather), concurrency))
+                            .collectMap(Map.Entry::getKey, Map.Entry::getValue);
+                })
+                .map(statuses -> {
+                    Map<String, String> result = new LinkedHashMap<>(statuses);
+                    forbidden.forEach(tenant -> result.putIfAbsent(tenant, "forbidden"));
+                    return result;
+                })
+                .doFinally(signal -> contexts.forEach(this::closeRun));
+
+        return metrics.trigger("bulk", bulkContext, bulk);
+    }
+
+    /**
+     * Check tenant of the bulk request against the identity of the caller.
+     *
+     * @param caller         headers of the bulk request.
+     * @param tenant         headers of the tenant, from the body of the bulk request.
+     * @param allowedTenants {@code layer-id}s which may be processed by a bulk request of another tenant.
+     * @return {@code true} when the tenant has the principal of the caller, and it is either the tenant of the caller
+     * or an allowed one.
+     */
+    static boolean isBulkTenantAllowed(HttpHeaders caller, HttpHeaders tenant, List<String> allowedTenants) {
+        var principalId = caller.get("appd-cpid");
+        if (principalId == null
+                || !principalId.equals(tenant.get("appd-cpid"))
+                || !Objects.equals(caller.get("appd-cpty"), tenant.get("appd-cpty"))) {
+            return false;
+        }
+
+        var layerId = tenant.get("layer-id");
+        if (layerId == null || layerId.isBlank()) {
+            return false;
+        }
+        var callerTenant = layerId.equals(caller.get("layer-id"))
+                && Objects.equals(caller.get("layer-type"), tenant.get("layer-type"));
+        return callerTenant || allowedTenants != null && allowedTenants.contains(layerId);
+    }
+
+    /**
+     * Load config and locations of a single tenant of the bulk request.
+     *
+     * @return loaded tenant; tenant without config is still emitted, so its status can be reported.
+     */
+    private Mono<TenantRun> loadTenant(MeteoContext context) {
+        return metrics.stage(PipelineMetrics.FETCH_CONFIG, context, fetchConfig(context))
+                .flatMap((Function<Config, Publisher<String>>) config ->
+                        metrics.stage(PipelineMetrics.INIT_LOGGING, context, initLogging(context, config)))
+                .flatMap((Function<String, Publisher<TrackedLocation>>) unused -> fetchLocations(context))
+                .collectList()
+                .map(locations -> new TenantRun(context, locations, context.getConfig() != null))
+                .onErrorResume(throwable -> {
+                    log(context, Level.ERROR, "processing error", throwable);
+                    return Mono.just(new TenantRun(context, List.of(), false));
+                });
+    }
+
+    /**
+     * Convert and export weather data of a single tenant of the bulk request.
+     *
+     * @param run     loaded tenant.
+     * @param weather weather data fetched for all tenants.
+     * @return {@code layer-id} of the tenant and its status.
+     */
+    private Mono<Map.Entry<String, String>> exportTenant(TenantRun run, Map<Coordinates, WeatherBatch.Row> weather) {
+        var context = run.context();
+        var tenant = String.valueOf(context.getHeaders().get("layer-id"));
+
+        if (!run.loaded()) {
+            return exportLogs(context).onErrorComplete().then(Mono.just(Map.entry(tenant, "error")));
+        }
+
+        var windowSize = pipelineWindowSize > 0 ? pipelineWindowSize : Integer.MAX_VALUE;
+
+        return Flux.fromIterable(run.locations())
+                .buffer(windowSize)
+                // a failed window doesn't stop export of the others, the tenant fails once all are done
+                .concatMapDelayError(window -> {
+                    var responses = window.stream().map(location -> weather.get(Coordinates.of(location))).toList();
+                    if (responses.contains(null)) {
+                        return Flux.error(new IllegalStateException("Missing open meteo data"));
+                    }
+                    return processWindow(context, window, responses);
+                })
+                .thenMany(replaySpool(context))
+                .thenMany(exportLogs(context))
+                .then(Mono.just(Map.entry(tenant, "ok")))
+                .onErrorResume(throwable -> {
+                    log(context, Level.ERROR, "processing error", throwable);
+                    return exportLogs(context).onErrorComplete().then(Mono.just(Map.entry(tenant, "error")));
                 });
     }
 
+    /**
+     * Single tenant of the bulk request.
+     *
+     * @param context   context of the tenant.
+     * @param locations all locations of the tenant.
+     * @param loaded    whether the tenant was loaded successfully.
+     */
+    private record TenantRun(MeteoContext context, List<TrackedLocation> locations, boolean loaded) {
+    }
+
+    /**
+     * Exact coordinates of a location, used to deduplicate locations across tenants.
+     */
+    private record Coordinates(double latitude, double longitude) {
+
+        static Coordinates of(TrackedLocation location) {
+            return new Coordinates(location.getLocation().getLatitude(), location.getLocation().getLongitude());
+        }
+    }
+
+    /**
+     * Stream locations through fetch, convert and export stages.
+     * <p>
+     * Locations are grouped to windows of {@code meteo-zodiac.pipeline.window-size} locations (non-positive value
+     * means single window containing all locations of the tenant) and each window is processed as a unit - weather
+     * data are fetched, converted to metrics and exported before the window is released. At most
+     * {@code meteo-zodiac.pipeline.window-concurrency} windows are processed at the same time; the demand is
+     * propagated upstream, so locations are read from the Knowledge store only as fast as windows are exported.
+     * A failed window doesn't stop the others, the run fails once all windows are done.
+     *
+     * @return simple status message, emitted once all windows are exported.
+     */
+    private Flux<String> processLocations(MeteoContext context) {
+
+        var windowSize = pipelineWindowSize > 0 ? pipelineWindowSize : Integer.MAX_VALUE;
+
+        return fetchLocations(context)
+                .buffer(windowSize)
+                .flatMapDelayError(window -> metrics.stage(PipelineMetrics.FETCH_OPEN_METEO_DATA, context,
+                                        fetchOpenMeteoData(context, window, context.getVariables(), 0))
+                                .flatMap((Function<List<WeatherBatch.Row>, Publisher<String>>)
+                                        openMeteoResponses -> processWindow(context, window, openMeteoResponses)),
+                        Math.max(1, pipelineWindowConcurrency), 1)
+                .then(Mono.just("ok"))
+                .flux();
+    }
+
     /**
      * Fetch object {@code meteodata:meteoConfig/meteodata:config}, which contains info about the log level.
      * <p>
      * Only messages with same or "higher" log level will be reported back; when a log level is "OFF" (default), then
      * no logs are reported to the platform.
+     * <p>
+     * Config is cached per tenant ({@link ConfigCache}), the Knowledge store is called only for the very first run of
+     * the tenant. Once the cached config is stale, it's still used for the run, but revalidated in the background
+     * with a conditional request.
      *
      * @return effective config valid for this run.
      */
-    private Flux<Config> fetchConfig() {
+    private Flux<Config> fetchConfig(MeteoContext context) {
+
+        log(context, Level.DEBUG, "fetchConfig", null);
+
+        var headers = context.getHeaders();
+        var key = TenantKey.of(headers);
+        var cached = configCache.get(key);
+
+        if (cached != null) {
+            if (cached.isStale() && cached.tryStartRefresh()) {
+                // stale config is good enough for this run, refresh is not on the critical path.
+                requestConfig(key, headers, cached)
+                        .subscribe(
+                                config -> LOGGER.debug("config refreshed: {}", config),
+                                throwable -> {
+                                    cached.refreshFailed();
+                                    LOGGER.warn("config refresh error", throwable);
+                                });
+            }
 
-        log(Level.DEBUG, "fetchConfig", Map.of(), null);
+            log(context, Level.DEBUG, "cached config", () -> Map.of("config", cached.getConfig()), null);
 
-        var headers = meteoContext.getHeaders();
+            context.setConfig(cached.getConfig());
+            return Flux.just(cached.getConfig());
+        }
+
+        return requestConfig(key, headers, null)
+                .doOnNext(context::setConfig)
+                .flux()
+                .onErrorResume(throwable -> {
+                    log(context, Level.ERROR, "config response error", throwable);
+                    return Flux.empty();
+                });
+    }
+
+    /**
+     * Request config from the Knowledge store and store it in the {@link ConfigCache}.
+     * <p>
+     * This may run in the background, outside of the request scope, so it logs only locally.
+     *
+     * @param key     tenant.
+     * @param headers headers of the cron trigger.
+     * @param cached  cached config to be revalidated, {@code null} when there is none.
+     * @return received (or revalidated) config.
+     */
+    private Mono<Config> requestConfig(TenantKey key, HttpHeaders headers, ConfigCache.Entry cached) {
 
         var req = HttpRequest.GET(
                         UriBuilder.of(jsonStoreUrl).path("v1/objects/meteodata:meteoConfig/meteodata:config")
@@ -148,25 +521,28 @@ public class MeteoZodiacFunction {
                 .headers(entries -> addPropagatedHeaders(entries, headers))
                 .accept(MediaType.APPLICATION_JSON);
 
-        log(Level.DEBUG, "config request", Map.of("request", req), null);
-        log(Level.DEBUG, "config request headers", Map.of("headers", req.getHeaders().asMap()), null);
+        if (cached != null && cached.getEtag() != null) {
+            req.header(HttpHeaders.IF_NONE_MATCH, cached.getEtag());
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("config request: {}, headers: {}", req, req.getHeaders().asMap());
+        }
 
-        var res = httpClient.exchange(req, ConfigResponseWrapper.class);
+        return httpClient.exchange(req, ConfigResponseWrapper.class)
+                .map(configResponse -> {
+                    LOGGER.debug("config response status: {}", configResponse.getStatus());
+
+                    if (cached != null && configResponse.getStatus() == HttpStatus.NOT_MODIFIED) {
+                        return configCache.revalidated(key, cached).getConfig();
+                    }
 
-        return res.flux()
-                .flatMap((Function<HttpResponse<ConfigResponseWrapper>, Publisher<Config>>) configResponse -> {
                     ConfigResponseWrapper body = configResponse.body();
 
-                    log(Level.DEBUG, "config response status", Map.of("status", configResponse.getStatus()), null);
-                    log(Level.DEBUG, "config response body", Map.of("body", body), null);
+                    LOGGER.debug("config response body: {}", body);
 
-                    Config config = body.getConfig();
-                    meteoContext.setConfig(config);
-                    return Flux.just(config);
-                })
-                .onErrorResume(throwable -> {
-                    log(Level.ERROR, "config response error", Map.of(), throwable);
-                    return Flux.empty();
+                    return configCache.put(key, body.getConfig(), configResponse.getHeaders().get(HttpHeaders.ETAG))
+                            .getConfig();
                 });
     }
 
@@ -178,535 +554,905 @@ public class MeteoZodiacFunction {
      * @return simple status message, which is not consumed, it's there only to enable other stages of the Flux
      * pipeline.
      */
-    private Flux<String> initLogging(Config config) {
+    private Flux<String> initLogging(MeteoContext context, Config config) {
 
-        log(Level.DEBUG, "initLogging", Map.of(), null);
+        log(context, Level.DEBUG, "initLogging", null);
 
-        return Mono.fromCallable(() -> {
+        // creating the log exporter (gRPC channel) of the tenant blocks
+        return stageScheduler.offload(Mono.fromCallable(() -> {
             if (config != null && Config.LogLevel.OFF != config.getLogLevel()) {
-                var headers = meteoContext.getHeaders();
-
-                var logRecordExporterBuilder = OtlpGrpcLogRecordExporter.builder();
-                headers.forEach((headerName, headerValues) -> {
-                    if (PROPAGATED_HEADERS.contains(headerName.toLowerCase())) {
-                        headerValues.forEach(headerValue -> logRecordExporterBuilder.addHeader(headerName,
-                                headerValue));
-                    }
-                });
+                var buffer = new LogRecordBuffer(logsCapacity, LogRecordBuffer.OverflowPolicy.parse(logsOverflow),
+                        logsBatchSize, logsBatchBytes);
+
+                // records are exported in batches while the run is in progress, see exportLogs for the final flush
+                var sender = context.getExporters(exporterCache).logRecordExporter();
+                context.setLogExporter(new BackgroundLogExporter(
+                        logs -> dispatcher.export(sender, LogsRequestMarshaler.create(logs), OtlpDispatcher.SIGNAL_LOGS,
+                                context),
+                        dropped -> metrics.logsDropped(context, dropped),
+                        buffer, LOG_RESOURCE, logsFlushInterval, Schedulers.parallel()));
+            }
 
-                // Call to platform ingestion requires additional headers (TODO?)
-                logRecordExporterBuilder.addHeader("appd-pid", headers.get("appd-cpid"));
-                logRecordExporterBuilder.addHeader("appd-pty", headers.get("appd-cpty"));
-                logRecordExporterBuilder.addHeader("appd-tid", headers.get("layer-id"));
-
-                meteoContext.setLogRecordExporter(logRecordExporterBuilder.setEndpoint("http://" + cisUrl).build());
-                meteoContext.setLogResource(
-                        Resource.builder()
-                                .put("meteodata.name", "meteodata")
-                                .put("telemetry.sdk.name", "SOLUTION_PREFIX")
-                                .build());
+            // reported once the log exporter exists, so that the tenant sees its misconfiguration
+            var unknownVariables = config == null ? List.<String>of() : WeatherVariables.unknown(config.getVariables());
+            if (!unknownVariables.isEmpty()) {
+                log(context, Level.WARN, "unknown weather variables", () -> Map.of(
+                        "variables.unknown", unknownVariables,
+                        "variables.selected", context.getVariables().query()), null);
             }
 
             return "ok";
-        }).flux();
+        })).flux();
     }
 
     /**
      * Fetch location from the Knowledge store, for which the request to open-meteo service will be issued.
+     * <p>
+     * Locations are read page by page ({@code meteo-zodiac.locations.page-size} objects per page), following the
+     * cursor from {@code _links.next}. Number of pages is planned from the {@code total} reported with the first
+     * page, so the pagination can't run away when the Knowledge store keeps returning a cursor; locations added
+     * while the run reads the pages are covered by {@link #LOCATION_PAGES_OVERRUN} more pages. When a cursor is still
+     * returned after that, the rest is skipped with a warning and counted as
+     * {@code meteodata.locations.skipped_pages}. Locations are emitted as soon as their page is received, the next
+     * page is requested at the same time.
+     * <p>
+     * Failed page fails the run, even when the previous pages were already emitted (and are being exported), so that
+     * a partially read tenant isn't reported as processed.
+     * <p>
+     * Pages are revalidated against the {@link LocationSnapshotCache}, unchanged pages are not decoded and their
+     * tracked locations are reused. Snapshot is replaced only when all pages were read.
      *
-     * @return list of locations from the Knowledge store.
+     * @return stream of locations from the Knowledge store.
      */
-    private Flux<List<Location>> fetchLocations() {
+    private Flux<TrackedLocation> fetchLocations(MeteoContext context) {
 
-        log(Level.DEBUG, "fetchLocations", Map.of(), null);
+        log(context, Level.DEBUG, "fetchLocations", null);
 
-        var headers = meteoContext.getHeaders();
+        var key = TenantKey.of(context.getHeaders());
+        var previous = locationSnapshotCache.get(key);
+        // pages are fetched one after another, no need to synchronize
+        var pages = new ArrayList<LocationSnapshotCache.Page>();
+        var changed = new AtomicBoolean();
 
-        var req = HttpRequest.GET(
-                        UriBuilder.of(jsonStoreUrl).path("v1/objects/meteodata:meteoLocation")
-                                .queryParam("max", 999)
-                                .build())
+        return fetchLocationPage(context, null, 0, 0, previous)
+                .expand(page -> {
+                    var cursor = page.page().nextCursor();
+                    if (cursor == null) {
+                        return Mono.empty();
+                    }
+                    var next = page.index() + 1;
+                    if (!isLocationPageAllowed(next, page.pageCount())) {
+                        var skipped = skippedLocationPages(next, page.page().total(), locationsPageSize);
+                        metrics.locationPagesSkipped(context, skipped);
+                        log(context, Level.WARN, "locations truncated", () -> Map.of(
+                                "pages", next,
+                                "pages.planned", page.pageCount(),
+                                "pages.skipped", skipped,
+                                "total", page.page().total()), null);
+                        return Mono.empty();
+                    }
+                    return fetchLocationPage(context, cursor, next, page.pageCount(), previous);
+                })
+                .doOnNext(page -> {
+                    pages.add(page.page());
+                    changed.compareAndSet(false, page.changed());
+                })
+                .doOnComplete(() -> {
+                    var snapshot = new LocationSnapshotCache.Snapshot(pages);
+                    if (previous == null || changed.get() || previous.getPages().size() != pages.size()) {
+                        logLocationChanges(context, previous, snapshot);
+                    }
+                    locationSnapshotCache.put(key, snapshot);
+                })
+                .flatMapIterable(page -> page.page().locations())
+                .doOnError(throwable -> log(context, Level.ERROR, "locations response error", throwable));
+    }
+
+    /**
+     * @param index     index of the page to be requested.
+     * @param pageCount number of pages planned from the {@code total} of the first page.
+     * @return {@code true} when the page may be requested, i.e. it's a planned one or within the overrun.
+     */
+    static boolean isLocationPageAllowed(int index, int pageCount) {
+        return index < pageCount + LOCATION_PAGES_OVERRUN;
+    }
+
+    /**
+     * @param read     number of pages read by the run.
+     * @param total    number of locations reported with the last read page.
+     * @param pageSize configured page size.
+     * @return number of pages not read, at least 1 (the Knowledge store returned a cursor).
+     */
+    static int skippedLocationPages(int read, int total, int pageSize) {
+        var size = Math.max(1, pageSize);
+        return Math.max(1, (total + size - 1) / size - read);
+    }
+
+    /**
+     * Fetch single page of {@code meteodata:meteoLocation} objects.
+     *
+     * @param cursor    cursor returned with the previous page, {@code null} for the first page.
+     * @param index     index of the page, starting with 0.
+     * @param pageCount number of pages planned for this run, 0 when not known yet (first page).
+     * @param previous  snapshot stored by the previous run, can be {@code null}.
+     * @return received page.
+     */
+    private Mono<LocationPage> fetchLocationPage(MeteoContext context, String cursor, int index, int pageCount,
+                                                 LocationSnapshotCache.Snapshot previous) {
+
+        var headers = context.getHeaders();
+        var pageSize = Math.max(1, locationsPageSize);
+        var previousPage = previous != null ? previous.page(index) : null;
+
+        var uriBuilder = UriBuilder.of(jsonStoreUrl).path("v1/objects/meteodata:meteoLocation")
+                .queryParam("max", pageSize);
+        if (cursor != null) {
+            uriBuilder.queryParam("cursor", cursor);
+        }
+
+        var req = HttpRequest.GET(uriBuilder.build())
                 .headers(entries -> addPropagatedHeaders(entries, headers))
                 .accept(MediaType.APPLICATION_JSON);
 
-        log(Level.DEBUG, "locations request", Map.of("request", req), null);
-        log(Level.DEBUG, "locations request headers", Map.of("headers", req.getHeaders().asMap()), null);
+        if (previousPage != null && previousPage.etag() != null) {
+            req.header(HttpHeaders.IF_NONE_MATCH, previousPage.etag());
+        }
 
-        var res = httpClient.exchange(req, LocationResponseWrapper.class);
+        log(context, Level.DEBUG, "locations request", () -> Map.of("request", req, "page", index), null);
+        log(context, Level.DEBUG, "locations request headers", () -> Map.of("headers", req.getHeaders().asMap()), null);
 
-        return res.flux()
-                .flatMap(
-                        (Function<HttpResponse<LocationResponseWrapper>, Publisher<List<Location>>>) locationResponse -> {
-                            LocationResponseWrapper body = locationResponse.body();
+        return metrics.stage(PipelineMetrics.FETCH_LOCATIONS, context, httpClient.exchange(req, byte[].class))
+                .map(locationResponse -> {
+                    log(context, Level.DEBUG, "locations response status",
+                            () -> Map.of("status", locationResponse.getStatus(), "page", index), null);
 
-                            log(Level.DEBUG, "locations response status",
-                                    Map.of("status", locationResponse.getStatus()), null);
-                            log(Level.DEBUG, "locations response body", Map.of("body", body), null);
+                    var etag = locationResponse.getHeaders().get(HttpHeaders.ETAG);
+                    var changed = false;
+                    LocationSnapshotCache.Page page;
 
-                            meteoContext.setLocations(body.getItems().stream()
-                                    .map(LocationResponseWrapper.Item::getKnowledgeLocation)
-                                    .toList());
+                    if (previousPage != null && locationResponse.getStatus() == HttpStatus.NOT_MODIFIED) {
+                        page = previousPage.withEtag(etag);
+                    } else {
+                        var content = locationResponse.getBody().orElse(new byte[0]);
+                        metrics.bytes(PipelineMetrics.FETCH_LOCATIONS, context, content.length);
+                        var hash = LocationSnapshotCache.hash(content);
 
-                            log(Level.INFO, "received locations", Map.of("locations", meteoContext.getLocations()),
-                                    null);
+                        if (previousPage != null && Arrays.equals(hash, previousPage.hash())) {
+                            page = previousPage.withEtag(etag);
+                        } else {
+                            page = decodeLocationPage(context, content, hash, etag, previous);
+                            changed = true;
+                        }
+                    }
 
-                            return Flux.just(meteoContext.getLocations());
-                        })
-                .onErrorResume(throwable -> {
-                    log(Level.ERROR, "locations response error", Map.of(), throwable);
-                    return Flux.just(List.of());
+                    var plannedPageCount = pageCount > 0
+                            ? pageCount
+                            : Math.max(1, (page.total() + pageSize - 1) / pageSize);
+
+                    var locationPage = new LocationPage(index, plannedPageCount, page, changed);
+                    metrics.items(PipelineMetrics.FETCH_LOCATIONS, context, page.locations().size());
+
+                    log(context, Level.INFO, "received locations", () -> Map.of(
+                            "page", index,
+                            "pages", plannedPageCount,
+                            "total", locationPage.page().total(),
+                            "changed", locationPage.changed(),
+                            "locations", locationPage.page().locations()), null);
+
+                    return locationPage;
                 });
     }
 
     /**
-     * Process locations, construct a request to open-meteo service and return the result.
+     * Decode changed page of {@code meteodata:meteoLocation} objects. Locations which were already tracked by the
+     * previous snapshot are reused.
+     */
+    private LocationSnapshotCache.Page decodeLocationPage(MeteoContext context, byte[] content, byte[] hash,
+                                                         String etag, LocationSnapshotCache.Snapshot previous) {
+        LocationResponseWrapper body;
+        try {
+            body = jsonMapper.readValue(content, LocationResponseWrapper.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        log(context, Level.DEBUG, "locations response body", () -> Map.of("body", body), null);
+
+        var locations = body.getItems().stream()
+                .map(LocationResponseWrapper.Item::getKnowledgeLocation)
+                .map(location -> previous != null ? previous.track(location) : new TrackedLocation(location))
+                .toList();
+
+        return new LocationSnapshotCache.Page(etag, hash, body.getTotal(), body.getNextCursor(), locations);
+    }
+
+    private void logLocationChanges(MeteoContext context, LocationSnapshotCache.Snapshot previous,
+                                    LocationSnapshotCache.Snapshot current) {
+        var before = new HashSet<TrackedLocation>();
+        if (previous != null) {
+            previous.getPages().forEach(page -> before.addAll(page.locations()));
+        }
+        var after = new HashSet<TrackedLocation>();
+        current.getPages().forEach(page -> after.addAll(page.locations()));
+
+        var added = after.stream().filter(location -> !before.contains(location)).count();
+        var removed = before.stream().filter(location -> !after.contains(location)).count();
+
+        log(context, Level.INFO, "locations changed", () -> Map.of(
+                "locations.count", after.size(),
+                "locations.added", added,
+                "locations.removed", removed), null);
+    }
+
+    /**
+     * Single received page of {@code meteodata:meteoLocation} objects.
+     *
+     * @param index     index of the page, starting with 0.
+     * @param pageCount number of pages planned for this run.
+     * @param page      page content.
+     * @param changed   whether the page was changed since the previous run.
+     */
+    private record LocationPage(int index, int pageCount, LocationSnapshotCache.Page page, boolean changed) {
+    }
+
+    /**
+     * Process locations, construct requests to open-meteo service and return the result.
+     * <p>
+     * Responses are looked up in the {@link WeatherCache} first, only locations which are not cached for the current
+     * interval are requested (locations within the same grid cell are requested only once). When other run is
+     * already fetching the same grid cell, its pending response is used instead of issuing another request (see
+     * {@link WeatherRequestCoalescer}). Remaining locations are split into batches of at most
+     * {@code meteo-zodiac.open-meteo.batch-size} locations (non-positive value means single request for all
+     * locations), up to {@code meteo-zodiac.open-meteo.concurrency} batches are fetched concurrently. Responses are
+     * merged back in the same order as locations, so the n-th response still belongs to the n-th location.
+     * <p>
+     * Hourly forecast goes the same way, it's cached per number of forecast days in hourly slots (see
+     * {@link WeatherCache#forecastSlot()}) and its batches are bounded by
+     * {@code meteo-zodiac.forecast.max-request-points} values, fetched one at a time.
      *
      * @param locations list of locations retrieved in the Knowledge store.
+     * @param variables weather variables to be requested, responses are cached per selection of variables.
+     * @param days      number of forecast days, {@code 0} for current weather.
      * @return open-meteo response containing data points for metrics like temperature, pressure, is_day and others.
      */
-    private Flux<List<OpenMeteoResponse>> fetchOpenMeteoData(List<Location> locations) {
-
-        log(Level.DEBUG, "fetchOpenMeteoData", Map.of(), null);
-
-        return Mono.fromCallable((Callable<Mono<HttpResponse<List<OpenMeteoResponse>>>>) () -> {
-                    // batch query to Open Meteo API is implemented as providing list of latitudes and longitudes
-                    var latitudes = locations.stream()
-                            .map(location -> Double.toString(location.getLatitude()))
-                            .collect(Collectors.joining(","));
-                    var longitudes = locations.stream()
-                            .map(location -> Double.toString(location.getLongitude()))
-                            .collect(Collectors.joining(","));
-
-                    var req = HttpRequest.GET(UriBuilder.of("https://api.open-meteo.com/v1/forecast")
-                                    .queryParam("latitude", latitudes)
-                                    .queryParam("longitude", longitudes)
-                                    .queryParam("current",
-                                            "temperature_2m,relative_humidity_2m,apparent_temperature,is_day,"
-                                                    + "precipitation,rain,showers,snowfall,weather_code,"
-                                                    + "cloud_cover,"
-                                                    + "pressure_msl,surface_pressure,wind_speed_10m,"
-                                                    + "wind_direction_10m,"
-                                                    + "wind_gusts_10m")
-                                    .build())
-                            .accept(MediaType.APPLICATION_JSON_TYPE);
+    private Flux<List<WeatherBatch.Row>> fetchOpenMeteoData(MeteoContext context, List<TrackedLocation> locations,
+                                                            WeatherVariables variables, int days) {
 
-                    log(Level.DEBUG, "open meteo request", Map.of("request", req), null);
-                    log(Level.DEBUG, "open meteo request headers", Map.of("headers", req.getHeaders().asMap()),
-                            null);
+        log(context, Level.DEBUG, "fetchOpenMeteoData", null);
 
-                    // batch vs single response is a bit different, that's why the response need to be adjusted.
-                    //
-                    // also, if there are no meteoLocation objects in knowledge store, there is no need to call
-                    // Open Meteo API.
-                    if (locations.size() > 1) {
-                        return httpClient.exchange(req, Argument.listOf(OpenMeteoResponse.class));
-                    } else if (locations.size() == 1) {
-                        return httpClient.exchange(req, OpenMeteoResponse.class)
-                                .map(openMeteoResponseHttpResponse -> {
-                                    var body = openMeteoResponseHttpResponse.body();
-                                    return openMeteoResponseHttpResponse.toMutableResponse().body(List.of(body));
-                                });
-                    } else {
-                        return Mono.empty();
+        // if there are no meteoLocation objects in knowledge store, there is no need to call Open Meteo API.
+        if (locations.isEmpty()) {
+            return Flux.empty();
+        }
+
+        metrics.items(days > 0 ? PipelineMetrics.FETCH_FORECAST_DATA : PipelineMetrics.FETCH_OPEN_METEO_DATA, context,
+                locations.size());
+
+        var slot = days > 0 ? weatherCache.forecastSlot() : weatherCache.currentSlot();
+        var responses = new WeatherBatch.Row[locations.size()];
+        // cache key -> indexes of locations within the same grid cell, which are not cached
+        var missing = new LinkedHashMap<WeatherCache.CellKey, List<Integer>>();
+
+        for (int i = 0; i < locations.size(); i++) {
+            var location = locations.get(i).getLocation();
+            var key = weatherCache.key(location.getLatitude(), location.getLongitude(), slot, variables, days);
+            var cached = weatherCache.get(key);
+            if (cached != null) {
+                responses[i] = cached;
+            } else {
+                missing.computeIfAbsent(key, unused -> new ArrayList<>()).add(i);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            log(context, Level.DEBUG, "weather cache", () -> Map.of(
+                    "locations.count", locations.size(),
+                    "weather.cache.hits", weatherCache.getHitCount(),
+                    "weather.cache.misses", weatherCache.getMissCount()), null);
+
+            return Flux.just(Arrays.asList(responses));
+        }
+
+        var registrations = new ArrayList<WeatherRequestCoalescer.Registration>(missing.size());
+        var owned = new ArrayList<PendingCell>();
+
+        missing.forEach((key, indexes) -> {
+            var registration = weatherRequestCoalescer.register(key);
+            registrations.add(registration);
+
+            if (registration.owner()) {
+                // the cell might have been fetched by other run since the cache lookup
+                var cached = weatherCache.peek(key);
+                if (cached != null) {
+                    weatherRequestCoalescer.complete(registration, cached);
+                } else {
+                    owned.add(new PendingCell(registration, locations.get(indexes.get(0))));
+                }
+            }
+        });
+
+        log(context, Level.DEBUG, "weather cache", () -> Map.of(
+                "locations.count", locations.size(),
+                "locations.missing", missing.size(),
+                "locations.requested", owned.size(),
+                "weather.cache.hits", weatherCache.getHitCount(),
+                "weather.cache.misses", weatherCache.getMissCount(),
+                "weather.requests.issued", weatherRequestCoalescer.getIssuedCount(),
+                "weather.requests.coalesced", weatherRequestCoalescer.getCoalescedCount()), null);
+
+        var batchSize = days > 0 ? forecastBatchSize(variables)
+                : openMeteoBatchSize > 0 ? openMeteoBatchSize : owned.size();
+        var concurrency = days > 0 ? 1 : Math.max(1, openMeteoConcurrency);
+
+        return Flux.fromIterable(owned)
+                .buffer(Math.max(1, batchSize))
+                .flatMapSequential(cells -> fetchPendingCells(context, cells, variables, days), concurrency)
+                // batches which were not fetched at all (error in other batch, cancellation) must not block other runs
+                .doFinally(signalType -> owned.forEach(cell -> weatherRequestCoalescer.fail(cell.registration(),
+                        new CancellationException("open meteo request not completed"))))
+                .thenMany(Flux.fromIterable(registrations))
+                .concatMap(WeatherRequestCoalescer.Registration::response)
+                .collectList()
+                .map(fetched -> {
+                    for (int i = 0; i < registrations.size(); i++) {
+                        var response = fetched.get(i);
+                        missing.get(registrations.get(i).key()).forEach(index -> responses[index] = response);
                     }
+                    return Arrays.asList(responses);
                 })
-                .flatMap(
-                        (Function<Mono<HttpResponse<List<OpenMeteoResponse>>>, Mono<List<OpenMeteoResponse>>>) httpResponseMono ->
-                                httpResponseMono.flatMap(
-                                        (Function<HttpResponse<List<OpenMeteoResponse>>,
-                                                Mono<List<OpenMeteoResponse>>>) listHttpResponse ->
-                                        {
-                                            List<OpenMeteoResponse> body = listHttpResponse.body();
-
-                                            log(Level.DEBUG, "open meteo response status",
-                                                    Map.of("status", listHttpResponse.getStatus()),
-                                                    null);
-                                            log(Level.DEBUG, "open meteo response body", Map.of("body", body), null);
-
-                                            log(Level.INFO, "received open meteo data",
-                                                    Map.of("locations", body), null);
-
-                                            return Mono.just(body);
-                                        }))
                 .flux();
     }
 
     /**
-     * Parse metric data and convert them to OTEL format, ready to be exported.
+     * Fetch grid cells owned by this run, store responses in the {@link WeatherCache} and pass them to other runs
+     * waiting for the same cells.
      *
-     * @param openMeteoResponse response from open-meteo service.
-     * @return collection of metric data.
+     * @param cells     batch of cells, must not be empty.
+     * @param variables requested weather variables.
+     * @param days      number of forecast days, {@code 0} for current weather.
+     * @return completes when all cells are resolved.
      */
-    private Flux<List<MetricData>> prepareMetricData(List<OpenMeteoResponse> openMeteoResponse) {
+    private Mono<Void> fetchPendingCells(MeteoContext context, List<PendingCell> cells, WeatherVariables variables,
+                                         int days) {
+        var locations = cells.stream().map(PendingCell::location).toList();
+        Mono<WeatherBatch> fetch;
+        if (days > 0) {
+            fetch = fetchOpenMeteoBatch(context, PipelineMetrics.FETCH_FORECAST_DATA,
+                    openMeteoForecastUri(openMeteoUrl, locations, days, variables), locations.size(), days * 24, true,
+                    variables);
+        } else {
+            fetch = fetchOpenMeteoBatch(context, PipelineMetrics.FETCH_OPEN_METEO_DATA,
+                    openMeteoUri(openMeteoUrl, locations, variables), locations.size(), 1, false, variables);
+        }
 
-        log(Level.DEBUG, "prepareMetricData", Map.of(), null);
+        return fetch
+                .doOnNext(batch -> {
+                    if (batch.size() != cells.size()) {
+                        throw new IllegalStateException("Expected " + cells.size() + " open meteo responses, got "
+                                + batch.size());
+                    }
 
-        return Flux.create(listFluxSink -> {
-            log(Level.DEBUG, "generating metric data", Map.of(), null);
+                    for (int i = 0; i < cells.size(); i++) {
+                        var registration = cells.get(i).registration();
+                        var row = batch.row(i);
+                        weatherCache.put(registration.key(), row);
+                        weatherRequestCoalescer.complete(registration, row);
+                    }
+                })
+                .doOnError(throwable -> cells.forEach(cell -> weatherRequestCoalescer.fail(cell.registration(),
+                        throwable)))
+                .then();
+    }
 
-            try {
-                var locations = meteoContext.getLocations();
+    /**
+     * Grid cell, which needs to be fetched by this run.
+     *
+     * @param registration registration owned by this run.
+     * @param location     first location within the cell.
+     */
+    private record PendingCell(WeatherRequestCoalescer.Registration registration, TrackedLocation location) {
+    }
 
-                List<MetricData> metricData = new ArrayList<>();
+    /**
+     * Send a single request to open-meteo service for a batch of locations.
+     *
+     * @param stage     pipeline stage the response bytes are recorded to.
+     * @param uri       request URI, see {@link #openMeteoUri}, {@link #openMeteoBackfillUri} and
+     *                  {@link #openMeteoForecastUri}.
+     * @param locations number of requested locations.
+     * @param points    number of points of every location, {@code 1} for current weather.
+     * @param forecast  whether the request is for forecast.
+     * @param variables requested weather variables, only these are decoded.
+     * @return weather data, locations are in the same order as requested locations.
+     */
+    private Mono<WeatherBatch> fetchOpenMeteoBatch(MeteoContext context, String stage, URI uri, int locations,
+                                                   int points, boolean forecast, WeatherVariables variables) {
+
+        return Mono.defer(() -> {
+                    var req = HttpRequest.GET(uri)
+                            .accept(MediaType.APPLICATION_JSON_TYPE);
+
+                    log(context, Level.DEBUG, "open meteo request", () -> Map.of("request", req), null);
+                    log(context, Level.DEBUG, "open meteo request headers", () -> Map.of("headers", req.getHeaders().asMap()),
+                            null);
 
-                for (int i = 0; i < locations.size(); i++) {
-                    var location = locations.get(i);
-                    var weatherData = openMeteoResponse.get(i);
+                    // response is decoded by the streaming decoder, which handles both batch (array) and single
+                    // location (object) responses.
+                    return httpClient.exchange(req, byte[].class);
+                })
+                .map(response -> {
+                    log(context, Level.DEBUG, "open meteo response status", () -> Map.of("status", response.getStatus()),
+                            null);
 
-                    // OTEL resource to be mapped to FMM Entity. Each location has its own OTEL resource (and
-                    // consequently
-                    // entity as well)
-                    var resource = new ResourceBuilder()
-                            .put("location.name", location.getName())
-                            .put("location.latitude", location.getLatitude())
-                            .put("location.longitude", location.getLongitude())
-                            .put("location.elevation", weatherData.getElevation())
-                            .put("telemetry.sdk.name", "SOLUTION_PREFIX")
-                            .build();
+                    var content = response.getBody().orElse(new byte[0]);
+                    metrics.bytes(stage, context, content.length);
 
-                    var instant = Instant.parse(weatherData.getCurrent().getTime() + ":00Z");
-                    long epochNanos = instant.getEpochSecond() * 1_000_000_000 + instant.getNano();
+                    WeatherBatch batch;
+                    try {
+                        batch = new WeatherBatchDecoder(points, forecast, variables).decode(content, locations);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
 
-                    metricData.addAll(processLocation(resource, epochNanos, weatherData));
-                }
-                listFluxSink.next(metricData);
-            } catch (Exception e) {
-                listFluxSink.error(e);
-            } finally {
-                listFluxSink.complete();
+                    log(context, Level.INFO, "received open meteo data", () -> Map.of("locations.count", batch.size()),
+                            null);
+
+                    return batch;
+                });
+    }
+
+    /**
+     * Batch query to Open Meteo API is implemented as providing list of latitudes and longitudes.
+     *
+     * @param url       URL of the Open Meteo forecast API.
+     * @param locations batch of locations.
+     * @param variables requested weather variables.
+     * @return URI of the request for current weather of all the locations.
+     */
+    static URI openMeteoUri(String url, List<TrackedLocation> locations, WeatherVariables variables) {
+        return openMeteoQuery(url, locations)
+                .queryParam("current", variables.query())
+                .build();
+    }
+
+    /**
+     * Backfill query asks for 15-minute data ({@code minutely_15}) of the missed intervals, which is past data
+     * (analysis), not a forecast, when the gap lies in the past.
+     *
+     * @param url       URL of the Open Meteo forecast API.
+     * @param locations batch of locations.
+     * @param gap       missed intervals, the same for all the locations.
+     * @param variables requested weather variables.
+     * @return URI of the request for 15-minute weather of all the locations, both bounds inclusive.
+     */
+    static URI openMeteoBackfillUri(String url, List<TrackedLocation> locations, WeatherGap gap,
+                                    WeatherVariables variables) {
+        return openMeteoQuery(url, locations)
+                .queryParam("minutely_15", variables.query())
+                .queryParam("start_minutely_15", gap.startTime())
+                .queryParam("end_minutely_15", gap.endTime())
+                .build();
+    }
+
+    /**
+     * Forecast query asks for hourly data ({@code hourly}) of the next {@code days} days, starting at midnight (GMT)
+     * of the current day.
+     *
+     * @param url       URL of the Open Meteo forecast API.
+     * @param locations batch of locations.
+     * @param days      number of forecast days.
+     * @param variables requested weather variables.
+     * @return URI of the request for hourly forecast of all the locations.
+     */
+    static URI openMeteoForecastUri(String url, List<TrackedLocation> locations, int days,
+                                    WeatherVariables variables) {
+        return openMeteoQuery(url, locations)
+                .queryParam("hourly", variables.query())
+                .queryParam("forecast_days", days)
+                .build();
+    }
+
+    private static UriBuilder openMeteoQuery(String url, List<TrackedLocation> locations) {
+        var latitudes = locations.stream()
+                .map(TrackedLocation::getQueryLatitude)
+                .collect(Collectors.joining(","));
+        var longitudes = locations.stream()
+                .map(TrackedLocation::getQueryLongitude)
+                .collect(Collectors.joining(","));
+
+        return UriBuilder.of(url)
+                .queryParam("latitude", latitudes)
+                .queryParam("longitude", longitudes);
+    }
+
+    /**
+     * Export weather data of a single window, then backfill intervals the locations of the window missed since their
+     * last export and export forecast of the locations (see {@link #forecast}).
+     * <p>
+     * Gaps are found before the window is exported, the export moves the last exported timestamps (see
+     * {@link TrackedLocation#markExported(long)}), which are recorded to the {@link ExportHistory} once the window is
+     * processed, so gaps are found also after a restart. Location without any known export is backfilled from
+     * {@code meteo-zodiac.backfill.max-window} back. Locations with the same gap are fetched together (at most
+     * {@code meteo-zodiac.backfill.batch-size} per request), no further back than
+     * {@code meteo-zodiac.backfill.max-window}, one request at a time; every response is exported before the next one
+     * is requested, so the backfill volume held in memory is bounded by a single response. A run backfills at most
+     * {@code meteo-zodiac.backfill.max-points} data points, the rest is skipped. Failed backfill is logged, but it
+     * doesn't fail the run and its intervals are not requested again.
+     *
+     * @param locations locations of the window.
+     * @param weather   current weather data, in the same order as {@code locations}.
+     * @return status string of each exported request.
+     */
+    private Flux<String> processWindow(MeteoContext context, List<TrackedLocation> locations,
+                                       List<WeatherBatch.Row> weather) {
+        if (!backfillEnabled) {
+            return exportWindow(context, locations, weather)
+                    .concatWith(forecast(context, locations));
+        }
+
+        var tenant = TenantKey.of(context.getHeaders());
+        var gaps = new LinkedHashMap<WeatherGap, List<TrackedLocation>>();
+        for (int i = 0; i < locations.size(); i++) {
+            var location = locations.get(i);
+            var gap = WeatherGap.of(exportHistory.lastExported(tenant, location), weather.get(i).epochNanos(),
+                    backfillMaxWindow);
+            if (gap != null) {
+                gaps.computeIfAbsent(gap, unused -> new ArrayList<>()).add(location);
             }
-        });
+        }
+
+        return exportWindow(context, locations, weather)
+                .concatWith(Flux.fromIterable(gaps.entrySet())
+                        .concatMap(gap -> Flux.fromIterable(gap.getValue())
+                                .buffer(Math.max(1, backfillBatchSize))
+                                .concatMap(batch -> backfill(context, gap.getKey(), batch))))
+                .concatWith(forecast(context, locations))
+                .doFinally(signal -> exportHistory.record(tenant, locations));
     }
 
     /**
-     * Export metric data - send it to common ingestion service.
+     * Fetch and export hourly forecast of the next {@code meteo-zodiac.forecast.days} days (non-positive value
+     * disables the forecast) of given locations.
+     * <p>
+     * Forecast has 24 points per day per variable, so the locations are processed in batches of at most
+     * {@code meteo-zodiac.forecast.max-request-points} decoded values, one batch at a time, and every batch is
+     * exported (split to requests by size, see {@link #exportWindow}) before the next one is fetched. Memory held by
+     * the forecast in flight doesn't grow with the number of days or locations, only the number of requests does.
+     * Forecast is fetched through the {@link WeatherCache} and {@link WeatherRequestCoalescer} (see
+     * {@link #fetchOpenMeteoData}), so a grid cell is requested once per hour, no matter how many tenants and
+     * triggers ask for it.
      *
-     * @param metricData metric data to be sent.
-     * @return status string, returned only for enabling Flux mapping pipeline.
+     * @param locations locations of the window.
+     * @return status string of each exported request.
      */
-    private Flux<String> exportMetricData(List<MetricData> metricData) {
+    private Flux<String> forecast(MeteoContext context, List<TrackedLocation> locations) {
+        if (forecastDays <= 0) {
+            return Flux.empty();
+        }
 
-        log(Level.DEBUG, "exportMetricData", Map.of(), null);
+        var variables = context.getVariables();
 
-        return Mono.fromCallable(() -> {
-                    log(Level.DEBUG, "exporting metric data", Map.of(), null);
+        return Flux.fromIterable(locations)
+                .buffer(forecastBatchSize(variables))
+                .concatMap(batch -> metrics.stage(PipelineMetrics.FETCH_FORECAST_DATA, context,
+                                fetchOpenMeteoData(context, batch, variables, forecastDays))
+                        .concatMap(forecast -> exportWindow(context, batch, forecast)));
+    }
 
-                    var headers = meteoContext.getHeaders();
+    // locations per forecast request, the forecast has 24 values per day per variable
+    private int forecastBatchSize(WeatherVariables variables) {
+        return Math.max(1, forecastMaxRequestPoints / (forecastDays * 24 * variables.size()));
+    }
 
-                    // this is low-level OTEL SDK API, suitable to need of this function, OTEL resource can be
-                    // set for each
-                    // request and also headers of individual exporter call can be adjusted.
-                    var grpcExporterBuilder = OtlpGrpcMetricExporter.builder();
-                    headers.forEach((headerName, headerValues) -> {
-                        if (PROPAGATED_HEADERS.contains(headerName.toLowerCase())) {
-                            headerValues.forEach(headerValue -> grpcExporterBuilder.addHeader(headerName,
-                                    headerValue));
-                        }
-                    });
+    /**
+     * Fetch and export missed intervals of a batch of locations.
+     *
+     * @param gap       missed intervals, the same for all the locations.
+     * @param locations batch of locations.
+     * @return status string of each exported request.
+     */
+    private Flux<String> backfill(MeteoContext context, WeatherGap gap, List<TrackedLocation> locations) {
+        var variables = context.getVariables();
+        var points = (long) locations.size() * gap.points() * variables.size();
+        if (!context.reserveBackfill(points, backfillMaxPoints)) {
+            log(context, Level.WARN, "backfill skipped", () -> Map.of(
+                    "locations.count", locations.size(),
+                    "backfill.start", gap.startTime(),
+                    "backfill.end", gap.endTime(),
+                    "backfill.max-points", backfillMaxPoints), null);
+            return Flux.empty();
+        }
 
-                    // Call to platform ingestion requires additional headers (TODO?)
-                    grpcExporterBuilder.addHeader("appd-pid", headers.get("appd-cpid"));
-                    grpcExporterBuilder.addHeader("appd-pty", headers.get("appd-cpty"));
-                    grpcExporterBuilder.addHeader("appd-tid", headers.get("layer-id"));
+        log(context, Level.INFO, "backfill", () -> Map.of(
+                "locations.count", locations.size(),
+                "backfill.start", gap.startTime(),
+                "backfill.end", gap.endTime()), null);
 
-                    var grpcExporter = grpcExporterBuilder.setEndpoint("http://" + cisUrl).build();
+        metrics.items(PipelineMetrics.FETCH_BACKFILL_DATA, context, locations.size());
 
-                    log(Level.DEBUG, "metrics export", Map.of(
-                                    "exporter", grpcExporter.toString(),
-                                    "metrics.count", metricData.size()),
+        return metrics.stage(PipelineMetrics.FETCH_BACKFILL_DATA, context,
+                        fetchOpenMeteoBatch(context, PipelineMetrics.FETCH_BACKFILL_DATA,
+                                openMeteoBackfillUri(openMeteoUrl, locations, gap, variables), locations.size(),
+                                gap.points(), false, variables))
+                .flatMapMany(batch -> exportBatch(context, locations, batch))
+                .onErrorResume(throwable -> {
+                    log(context, Level.ERROR, "backfill error", throwable);
+                    return Flux.empty();
+                });
+    }
+
+    /**
+     * Export all locations of a decoded Open Meteo response.
+     *
+     * @param locations requested locations.
+     * @param batch     response, in the same order as {@code locations}.
+     * @return status string of each exported request.
+     */
+    private Flux<String> exportBatch(MeteoContext context, List<TrackedLocation> locations, WeatherBatch batch) {
+        if (batch.size() != locations.size()) {
+            return Flux.error(new IllegalStateException("Expected " + locations.size() + " open meteo responses, got "
+                    + batch.size()));
+        }
+        var weather = new ArrayList<WeatherBatch.Row>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            weather.add(batch.row(i));
+        }
+        return exportWindow(context, locations, weather);
+    }
+
+    /**
+     * Encode and export weather data of a single window.
+     * <p>
+     * The window is exported as requests of at most {@code meteo-zodiac.export.max-request-bytes} bytes and
+     * {@code meteo-zodiac.export.max-request-points} data points. Requests are encoded only as they are about to be
+     * sent, at most {@code meteo-zodiac.export.chunk-concurrency} of them are exported at the same time and each of
+     * them succeeds or fails on its own; the window fails once all of its requests are done, if any of them failed.
+     *
+     * @param locations locations of the window.
+     * @param weather   weather data from open-meteo service, in the same order as {@code locations}.
+     * @return status string of each exported request.
+     */
+    private Flux<String> exportWindow(MeteoContext context, List<TrackedLocation> locations,
+                                      List<WeatherBatch.Row> weather) {
+        return prepareMetricData(context, locations, weather)
+                .flatMapDelayError(metricData -> exportMetricData(context, metricData),
+                        Math.max(1, exportChunkConcurrency), 1)
+                .doOnDiscard(EncodedMetrics.class, EncodedMetrics::release);
+    }
+
+    /**
+     * Encode metric data to OTLP format, ready to be exported.
+     * <p>
+     * Locations are split to chunks by the encoded size (see {@link OtlpMetricsEncoder#chunks}), each chunk is encoded
+     * once the previous one was taken by the export. Only variables selected by the tenant are encoded, even when the
+     * weather data contain more of them (bulk run fetches variables of all its tenants).
+     *
+     * @param locations locations of the processed window.
+     * @param weather   weather data from open-meteo service, in the same order as {@code locations}.
+     * @return encoded requests, each of them has to be released once exported.
+     */
+    private Flux<EncodedMetrics> prepareMetricData(MeteoContext context, List<TrackedLocation> locations,
+                                                   List<WeatherBatch.Row> weather) {
+
+        log(context, Level.DEBUG, "prepareMetricData", null);
+
+        // OTEL resource of each location is encoded once and kept with the tracked location across runs, the first
+        // run encodes it when splitting the window
+        return stageScheduler.offload(Mono.fromCallable(() ->
+                        OtlpMetricsEncoder.chunks(locations, weather, context.getVariables(), exportMaxRequestBytes,
+                                exportMaxRequestPoints)))
+                .flatMapIterable(Function.identity())
+                .concatMap(chunk -> metrics.stage(PipelineMetrics.PREPARE_METRIC_DATA, context,
+                        stageScheduler.offload(Mono.fromCallable(() -> {
+                            log(context, Level.DEBUG, "generating metric data", () -> Map.of(
+                                    "chunk.from", chunk.from(),
+                                    "chunk.to", chunk.to()), null);
+
+                            var encoded = OtlpMetricsEncoder.encode(ByteBufAllocator.DEFAULT,
+                                    locations.subList(chunk.from(), chunk.to()),
+                                    weather.subList(chunk.from(), chunk.to()), context.getVariables());
+                            metrics.items(PipelineMetrics.PREPARE_METRIC_DATA, context, encoded.getPointCount());
+                            metrics.bytes(PipelineMetrics.PREPARE_METRIC_DATA, context,
+                                    encoded.getBinarySerializedSize());
+                            return encoded;
+                        }))));
+    }
+
+    /**
+     * Export metric data - send it to common ingestion service.
+     *
+     * @param metricData encoded metric data to be sent, released once the export completes.
+     * @return status string, returned only for enabling Flux mapping pipeline.
+     */
+    private Flux<String> exportMetricData(MeteoContext context, EncodedMetrics metricData) {
+
+        log(context, Level.DEBUG, "exportMetricData", null);
+
+        var pointCount = metricData.getPointCount();
+        var bytes = metricData.getBinarySerializedSize();
+
+        // this is low-level OTEL SDK API, suitable to need of this function, the request is already encoded. Sender
+        // is long-lived, shared by all runs of the same tenant; creating it blocks.
+        var export = stageScheduler.offload(Mono.fromCallable(() -> {
+                    log(context, Level.DEBUG, "exporting metric data", null);
+
+                    var sender = context.getExporters(exporterCache).metricExporter();
+
+                    log(context, Level.DEBUG, "metrics export", () -> Map.of(
+                                    "sender", sender.toString(),
+                                    "metrics.count", pointCount,
+                                    "metrics.bytes", bytes,
+                                    "exporter.cache.hits", exporterCache.getHitCount(),
+                                    "exporter.cache.misses", exporterCache.getMissCount(),
+                                    "exporter.cache.evictions", exporterCache.getEvictionCount()),
                             null);
 
-                    try {
-                        var result = grpcExporter.export(metricData);
-                        result.whenComplete(() -> {
-                            if (result.isSuccess()) {
-                                log(Level.INFO, "metric export success", Map.of(), null);
-                            } else {
-                                log(Level.ERROR, "metric export failure", Map.of(), null);
-                            }
-                        });
-
-                        log(Level.DEBUG, "exported data --- start", Map.of(), null);
-                        final AtomicReference<Resource> resource = new AtomicReference<>();
-                        metricData.forEach(md -> {
-                            if (resource.get() != md.getResource()) {
-                                log(Level.DEBUG, "", Map.of("resource", md.getResource()), null);
-                                resource.set(md.getResource());
-                            }
-                            log(Level.DEBUG, "", Map.of(
-                                    "metric", md.getName(),
-                                    "type", md.getType(),
-                                    "unit", md.getUnit(),
-                                    "data", md.getData()
+                    return sender;
+                }))
+                // the run waits until the ingestion responds, including retries
+                .flatMap(sender -> dispatcher.export(sender, metricData, OtlpDispatcher.SIGNAL_METRICS, context));
+
+        return metrics.stage(PipelineMetrics.EXPORT_METRIC_DATA, context, export)
+                .doOnSuccess(unused -> {
+                    metrics.items(PipelineMetrics.EXPORT_METRIC_DATA, context, pointCount);
+                    metrics.bytes(PipelineMetrics.EXPORT_METRIC_DATA, context, bytes);
+                    metricData.markExported();
+                    log(context, Level.INFO, "metric export success", null);
+
+                    if (LOG.isEnabled(context, Level.DEBUG)) {
+                        log(context, Level.DEBUG, "exported data --- start", null);
+                        var locations = metricData.getLocations();
+                        var weather = metricData.getWeather();
+                        for (int i = 0; i < locations.size(); i++) {
+                            var location = locations.get(i);
+                            var weatherData = weather.get(i);
+                            log(context, Level.DEBUG, "", () -> Map.of(
+                                    "location", location,
+                                    "data", weatherData
                             ), null);
-                        });
+                        }
 
-                        log(Level.DEBUG, "exported data --- end", Map.of(), null);
-                    } catch (Exception e) {
-                        log(Level.DEBUG, "error exporting data", Map.of("message", e.getMessage()), e);
-                        throw e;
+                        log(context, Level.DEBUG, "exported data --- end", null);
                     }
-
-                    return "ok";
                 })
+                .doOnError(throwable -> log(context, Level.ERROR, "metric export failure", () -> Map.of(
+                        "metrics.count", pointCount,
+                        "message", String.valueOf(throwable.getMessage())), null))
+                // ingestion is not available, the request is kept for a later run of the tenant
+                .onErrorResume(OtlpDispatcher::isTransient,
+                        throwable -> spoolMetricData(context, metricData, throwable))
+                // no more attempts once the mono terminates, the encoded request can be released
+                .doFinally(signal -> metricData.release())
+                .thenReturn("ok")
                 .flux();
     }
 
     /**
-     * Export logs related to this run, when logging is enabled.
+     * Append metric data which failed to be exported to the {@link MetricSpool}.
+     *
+     * @param failure failure of the export.
+     * @return completes when the data were spooled, fails with the failure of the export when they were not.
+     */
+    private Mono<Void> spoolMetricData(MeteoContext context, EncodedMetrics metricData, Throwable failure) {
+        return stageScheduler.offload(Mono.fromCallable(() -> spool.append(TenantKey.of(context.getHeaders()),
+                        metricData)))
+                .flatMap(spooled -> {
+                    if (!spooled) {
+                        return Mono.error(failure);
+                    }
+                    context.markSpooled();
+                    // spooled data will be exported by a later run, they are not backfilled
+                    metricData.markExported();
+                    log(context, Level.WARN, "metric data spooled", () -> Map.of(
+                            "metrics.count", metricData.getPointCount(),
+                            "metrics.bytes", metricData.getBinarySerializedSize()), null);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Replay metric data spooled by previous runs of the tenant, oldest first.
+     * <p>
+     * At most {@code meteo-zodiac.spool.replay-batch} requests are replayed by a single run, only when this run's own
+     * data were exported. Replay stops at the first request which fails because the ingestion is not available (it
+     * stays in the spool), requests rejected by the ingestion are dropped. Failed replay doesn't fail the run.
      *
      * @return status string, returned only for enabling Flux mapping pipeline.
      */
-    private Flux<String> exportLogs() {
-        log(Level.DEBUG, "exportLogs", Map.of(), null);
-
-        return Mono.fromCallable(() -> {
-            if (meteoContext.getLogRecordExporter() != null) {
-
-                var level = meteoContext.getConfig().getLogLevel();
-
-                var logs = meteoContext.getLogs().stream()
-                        .filter(logRecordData -> {
-                            // filter out debugs if configuration states INFO
-                            if (Config.LogLevel.INFO == level) {
-                                return logRecordData.getSeverity().getSeverityNumber() >= 9;
-                            }
-                            // Config level is debug, let's send everything.
-                            return true;
-                        })
-                        .toList();
-
-                try {
-                    log(Level.DEBUG, "logs export", Map.of(
-                            "exporter", meteoContext.getLogRecordExporter().toString(),
-                            "log.count", logs.size()
-                    ), null);
-
-                    logs.forEach(logRecordData -> {
-                        log(Level.DEBUG, "exported log message", Map.of("log", logRecordData), null);
-                    });
-
-                    var result = meteoContext.getLogRecordExporter().export(logs);
-                    result.whenComplete(() -> {
-                        if (result.isSuccess()) {
-                            log(Level.INFO, "logs export success", Map.of(), null);
-                        } else {
-                            log(Level.ERROR, "logs export failure", Map.of(), null);
-                        }
-                    });
+    private Flux<String> replaySpool(MeteoContext context) {
+        if (!spool.isEnabled() || context.isSpooled()) {
+            return Flux.just("ok");
+        }
 
-                    return "ok";
-                } catch (Exception e) {
-                    log(Level.ERROR, "export logs error", Map.of(), e);
-                }
-            }
-            return "error";
-        }).flux();
+        var tenant = TenantKey.of(context.getHeaders());
+        var replay = stageScheduler.offload(Mono.fromCallable(() -> spool.claim(tenant, spoolReplayBatch)))
+                .flatMapMany(records -> Flux.fromIterable(records)
+                        .concatMap(record -> replaySpoolRecord(context, record))
+                        .takeWhile(Boolean::booleanValue)
+                        .doFinally(signal -> spool.release(tenant)))
+                .then(Mono.just("ok"));
+
+        return metrics.stage(PipelineMetrics.REPLAY_SPOOL, context, replay).flux();
     }
 
     /**
-     * Transform response from Open Meteo to OTEL {@link MetricData}.
+     * @return {@code true} when the next record should be replayed.
+     */
+    private Mono<Boolean> replaySpoolRecord(MeteoContext context, MetricSpool.Record record) {
+        var request = record.request();
+
+        return stageScheduler.offload(Mono.fromCallable(() -> context.getExporters(exporterCache).metricExporter()))
+                .flatMap(sender -> dispatcher.export(sender, request, OtlpDispatcher.SIGNAL_METRICS, context))
+                .then(Mono.fromCallable(() -> {
+                    spool.done(record);
+                    metrics.items(PipelineMetrics.REPLAY_SPOOL, context, request.getPointCount());
+                    metrics.bytes(PipelineMetrics.REPLAY_SPOOL, context, request.getBinarySerializedSize());
+                    log(context, Level.INFO, "spooled metric data exported", () -> Map.of(
+                            "metrics.count", request.getPointCount(),
+                            "spooled.at", record.getSpooledAt()), null);
+                    return true;
+                }))
+                .onErrorResume(throwable -> {
+                    if (OtlpDispatcher.isTransient(throwable)) {
+                        log(context, Level.WARN, "spooled metric data not exported", () -> Map.of(
+                                "message", String.valueOf(throwable.getMessage())), null);
+                        return Mono.just(false);
+                    }
+                    spool.reject(record);
+                    log(context, Level.ERROR, "spooled metric data rejected", () -> Map.of(
+                            "message", String.valueOf(throwable.getMessage())), null);
+                    return Mono.just(true);
+                });
+    }
+
+    /**
+     * Export logs related to this run which were not exported yet, when logging is enabled.
+     * <p>
+     * Logs are exported in the background while the run is in progress (see {@link BackgroundLogExporter}), this only
+     * flushes what remains and stops the periodic export.
      *
-     * @param resource OTEL Resource
-     * @param epochNanos time reported by Open Meteo API (timestamp of reported values)
-     * @param weatherData Open Meteo response for a single location
-     */
-    private static List<MetricData> processLocation(
-            Resource resource,
-            long epochNanos,
-            OpenMeteoResponse weatherData) {
-
-        var metricData = new ArrayList<MetricData>();
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "apparent_temperature",
-                "",
-                "{Celsius}",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getApparentTemperature()
-                )))));
-
-        metricData.add(ImmutableMetricData.createLongGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "cloud_cover",
-                "",
-                "%",
-                ImmutableGaugeData.create(List.of(ImmutableLongPointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getCloudCover()
-                )))));
-
-        metricData.add(ImmutableMetricData.createLongGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "is_day",
-                "",
-                "",
-                ImmutableGaugeData.create(List.of(ImmutableLongPointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getIsDay()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "precipitation",
-                "",
-                "mm",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getPercipitation()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "pressure_msl",
-                "",
-                "hPa",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getPressureMsl()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "rain",
-                "",
-                "mm",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getRain()
-                )))));
-
-        metricData.add(ImmutableMetricData.createLongGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "relative_humidity_2m",
-                "",
-                "%",
-                ImmutableGaugeData.create(List.of(ImmutableLongPointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getRelativeHumidity2m()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "showers",
-                "",
-                "mm",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getShowers()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "snowfall",
-                "",
-                "cm",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getSnowfall()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "surface_pressure",
-                "",
-                "hPa",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getSurfacePressure()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "temperature_2m",
-                "",
-                "{Celsius}",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getTemperature2m()
-                )))));
-
-        metricData.add(ImmutableMetricData.createLongGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "weather_code",
-                "",
-                "{WMO Code}",
-                ImmutableGaugeData.create(List.of(ImmutableLongPointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getWeatherCode()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "wind_direction_10m",
-                "",
-                "{Degree}",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getWindDirection10m()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "wind_gusts_10m",
-                "",
-                "km/h",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getWindGusts10m()
-                )))));
-
-        metricData.add(ImmutableMetricData.createDoubleGauge(resource,
-                InstrumentationScopeInfo.create("meteodata"),
-                "wind_speed_10m",
-                "",
-                "km/h",
-                ImmutableGaugeData.create(List.of(ImmutableDoublePointData.create(
-                        startEpochNanos(epochNanos),
-                        endEpochNanos(epochNanos),
-                        Attributes.empty(),
-                        weatherData.getCurrent().getWindSpeed10m()
-                )))));
-
-        return metricData;
-    }
-
-    private static long startEpochNanos(long ts) {
-        return ts - (60 * 1_000_000_000L); // -1m
-    }
-
-    private static long endEpochNanos(long ts) {
-        return ts;
+     * @return status string, returned only for enabling Flux mapping pipeline.
+     */
+    private Flux<String> exportLogs(MeteoContext context) {
+        log(context, Level.DEBUG, "exportLogs", null);
+
+        var logExporter = context.getLogExporter();
+        // already flushed, e.g. when the run failed after its logs were exported
+        if (logExporter != null && logExporter.isClosed()) {
+            return Flux.just("ok");
+        }
+        if (logExporter == null) {
+            return Flux.just("error");
+        }
+
+        log(context, Level.DEBUG, "logs export", () -> Map.of(
+                "exporter", logExporter.toString(),
+                "log.exported.count", logExporter.getExportedRecordCount(),
+                "log.exported.batches", logExporter.getExportedBatchCount(),
+                "log.dropped.count", logExporter.getDroppedRecordCount()
+        ), null);
+
+        // the run waits until the last batch and batches still in flight are accepted, a failed export fails the run
+        var flush = stageScheduler.offload(Mono.defer(() -> OtlpDispatcher.await(logExporter.close())));
+        return metrics.stage(PipelineMetrics.EXPORT_LOGS, context, flush)
+                // records exported in the background are counted as well, the final flush is the last one
+                .doOnSuccess(unused -> metrics.items(PipelineMetrics.EXPORT_LOGS, context,
+                        logExporter.getExportedRecordCount()))
+                .thenReturn("ok")
+                .flux();
+    }
+
+    /**
+     * Stop the periodic log export of the run, remaining records are still exported. Exporters of the tenant are
+     * released once the logs are exported, so that they are not shut down while the last batch is in flight.
+     */
+    private void closeRun(MeteoContext context) {
+        var logExporter = context.getLogExporter();
+        if (logExporter == null) {
+            context.releaseExporters();
+        } else {
+            logExporter.close().whenComplete(context::releaseExporters);
+        }
     }
 
     static void addPropagatedHeaders(MutableHttpHeaders newRequestHeaders, HttpHeaders cronTriggerHeaders) {
@@ -718,65 +1464,31 @@ public class MeteoZodiacFunction {
         );
     }
 
-    private void log(Level level, String body, Map<String, Object> content, Throwable exception) {
-
-        var args = content.entrySet().stream()
-                .map(entiry -> Tuples.of(entiry.getKey() + ": {}", List.of(entiry.getValue())))
-                .reduce((t1, t2) ->
-                        Tuples.of(
-                                t1.getT1() + ", " + t2.getT1(),
-                                Stream.concat(t1.getT2().stream(), t2.getT2().stream()).toList()));
-
-        args.ifPresentOrElse(objects -> {
-                    var finalBody = body + "; args: " + objects.getT1();
-                    switch (level) {
-                        case ERROR -> LOGGER.error(finalBody, objects.getT2(), exception);
-                        case WARN, INFO -> LOGGER.info(finalBody, objects.getT2(), exception);
-                        case DEBUG, TRACE -> LOGGER.debug(finalBody, objects.getT2(), exception);
-                    }
-                },
-                () -> {
-                    switch (level) {
-                        case ERROR -> LOGGER.error(body, exception);
-                        case WARN, INFO -> LOGGER.info(body, exception);
-                        case DEBUG, TRACE -> LOGGER.debug(body, exception);
-                    }
-                });
-
-        try {
-            if (meteoContext.getLogRecordExporter() != null) {
-
-                var logParams = content.entrySet().stream()
-                        .map(e -> e.getKey() + ": {" + e.getValue() + "}")
-                        .collect(Collectors.joining(", "));
-
-                var attrBuilder = Attributes.builder();
-                content.forEach((s, o) -> attrBuilder.put(s, String.valueOf(o)));
+    private void log(MeteoContext context, Level level, String body, Throwable exception) {
+        LOG.log(context, level, body, exception);
+    }
 
-                meteoContext.addLogRecord(
-                        new LogRecord(meteoContext.getLogResource(),
-                                Severity.valueOf(level.name()),
-                                attrBuilder.build(),
-                                (body == null || body.isEmpty()) ? logParams : body + "; " + logParams));
-            }
-        } catch (Exception e) {
-            LOGGER.warn("Can't access request context");
-        }
+    private void log(MeteoContext context, Level level, String body, Supplier<Map<String, Object>> content,
+                     Throwable exception) {
+        LOG.log(context, level, body, content, exception);
     }
 
     static class LogRecord implements LogRecordData {
 
+        private static final InstrumentationScopeInfo SCOPE = InstrumentationScopeInfo.create("meteodata");
+
         private final Resource resource;
         private final Attributes attributes;
         private final Severity severity;
         private final Body body;
-        private final ZonedDateTime now = ZonedDateTime.now();
+        private final long epochNanos;
 
-        public LogRecord(Resource resource, Severity severity, Attributes attributes, String body) {
+        public LogRecord(Resource resource, Severity severity, Attributes attributes, String body, long epochNanos) {
             this.resource = resource;
             this.attributes = attributes;
             this.severity = severity;
             this.body = (body != null && !body.isBlank()) ? Body.string(body) : Body.empty();
+            this.epochNanos = epochNanos;
         }
 
         @Override
@@ -786,26 +1498,22 @@ public class MeteoZodiacFunction {
 
         @Override
         public InstrumentationScopeInfo getInstrumentationScopeInfo() {
-            return InstrumentationScopeInfo.create("meteodata");
+            return SCOPE;
         }
 
         @Override
         public long getTimestampEpochNanos() {
-            return 0;
+            return epochNanos;
         }
 
         @Override
         public long getObservedTimestampEpochNanos() {
-            return now.toEpochSecond() * 1_000_000;
+            return epochNanos;
         }
 
         @Override
         public SpanContext getSpanContext() {
-            return SpanContext.create(
-                    "",
-                    "",
-                    TraceFlags.getDefault(),
-                    TraceState.getDefault());
+            return SpanContext.getInvalid();
         }
 
         @Override
@@ -840,7 +1548,7 @@ public class MeteoZodiacFunction {
                     ", attributes=" + attributes +
                     ", severity=" + severity +
                     ", body='" + body + '\'' +
-                    ", now=" + now +
+                    ", epochNanos=" + epochNanos +
                     '}';
         }
     }
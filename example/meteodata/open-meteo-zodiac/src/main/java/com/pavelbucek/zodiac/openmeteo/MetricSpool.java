@@ -0,0 +1,489 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import io.netty.buffer.Unpooled;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Write-ahead spool of encoded metric requests which could not be exported, because the platform ingestion was not
+ * available.
+ * <p>
+ * Requests are appended to segment files of {@code meteo-zodiac.spool.segment-size} bytes in
+ * {@code meteo-zodiac.spool.directory} (empty directory disables the spool), which are memory-mapped, so appending
+ * is a plain memory copy and replay reads the request straight from the mapping. Every record is written before its
+ * length, record with zero length ends the segment, so a record interrupted by a crash is never read back. Records
+ * are marked as done in place; a segment is deleted once all its records are done, and on start, pending records of
+ * the existing segments are indexed again. Written pages survive a crash of the process, not of the host.
+ * <p>
+ * Spool is bounded by {@code meteo-zodiac.spool.max-size}, the oldest segment is dropped (including its pending
+ * records) to make space for new ones. Pending records of a single tenant are bounded by
+ * {@code meteo-zodiac.spool.max-tenant-size}, records older than {@code meteo-zodiac.spool.max-age} are dropped
+ * instead of being replayed.
+ * <p>
+ * Records are replayed per tenant, by a run of the same tenant - oldest first, at most one replay of a tenant at a
+ * time ({@link #claim(TenantKey, int)}).
+ */
+@Singleton
+public class MetricSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricSpool.class);
+
+    private static final String SEGMENT_PREFIX = "metrics-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    // record: length (4), state (1), spooled at millis (8), point count (4), tenant (3 x short length + UTF-8),
+    // encoded ExportMetricsServiceRequest
+    private static final int FIXED_HEADER_SIZE = 4 + 1 + 8 + 4;
+    private static final int STATE_OFFSET = 4;
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long maxTenantSize;
+    private final Duration maxAge;
+    private final PipelineMetrics metrics;
+
+    // oldest first, the last one is the active one
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Map<TenantKey, TenantRecords> tenants = new HashMap<>();
+    private long nextSequence;
+
+    public MetricSpool(@Value("${meteo-zodiac.spool.directory:}") String directory,
+                       @Value("${meteo-zodiac.spool.segment-size:16777216}") int segmentSize,
+                       @Value("${meteo-zodiac.spool.max-size:268435456}") long maxSize,
+                       @Value("${meteo-zodiac.spool.max-tenant-size:67108864}") long maxTenantSize,
+                       @Value("${meteo-zodiac.spool.max-age:24h}") Duration maxAge,
+                       PipelineMetrics metrics) {
+        this.directory = directory == null || directory.isBlank() ? null : Path.of(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+        this.maxTenantSize = maxTenantSize;
+        this.maxAge = maxAge;
+        this.metrics = metrics;
+
+        if (this.directory != null) {
+            recover();
+        }
+
+        metrics.spoolUsage(this::pendingBytes);
+    }
+
+    /**
+     * @return {@code true} when the spool is configured.
+     */
+    boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Append request which failed to be exported.
+     *
+     * @param tenant  tenant of the request.
+     * @param request encoded request, it is copied, the caller still has to release it.
+     * @return {@code true} when the request was spooled.
+     */
+    synchronized boolean append(TenantKey tenant, EncodedMetrics request) {
+        if (directory == null) {
+            return false;
+        }
+
+        var encodedTenant = encodeTenant(tenant);
+        var payloadSize = request.getBinarySerializedSize();
+        var size = FIXED_HEADER_SIZE + encodedTenant.length + payloadSize;
+
+        if (size > segmentSize) {
+            drop(tenant, "too-large");
+            return false;
+        }
+        var records = tenants.get(tenant);
+        if (records != null && records.bytes + size > maxTenantSize) {
+            drop(tenant, "tenant-full");
+            return false;
+        }
+
+        var segment = segments.peekLast();
+        if (segment == null || segment.position + size > segmentSize) {
+            try {
+                segment = rotate();
+            } catch (IOException | UncheckedIOException e) {
+                LOGGER.warn("spool segment can't be created", e);
+                drop(tenant, "io-error");
+                return false;
+            }
+        }
+
+        var buffer = segment.buffer;
+        var offset = segment.position;
+        var spooledAt = System.currentTimeMillis();
+        buffer.put(offset + STATE_OFFSET, PENDING);
+        buffer.putLong(offset + 5, spooledAt);
+        buffer.putInt(offset + 13, request.getPointCount());
+        buffer.put(offset + FIXED_HEADER_SIZE, encodedTenant);
+        var payloadOffset = offset + FIXED_HEADER_SIZE + encodedTenant.length;
+        request.copyTo(buffer.slice(payloadOffset, payloadSize));
+        // length makes the record visible, it's written last
+        buffer.putInt(offset, size);
+        segment.position += size;
+
+        var record = new Record(tenant, segment, offset, size, payloadOffset, payloadSize, request.getPointCount(),
+                spooledAt);
+        tenants.computeIfAbsent(tenant, key -> new TenantRecords()).add(record);
+        segment.pending++;
+        metrics.spool(PipelineMetrics.SPOOL_APPENDED, tenant.layerId(), null);
+        return true;
+    }
+
+    /**
+     * Claim the oldest pending records of the tenant for replay. Every claimed record has to be either
+     * {@link #done(Record) done} or {@link #reject(Record) rejected}, or stays pending; claim has to be ended by
+     * {@link #release(TenantKey)}.
+     *
+     * @param tenant tenant.
+     * @param max    max number of claimed records.
+     * @return claimed records, oldest first; empty when there are none or they are being replayed by another run.
+     */
+    synchronized List<Record> claim(TenantKey tenant, int max) {
+        var records = tenants.get(tenant);
+        if (records == null || records.replaying) {
+            return List.of();
+        }
+
+        var expiredBefore = System.currentTimeMillis() - maxAge.toMillis();
+        while (!records.queue.isEmpty() && records.queue.peekFirst().spooledAt < expiredBefore) {
+            complete(records.queue.peekFirst());
+            drop(tenant, "expired");
+        }
+
+        var claimed = records.queue.stream().limit(Math.max(0, max)).toList();
+        if (claimed.isEmpty()) {
+            removeIfEmpty(tenant, records);
+        } else {
+            records.replaying = true;
+        }
+        return claimed;
+    }
+
+    /**
+     * Record was exported, it won't be replayed again.
+     */
+    synchronized void done(Record record) {
+        if (complete(record)) {
+            metrics.spool(PipelineMetrics.SPOOL_REPLAYED, record.tenant.layerId(), null);
+        }
+    }
+
+    /**
+     * Record was rejected by the ingestion, it won't be replayed again.
+     */
+    synchronized void reject(Record record) {
+        if (complete(record)) {
+            drop(record.tenant, "rejected");
+        }
+    }
+
+    /**
+     * End the replay of the tenant started by {@link #claim(TenantKey, int)}.
+     */
+    synchronized void release(TenantKey tenant) {
+        var records = tenants.get(tenant);
+        if (records != null) {
+            records.replaying = false;
+            removeIfEmpty(tenant, records);
+        }
+    }
+
+    @PreDestroy
+    synchronized void close() {
+        var active = segments.peekLast();
+        if (active != null) {
+            active.buffer.force();
+        }
+    }
+
+    private boolean complete(Record record) {
+        var records = tenants.get(record.tenant);
+        if (records == null || !records.remove(record)) {
+            // dropped with its segment in the meantime
+            return false;
+        }
+
+        var segment = record.segment;
+        segment.buffer.put(record.offset + STATE_OFFSET, DONE);
+        segment.pending--;
+        if (segment.pending == 0 && segment != segments.peekLast()) {
+            segments.remove(segment);
+            delete(segment);
+        }
+        return true;
+    }
+
+    private Segment rotate() throws IOException {
+        var previous = segments.peekLast();
+        if (previous != null) {
+            previous.buffer.force();
+            if (previous.pending == 0) {
+                segments.removeLast();
+                delete(previous);
+            }
+        }
+
+        // the oldest records are dropped to make space for the new ones
+        while (segments.size() >= maxSegments) {
+            var oldest = segments.removeFirst();
+            dropSegment(oldest);
+            delete(oldest);
+        }
+
+        var path = directory.resolve(SEGMENT_PREFIX + String.format("%020d", nextSequence++) + SEGMENT_SUFFIX);
+        var segment = new Segment(path, map(path, true));
+        segments.addLast(segment);
+        LOGGER.debug("spool segment created: {}", path);
+        return segment;
+    }
+
+    private void dropSegment(Segment segment) {
+        for (var records : tenants.values()) {
+            records.queue.removeIf(record -> {
+                if (record.segment != segment) {
+                    return false;
+                }
+                records.bytes -= record.size;
+                drop(record.tenant, "full");
+                return true;
+            });
+        }
+        tenants.entrySet().removeIf(entry -> entry.getValue().queue.isEmpty() && !entry.getValue().replaying);
+        LOGGER.warn("spool is full, dropped segment {} with {} pending records", segment.path, segment.pending);
+    }
+
+    private void recover() {
+        try {
+            Files.createDirectories(directory);
+
+            List<Path> paths;
+            try (Stream<Path> files = Files.list(directory)) {
+                paths = files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                                && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .toList();
+            }
+
+            for (var path : paths) {
+                var name = path.getFileName().toString();
+                nextSequence = Math.max(nextSequence, Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) + 1);
+
+                var segment = new Segment(path, map(path, false));
+                // no more appends to segments of the previous process
+                segment.position = segment.buffer.capacity();
+                recover(segment);
+                if (segment.pending > 0) {
+                    segments.addLast(segment);
+                } else {
+                    delete(segment);
+                }
+            }
+
+            LOGGER.info("spool recovered from {}: segments: {}, pending records: {}", directory, segments.size(),
+                    tenants.values().stream().mapToInt(records -> records.queue.size()).sum());
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("spool can't be recovered from " + directory, e);
+        }
+    }
+
+    private void recover(Segment segment) {
+        var buffer = segment.buffer;
+        var offset = 0;
+
+        while (offset + FIXED_HEADER_SIZE <= buffer.capacity()) {
+            var size = buffer.getInt(offset);
+            if (size < FIXED_HEADER_SIZE || offset + size > buffer.capacity()) {
+                break;
+            }
+
+            if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                var spooledAt = buffer.getLong(offset + 5);
+                var pointCount = buffer.getInt(offset + 13);
+                var position = offset + FIXED_HEADER_SIZE;
+                var layerId = readString(buffer, position);
+                position += 2 + buffer.getShort(position);
+                var principalId = readString(buffer, position);
+                position += 2 + buffer.getShort(position);
+                var principalType = readString(buffer, position);
+                position += 2 + buffer.getShort(position);
+
+                var tenant = new TenantKey(layerId, principalId, principalType);
+                var record = new Record(tenant, segment, offset, size, position, offset + size - position,
+                        pointCount, spooledAt);
+                tenants.computeIfAbsent(tenant, key -> new TenantRecords()).add(record);
+                segment.pending++;
+            }
+
+            offset += size;
+        }
+    }
+
+    private MappedByteBuffer map(Path path, boolean create) throws IOException {
+        var options = create
+                ? new StandardOpenOption[]{StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+        try (var channel = FileChannel.open(path, options)) {
+            // existing segment may have been created with a different segment size; mapping stays valid once the
+            // channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, create ? segmentSize : channel.size());
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOGGER.warn("spool segment {} can't be deleted", segment.path, e);
+        }
+    }
+
+    private void drop(TenantKey tenant, String reason) {
+        metrics.spool(PipelineMetrics.SPOOL_DROPPED, tenant.layerId(), reason);
+    }
+
+    private void removeIfEmpty(TenantKey tenant, TenantRecords records) {
+        if (records.queue.isEmpty() && !records.replaying) {
+            tenants.remove(tenant);
+        }
+    }
+
+    private synchronized Map<String, Long> pendingBytes() {
+        var bytes = new HashMap<String, Long>();
+        tenants.forEach((tenant, records) -> bytes.merge(String.valueOf(tenant.layerId()), records.bytes, Long::sum));
+        return bytes;
+    }
+
+    private static byte[] encodeTenant(TenantKey tenant) {
+        var parts = new byte[][]{bytes(tenant.layerId()), bytes(tenant.principalId()), bytes(tenant.principalType())};
+        var encoded = new byte[3 * 2 + parts[0].length + parts[1].length + parts[2].length];
+        var position = 0;
+        for (var part : parts) {
+            encoded[position++] = (byte) (part.length >>> 8);
+            encoded[position++] = (byte) part.length;
+            System.arraycopy(part, 0, encoded, position, part.length);
+            position += part.length;
+        }
+        return encoded;
+    }
+
+    private static byte[] bytes(String value) {
+        // header values are short, longer ones would not be valid tenant identifiers anyway
+        var bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return bytes.length <= Short.MAX_VALUE ? bytes : new byte[0];
+    }
+
+    private static String readString(MappedByteBuffer buffer, int position) {
+        var length = buffer.getShort(position);
+        var bytes = new byte[length];
+        buffer.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Spooled request.
+     */
+    static final class Record {
+
+        private final TenantKey tenant;
+        private final Segment segment;
+        private final int offset;
+        private final int size;
+        private final int payloadOffset;
+        private final int payloadSize;
+        private final int pointCount;
+        private final long spooledAt;
+
+        private Record(TenantKey tenant, Segment segment, int offset, int size, int payloadOffset, int payloadSize,
+                       int pointCount, long spooledAt) {
+            this.tenant = tenant;
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.payloadOffset = payloadOffset;
+            this.payloadSize = payloadSize;
+            this.pointCount = pointCount;
+            this.spooledAt = spooledAt;
+        }
+
+        /**
+         * @return the spooled request, read straight from the mapped segment.
+         */
+        EncodedMetrics request() {
+            return new EncodedMetrics(
+                    Unpooled.wrappedBuffer(segment.buffer.slice(payloadOffset, payloadSize)), pointCount);
+        }
+
+        long getSpooledAt() {
+            return spooledAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" +
+                    "segment=" + segment.path.getFileName() +
+                    ", offset=" + offset +
+                    ", bytes=" + payloadSize +
+                    ", points=" + pointCount +
+                    '}';
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private int pending;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class TenantRecords {
+
+        private final ArrayDeque<Record> queue = new ArrayDeque<>();
+        private long bytes;
+        private boolean replaying;
+
+        void add(Record record) {
+            queue.addLast(record);
+            bytes += record.size;
+        }
+
+        boolean remove(Record record) {
+            if (queue.remove(record)) {
+                bytes -= record.size;
+                return true;
+            }
+            return false;
+        }
+    }
+}
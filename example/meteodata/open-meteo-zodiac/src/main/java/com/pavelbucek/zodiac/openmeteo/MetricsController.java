@@ -0,0 +1,23 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
+
+/**
+ * Scrape endpoint of the pipeline metrics, see {@link PipelineMetrics}.
+ */
+@Controller("/metrics")
+public class MetricsController {
+
+    private final PipelineMetrics metrics;
+
+    public MetricsController(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Get
+    public HttpResponse<String> scrape() {
+        return HttpResponse.ok(metrics.scrape()).contentType(PrometheusTextFormat.CONTENT_TYPE);
+    }
+}
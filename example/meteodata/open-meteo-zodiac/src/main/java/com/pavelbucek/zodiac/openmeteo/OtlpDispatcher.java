@@ -0,0 +1,256 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import io.opentelemetry.exporter.internal.marshal.Marshaler;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends OTLP requests to the platform ingestion and completes once the ingestion responds.
+ * <p>
+ * Every export is bounded by {@code meteo-zodiac.export.deadline}, including retries and waiting for a free slot.
+ * Failed attempts are retried when the failure is transient - retryable gRPC status ({@code UNAVAILABLE},
+ * {@code RESOURCE_EXHAUSTED}, ...) or an I/O error - up to {@code meteo-zodiac.export.max-attempts} attempts, with
+ * exponential backoff starting at {@code meteo-zodiac.export.initial-backoff}, capped by
+ * {@code meteo-zodiac.export.max-backoff}, and jittered so that exports failed at the same time don't retry at the same
+ * time.
+ * <p>
+ * At most {@code meteo-zodiac.export.max-in-flight} attempts are sent at the same time across all runs, others wait
+ * for a free slot (without blocking any thread). Runs wait for their exports, so when the ingestion slows down, runs
+ * slow down as well, instead of piling up pending requests in memory.
+ * <p>
+ * Retries and give-ups are recorded by {@link PipelineMetrics}.
+ */
+@Singleton
+public class OtlpDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OtlpDispatcher.class);
+
+    static final String SIGNAL_METRICS = "metrics";
+    static final String SIGNAL_LOGS = "logs";
+
+    private final PipelineMetrics metrics;
+    private final Duration deadline;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final InFlightLimit inFlight;
+
+    public OtlpDispatcher(PipelineMetrics metrics,
+                          @Value("${meteo-zodiac.export.deadline:30s}") Duration deadline,
+                          @Value("${meteo-zodiac.export.max-attempts:5}") int maxAttempts,
+                          @Value("${meteo-zodiac.export.initial-backoff:500ms}") Duration initialBackoff,
+                          @Value("${meteo-zodiac.export.max-backoff:5s}") Duration maxBackoff,
+                          @Value("${meteo-zodiac.export.max-in-flight:64}") int maxInFlight) {
+        this.metrics = metrics;
+        this.deadline = deadline;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.inFlight = new InFlightLimit(Math.max(1, maxInFlight));
+
+        metrics.exportSlots(inFlight::inFlight, inFlight::waiting);
+    }
+
+    /**
+     * Export the request.
+     *
+     * @param sender  sender of the tenant.
+     * @param request encoded request, it may be written multiple times.
+     * @param signal  {@link #SIGNAL_METRICS} or {@link #SIGNAL_LOGS}.
+     * @param context context of the run.
+     * @return completes once the ingestion accepted the request, fails with {@link ExportException} when it
+     * didn't, or with {@link TimeoutException} when the deadline passed.
+     */
+    Mono<Void> export(OtlpGrpcSender sender, Marshaler request, String signal, MeteoContext context) {
+        var attempt = Mono.usingWhen(
+                inFlight.acquire(),
+                slot -> sender.send(request),
+                slot -> Mono.fromRunnable(slot::release),
+                (slot, error) -> Mono.fromRunnable(slot::release),
+                slot -> Mono.fromRunnable(slot::release));
+
+        return attempt
+                .retryWhen(Retry.backoff(maxAttempts - 1, initialBackoff)
+                        .maxBackoff(maxBackoff)
+                        .jitter(0.5)
+                        .filter(OtlpDispatcher::isRetryable)
+                        .doBeforeRetry(signalRetry -> {
+                            metrics.exportRetry(signal, context);
+                            LOGGER.debug("retrying {} export, attempt: {}, failure: {}", signal,
+                                    signalRetry.totalRetries() + 2, signalRetry.failure().getMessage());
+                        })
+                        .onRetryExhaustedThrow((spec, signalRetry) -> signalRetry.failure()))
+                .timeout(deadline, Mono.error(() -> new TimeoutException(
+                        signal + " export deadline of " + deadline.toMillis() + "ms exceeded")))
+                .doOnError(throwable -> {
+                    metrics.exportGiveUp(signal, context, giveUpReason(throwable));
+                    LOGGER.warn("{} export failed: {}", signal, throwable.getMessage());
+                });
+    }
+
+    /**
+     * @param result result of an asynchronous operation.
+     * @return completes when the result does, fails with {@link ExportException} when the result is not successful.
+     */
+    static Mono<Void> await(CompletableResultCode result) {
+        return Mono.create(sink -> result.whenComplete(() -> {
+            if (result.isSuccess()) {
+                sink.success();
+            } else {
+                sink.error(new ExportException(OtlpGrpcSender.NO_STATUS, null,
+                        new IllegalStateException("export not accepted")));
+            }
+        }));
+    }
+
+    static boolean isRetryable(Throwable throwable) {
+        if (!(throwable instanceof ExportException e)) {
+            return false;
+        }
+        if (e.getCause() instanceof IOException) {
+            return true;
+        }
+        return OtlpGrpcSender.isRetryable(e.grpcStatus);
+    }
+
+    /**
+     * @param throwable failure of {@link #export}.
+     * @return {@code true} when the export failed because the ingestion was not available (deadline passed, or
+     * retries of a retryable failure were exhausted), i.e. the same request may succeed later.
+     */
+    static boolean isTransient(Throwable throwable) {
+        return throwable instanceof TimeoutException || isRetryable(throwable);
+    }
+
+    private static String giveUpReason(Throwable throwable) {
+        if (throwable instanceof TimeoutException) {
+            return "deadline";
+        }
+        return isRetryable(throwable) ? "exhausted" : "non-retryable";
+    }
+
+    /**
+     * Failed export.
+     */
+    static final class ExportException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int grpcStatus;
+
+        /**
+         * @param grpcStatus  gRPC status of the response, {@link OtlpGrpcSender#NO_STATUS} when there's none.
+         * @param description description of the status.
+         * @param cause       cause of the failure, if any.
+         */
+        ExportException(int grpcStatus, String description, Throwable cause) {
+            super(grpcStatus != OtlpGrpcSender.NO_STATUS
+                            ? "gRPC status " + grpcStatus + ": " + description
+                            : cause != null ? cause.getMessage() : "export failed",
+                    cause, false, false);
+            this.grpcStatus = grpcStatus;
+        }
+
+        int getGrpcStatus() {
+            return grpcStatus;
+        }
+    }
+
+    /**
+     * Asynchronous semaphore, callers wait for a slot without blocking a thread.
+     */
+    static final class InFlightLimit {
+
+        private final int max;
+        private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+        private int inFlight;
+
+        InFlightLimit(int max) {
+            this.max = max;
+        }
+
+        Mono<Slot> acquire() {
+            return Mono.create(sink -> {
+                var waiter = new Waiter(sink, new Slot(this));
+                boolean granted;
+                synchronized (this) {
+                    granted = inFlight < max;
+                    if (granted) {
+                        inFlight++;
+                    } else {
+                        waiting.add(waiter);
+                    }
+                }
+                sink.onCancel(() -> {
+                    boolean removed;
+                    synchronized (this) {
+                        removed = waiting.remove(waiter);
+                    }
+                    // slot was granted in the meantime, but nobody is going to use it
+                    if (!removed) {
+                        waiter.slot().release();
+                    }
+                });
+                if (granted) {
+                    sink.success(waiter.slot());
+                }
+            });
+        }
+
+        private void release() {
+            Waiter next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                }
+            }
+            // slot is handed over to the next waiting export
+            if (next != null) {
+                next.sink().success(next.slot());
+            }
+        }
+
+        synchronized long inFlight() {
+            return inFlight;
+        }
+
+        synchronized long waiting() {
+            return waiting.size();
+        }
+    }
+
+    private record Waiter(MonoSink<Slot> sink, Slot slot) {
+    }
+
+    /**
+     * Slot of the {@link InFlightLimit}, released at most once.
+     */
+    static final class Slot {
+
+        private final InFlightLimit limit;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Slot(InFlightLimit limit) {
+            this.limit = limit;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                limit.release();
+            }
+        }
+    }
+}
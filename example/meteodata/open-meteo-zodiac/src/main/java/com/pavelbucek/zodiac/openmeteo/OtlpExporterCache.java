@@ -0,0 +1,315 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of long-lived OTLP exporters.
+ * <p>
+ * Each exporter owns its own gRPC channel, so creating one for every trigger means new connection to the platform
+ * ingestion on every run. Exporters are cached per tenant identity ({@code layer-id}, {@code appd-cpid} and
+ * {@code appd-cpty}), entries which were not used for {@code meteo-zodiac.exporter-cache.idle-timeout} are evicted,
+ * and the number of entries is capped by {@code meteo-zodiac.exporter-cache.max-size} (least recently used entry is
+ * evicted first). Evicted exporters are shut down, but not while a run still holds them: each run acquires a
+ * {@link Lease} of the exporters of its tenant, an entry held by a run is never evicted as idle and the entry evicted
+ * by the size limit is shut down only once the last run holding it released its lease (in-flight exports drained).
+ * <p>
+ * Cached exporter outlives the trigger which created it, so only headers identifying the tenant are set on it; per
+ * request headers (trace propagation, request id) are not forwarded to the ingestion.
+ * <p>
+ * Exporters are {@link OtlpGrpcSender}s without retry policy; a single attempt is bounded by
+ * {@code meteo-zodiac.export.attempt-timeout}, retries and the overall deadline are up to {@link OtlpDispatcher},
+ * which needs the gRPC status of the failed attempt.
+ */
+@Singleton
+public class OtlpExporterCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OtlpExporterCache.class);
+
+    // headers identifying the tenant, these are the only ones set on cached exporters
+    static final List<String> TENANT_HEADERS = List.of("appd-cpty", "appd-cpid", "layer-type", "layer-id");
+
+    // same as OtlpGrpcMetricExporter and OtlpGrpcLogRecordExporter
+    private static final String METRICS_GRPC_ENDPOINT_PATH =
+            "/opentelemetry.proto.collector.metrics.v1.MetricsService/Export";
+    private static final String LOGS_GRPC_ENDPOINT_PATH =
+            "/opentelemetry.proto.collector.logs.v1.LogsService/Export";
+
+    private final String cisUrl;
+    private final Duration attemptTimeout;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+
+    private final LinkedHashMap<TenantKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public OtlpExporterCache(@Value("${meteo-zodiac.cis-url}") String cisUrl,
+                             @Value("${meteo-zodiac.exporter-cache.max-size:1000}") int maxSize,
+                             @Value("${meteo-zodiac.exporter-cache.idle-timeout:1h}") Duration idleTimeout,
+                             @Value("${meteo-zodiac.export.attempt-timeout:10s}") Duration attemptTimeout) {
+        this.cisUrl = cisUrl;
+        this.attemptTimeout = attemptTimeout;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+    }
+
+    /**
+     * Acquire exporters of the tenant identified by given headers. Exporters of the tenant are not shut down while
+     * the lease is held, the entry evicted in the meantime is shut down once its last lease is released.
+     *
+     * @param headers headers of the cron trigger.
+     * @return lease of the cached or newly created entry, to be released once the run no longer exports.
+     */
+    Lease acquire(HttpHeaders headers) {
+        while (true) {
+            var entry = entry(headers);
+            synchronized (entry) {
+                // entry was evicted in the meantime, lease of it would keep the exporters of the tenant from the cache
+                if (entry.evicted) {
+                    continue;
+                }
+
+                entry.references++;
+                return new Lease(entry, headers);
+            }
+        }
+    }
+
+    /**
+     * Evict entries which were not used for longer than configured idle timeout.
+     */
+    @Scheduled(fixedDelay = "${meteo-zodiac.exporter-cache.eviction-interval:1m}")
+    void evictIdle() {
+        var now = System.nanoTime();
+        var evicted = new ArrayList<Entry>();
+
+        synchronized (entries) {
+            var iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                // entry held by a run is in use, even when the run takes longer than the idle timeout
+                if (now - entry.lastAccessNanos > idleTimeoutNanos && !entry.isHeld()) {
+                    iterator.remove();
+                    evicted.add(entry);
+                }
+            }
+        }
+
+        evicted.forEach(this::evict);
+    }
+
+    @PreDestroy
+    void close() {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        // application is going down, exports still in flight are abandoned
+        all.forEach(Entry::shutdown);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Entry entry(HttpHeaders headers) {
+        var key = TenantKey.of(headers);
+        Entry eldest = null;
+        Entry entry;
+
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+
+                if (entries.size() > maxSize) {
+                    var iterator = entries.values().iterator();
+                    eldest = iterator.next();
+                    iterator.remove();
+                }
+            }
+            entry.lastAccessNanos = System.nanoTime();
+        }
+
+        if (eldest != null) {
+            evict(eldest);
+        }
+        return entry;
+    }
+
+    private OtlpGrpcSender createSender(String endpointPath, HttpHeaders headers) {
+        return OtlpGrpcSender.create(URI.create("http://" + cisUrl), endpointPath, tenantHeaders(headers),
+                attemptTimeout);
+    }
+
+    private void evict(Entry entry) {
+        evictions.increment();
+        LOGGER.debug("evicting exporters of tenant {}", entry.key);
+        entry.evict();
+    }
+
+    /**
+     * Headers set on the cached exporters; tenant identity and additional headers required by the platform
+     * ingestion.
+     */
+    static Map<String, String> tenantHeaders(HttpHeaders headers) {
+        var result = new LinkedHashMap<String, String>();
+        TENANT_HEADERS.forEach(headerName -> {
+            var headerValue = headers.get(headerName);
+            if (headerValue != null) {
+                result.put(headerName, headerValue);
+            }
+        });
+
+        // platform ingestion identifies the principal and the tenant by these, in addition to the tenant headers
+        result.put("appd-pid", headers.get("appd-cpid"));
+        result.put("appd-pty", headers.get("appd-cpty"));
+        result.put("appd-tid", headers.get("layer-id"));
+        return result;
+    }
+
+    /**
+     * Exporters of a single tenant held by a run. Exporters are created on the first use, {@link #release()} must be
+     * called once the run no longer exports, i.e. after its last export completed.
+     */
+    final class Lease {
+
+        private final Entry entry;
+        private final HttpHeaders headers;
+        private boolean released;
+
+        private Lease(Entry entry, HttpHeaders headers) {
+            this.entry = entry;
+            this.headers = headers;
+        }
+
+        /**
+         * Metrics are encoded by {@link OtlpMetricsEncoder}, so the exporter sends already encoded requests.
+         *
+         * @return cached or newly created metric exporter of the tenant.
+         */
+        OtlpGrpcSender metricExporter() {
+            synchronized (entry) {
+                checkHeld();
+                if (entry.metricExporter == null) {
+                    misses.increment();
+                    entry.metricExporter = createSender(METRICS_GRPC_ENDPOINT_PATH, headers);
+                } else {
+                    hits.increment();
+                }
+                return entry.metricExporter;
+            }
+        }
+
+        /**
+         * @return cached or newly created log record exporter of the tenant.
+         */
+        OtlpGrpcSender logRecordExporter() {
+            synchronized (entry) {
+                checkHeld();
+                if (entry.logRecordExporter == null) {
+                    misses.increment();
+                    entry.logRecordExporter = createSender(LOGS_GRPC_ENDPOINT_PATH, headers);
+                } else {
+                    hits.increment();
+                }
+                return entry.logRecordExporter;
+            }
+        }
+
+        /**
+         * Release the lease, exporters of an evicted entry are shut down with its last lease. Only the first call
+         * releases anything.
+         */
+        void release() {
+            synchronized (entry) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                entry.references--;
+                if (entry.evicted && entry.references == 0) {
+                    entry.shutdown();
+                }
+            }
+        }
+
+        // exporter created now would never be shut down
+        private void checkHeld() {
+            if (released || entry.closed) {
+                throw new IllegalStateException("Exporters of tenant " + entry.key + " were already released");
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final TenantKey key;
+        private volatile long lastAccessNanos;
+        private OtlpGrpcSender metricExporter;
+        private OtlpGrpcSender logRecordExporter;
+        // number of unreleased leases
+        private int references;
+        private boolean evicted;
+        private boolean closed;
+
+        private Entry(TenantKey key) {
+            this.key = key;
+        }
+
+        private synchronized boolean isHeld() {
+            return references > 0;
+        }
+
+        // held entry is shut down by the release of its last lease
+        private synchronized void evict() {
+            evicted = true;
+            if (references == 0) {
+                shutdown();
+            }
+        }
+
+        private synchronized void shutdown() {
+            evicted = true;
+            closed = true;
+            if (metricExporter != null) {
+                metricExporter.shutdown();
+            }
+            if (logRecordExporter != null) {
+                logRecordExporter.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.opentelemetry.exporter.internal.grpc.GrpcSender;
+import io.opentelemetry.exporter.internal.grpc.GrpcSenderProvider;
+import io.opentelemetry.exporter.internal.marshal.Marshaler;
+import io.opentelemetry.sdk.common.export.RetryPolicy;
+import reactor.core.publisher.Mono;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.X509TrustManager;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * OTLP gRPC transport of a single endpoint and tenant.
+ * <p>
+ * This is the only class using the gRPC sender of the OTEL exporters ({@code io.opentelemetry.exporter.internal.grpc},
+ * the transport of {@code OtlpGrpcMetricExporter} and {@code OtlpGrpcLogRecordExporter}), which is not a stable API;
+ * the OTEL version is pinned in {@code build.gradle}. The sender is created without its retry policy, a single attempt
+ * is bounded by the attempt timeout; retries are up to {@link OtlpDispatcher}, by {@link #isRetryable(int)}.
+ */
+class OtlpGrpcSender {
+
+    /**
+     * Status of a failure without gRPC response (connection failure, timeout).
+     */
+    static final int NO_STATUS = -1;
+
+    // CANCELLED, DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED, ABORTED, OUT_OF_RANGE, UNAVAILABLE, DATA_LOSS, the same
+    // statuses the OTEL exporters retry
+    private static final Set<Integer> RETRYABLE_STATUSES = Set.of(1, 4, 8, 10, 11, 14, 15);
+
+    // OkHttp sender, the one used by the OTLP exporters
+    private static final GrpcSenderProvider SENDER_PROVIDER = ServiceLoader.load(GrpcSenderProvider.class)
+            .findFirst()
+            .orElseThrow(() -> new IllegalStateException("No OTLP gRPC sender on the classpath"));
+
+    private final GrpcSender<Marshaler> sender;
+
+    OtlpGrpcSender(GrpcSender<Marshaler> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @param endpoint       ingestion endpoint, {@code http://host:port}.
+     * @param endpointPath   path of the gRPC service method.
+     * @param headers        headers set on every request.
+     * @param attemptTimeout timeout of a single attempt.
+     * @return sender without retry policy.
+     */
+    static OtlpGrpcSender create(URI endpoint, String endpointPath, Map<String, String> headers,
+                                 Duration attemptTimeout) {
+        var compressionEnabled = false;
+        // retries are up to OtlpDispatcher
+        RetryPolicy retryPolicy = null;
+        // plain text, as the OTLP exporters with an http:// endpoint
+        SSLContext sslContext = null;
+        X509TrustManager trustManager = null;
+
+        // managed channel and stub factory are used only by the grpc-java sender, which is not on the classpath
+        GrpcSender<Marshaler> sender = SENDER_PROVIDER.createSender(endpoint, endpointPath, compressionEnabled,
+                attemptTimeout.toNanos(), headers, null, null, retryPolicy, sslContext, trustManager);
+        return new OtlpGrpcSender(sender);
+    }
+
+    /**
+     * Send the request once.
+     *
+     * @param request encoded request, it may be sent again by a retry.
+     * @return completes once the ingestion accepted the request, fails with {@link OtlpDispatcher.ExportException}
+     * (with the gRPC status, or {@link #NO_STATUS}) when it didn't.
+     */
+    Mono<Void> send(Marshaler request) {
+        return Mono.create(sink -> sender.send(request, sink::success, (response, throwable) -> sink.error(
+                response == null
+                        ? new OtlpDispatcher.ExportException(NO_STATUS, null, throwable)
+                        : new OtlpDispatcher.ExportException(response.grpcStatusValue(),
+                                response.grpcStatusDescription(), throwable))));
+    }
+
+    /**
+     * Shut the sender down, requests in flight are abandoned.
+     */
+    void shutdown() {
+        sender.shutdown();
+    }
+
+    /**
+     * @param grpcStatus status of the failed attempt.
+     * @return {@code true} when the same request may succeed when sent again.
+     */
+    static boolean isRetryable(int grpcStatus) {
+        return RETRYABLE_STATUSES.contains(grpcStatus);
+    }
+}
@@ -0,0 +1,454 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.opentelemetry.sdk.metrics.data.MetricDataType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoder of OTLP {@code ExportMetricsServiceRequest} protobuf messages.
+ * <p>
+ * Weather data are written straight to a pooled {@link ByteBuf}, without creating OTEL {@code MetricData} objects
+ * first. Every location is a single {@code ResourceMetrics} with a single {@code ScopeMetrics} containing one gauge
+ * per selected {@link WeatherMetric} (see {@link WeatherVariables}). Gauges have a data point of a fixed size per
+ * point of the location (a single one for current weather, a series for backfilled data or forecast), so everything
+ * except the resource (which is encoded once per location, see {@link TrackedLocation#getEncodedResource(double)})
+ * and the point values is precomputed (once per number of points and selection of variables) and the message is
+ * written in a single pass into a buffer of the exact size. Forecast is reported by separate metrics, see
+ * {@link WeatherMetric#getForecastName()}.
+ * <p>
+ * Missing values ({@link Double#NaN}) are not encoded: a gauge without any value is left out, as is a location
+ * without any gauge. Lengths of a location with missing values are computed from the points actually written.
+ * <p>
+ * The exact size is known before anything is written, so a large set of locations can be split into requests of
+ * bounded size ({@link #chunks(List, List, WeatherVariables, int, int)}), which are then encoded one by one.
+ * <p>
+ * See <a href="https://github.com/open-telemetry/opentelemetry-proto">opentelemetry-proto</a> for the message
+ * definitions, field numbers are noted next to the written fields.
+ */
+final class OtlpMetricsEncoder {
+
+    // wire types
+    private static final int I64 = 1;
+    private static final int LEN = 2;
+
+    private static final String SCOPE_NAME = "meteodata";
+
+    // reported values are valid for the last minute
+    private static final long POINT_DURATION_NANOS = 60 * 1_000_000_000L;
+
+    // NumberDataPoint: start_time_unix_nano (2), time_unix_nano (3), as_double (4) or as_int (6), all fixed64
+    private static final int POINT_SIZE = 3 * (1 + 8);
+    // Gauge: data_points (1) tag and length, preceding every point
+    private static final byte[] POINT_PREFIX = {(byte) tag(1, LEN), (byte) POINT_SIZE};
+
+    private static final int START_TIME_TAG = tag(2, I64);
+    private static final int TIME_TAG = tag(3, I64);
+    private static final int AS_DOUBLE_TAG = tag(4, I64);
+    private static final int AS_INT_TAG = tag(6, I64);
+
+    // Metric: name (1) and unit (3), by metric ordinal
+    private static final byte[][] HEADERS = headers(false);
+    private static final byte[][] FORECAST_HEADERS = headers(true);
+    // ScopeMetrics: scope (1)
+    private static final byte[] SCOPE_FIELD = scopeField();
+
+    private static byte[][] headers(boolean forecast) {
+        var headers = new byte[WeatherMetric.ALL.size()][];
+        for (var metric : WeatherMetric.ALL) {
+            var header = Unpooled.buffer();
+            writeString(header, 1, forecast ? metric.getForecastName() : metric.getName());
+            if (!metric.getUnit().isEmpty()) {
+                writeString(header, 3, metric.getUnit());
+            }
+            headers[metric.ordinal()] = ByteBufUtil.getBytes(header);
+        }
+        return headers;
+    }
+
+    private static byte[] scopeField() {
+        var scope = Unpooled.buffer();
+        writeString(scope, 1, SCOPE_NAME);
+        var field = Unpooled.buffer();
+        writeVarint(field, tag(1, LEN));
+        writeVarint(field, scope.readableBytes());
+        field.writeBytes(scope);
+        return ByteBufUtil.getBytes(field);
+    }
+
+    // layout of locations without missing values; current weather of all variables, backfilled series, forecasts and
+    // tenants' selections of variables have a few distinct combinations
+    private static final Layout SINGLE_POINT = createLayout(new LayoutKey(1, false, WeatherVariables.ALL));
+    private static final ConcurrentHashMap<LayoutKey, Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+    private record LayoutKey(int points, boolean forecast, WeatherVariables variables) {
+    }
+
+    /**
+     * Precomputed parts of {@code ResourceMetrics.scope_metrics} of a location with given number of points per gauge
+     * (and either observed or forecast weather) and selection of variables, when none of the values is missing.
+     *
+     * @param metricPrefixes     Metric fields (including ScopeMetrics.metrics tag and length) preceding the points,
+     *                           by metric ordinal; {@code null} for variables which are not selected.
+     * @param scopeMetricsPrefix ResourceMetrics.scope_metrics (2) tag, length and ScopeMetrics.scope (1).
+     * @param scopeMetricsSize   size of the ScopeMetrics message.
+     */
+    private record Layout(byte[][] metricPrefixes, byte[] scopeMetricsPrefix, int scopeMetricsSize) {
+    }
+
+    private static Layout layout(WeatherBatch.Row row, WeatherVariables variables) {
+        var points = row.points();
+        var forecast = row.batch().isForecast();
+        if (points == 1 && !forecast && variables == WeatherVariables.ALL) {
+            return SINGLE_POINT;
+        }
+        return LAYOUTS.computeIfAbsent(new LayoutKey(points, forecast, variables), OtlpMetricsEncoder::createLayout);
+    }
+
+    private static Layout createLayout(LayoutKey key) {
+        var headers = key.forecast() ? FORECAST_HEADERS : HEADERS;
+        var metricPrefixes = new byte[WeatherMetric.ALL.size()][];
+        var scopeMetricsSize = SCOPE_FIELD.length;
+
+        for (var metric : key.variables().metrics()) {
+            var header = headers[metric.ordinal()];
+            var metricSize = metricSize(header, key.points());
+
+            var prefix = Unpooled.buffer();
+            writeMetricPrefix(prefix, header, key.points());
+
+            metricPrefixes[metric.ordinal()] = ByteBufUtil.getBytes(prefix);
+            scopeMetricsSize += 1 + varintSize(metricSize) + metricSize;
+        }
+
+        var scopeMetricsPrefix = Unpooled.buffer();
+        writeVarint(scopeMetricsPrefix, tag(2, LEN));
+        writeVarint(scopeMetricsPrefix, scopeMetricsSize);
+        scopeMetricsPrefix.writeBytes(SCOPE_FIELD);
+
+        return new Layout(metricPrefixes, ByteBufUtil.getBytes(scopeMetricsPrefix), scopeMetricsSize);
+    }
+
+    /**
+     * Locations {@code [from, to)} encoded to a single request.
+     */
+    record Chunk(int from, int to) {
+    }
+
+    private OtlpMetricsEncoder() {
+    }
+
+    /**
+     * Split locations to chunks, each of them encoded to a request of at most {@code maxBytes} bytes and
+     * {@code maxPoints} data points. A single location exceeding the limits is a chunk of its own.
+     *
+     * @param locations locations.
+     * @param weather   weather data, in the same order as {@code locations}.
+     * @param variables encoded variables.
+     * @param maxBytes  max size of an encoded request, non-positive value means no limit.
+     * @param maxPoints max number of data points of a request, non-positive value means no limit.
+     * @return chunks covering all locations, in the same order.
+     */
+    static List<Chunk> chunks(List<TrackedLocation> locations, List<WeatherBatch.Row> weather,
+                              WeatherVariables variables, int maxBytes, int maxPoints) {
+        var bytesLimit = maxBytes > 0 ? maxBytes : Integer.MAX_VALUE;
+        var pointsLimit = maxPoints > 0 ? maxPoints : Integer.MAX_VALUE;
+
+        var chunks = new ArrayList<Chunk>();
+        var from = 0;
+        long bytes = 0;
+        long points = 0;
+
+        for (int i = 0; i < locations.size(); i++) {
+            var row = weather.get(i);
+            var size = locationSize(locations.get(i).getEncodedResource(row.elevation()),
+                    scopeMetricsSize(row, variables));
+            var pointsPerLocation = pointCount(row, variables);
+            if (i > from && (bytes + size > bytesLimit || points + pointsPerLocation > pointsLimit)) {
+                chunks.add(new Chunk(from, i));
+                from = i;
+                bytes = 0;
+                points = 0;
+            }
+            bytes += size;
+            points += pointsPerLocation;
+        }
+        if (from < locations.size()) {
+            chunks.add(new Chunk(from, locations.size()));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Encode weather data of given locations.
+     *
+     * @param allocator allocator of the buffer.
+     * @param locations locations.
+     * @param weather   weather data, in the same order as {@code locations}; must contain the encoded variables.
+     * @param variables encoded variables.
+     * @return encoded request, the caller is responsible for releasing it.
+     */
+    static EncodedMetrics encode(ByteBufAllocator allocator, List<TrackedLocation> locations,
+                                 List<WeatherBatch.Row> weather, WeatherVariables variables) {
+        var resources = new byte[locations.size()][];
+        var scopeMetricsSizes = new int[locations.size()];
+        var size = 0;
+        var pointCount = 0;
+
+        for (int i = 0; i < locations.size(); i++) {
+            var row = weather.get(i);
+            resources[i] = locations.get(i).getEncodedResource(row.elevation());
+            scopeMetricsSizes[i] = scopeMetricsSize(row, variables);
+            size += locationSize(resources[i], scopeMetricsSizes[i]);
+            pointCount += pointCount(row, variables);
+        }
+
+        var buffer = allocator.buffer(size, size);
+        try {
+            for (int i = 0; i < locations.size(); i++) {
+                writeResourceMetrics(buffer, resources[i], scopeMetricsSizes[i], weather.get(i), variables);
+            }
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+
+        return new EncodedMetrics(buffer, locations, weather, pointCount);
+    }
+
+    /**
+     * Encode OTEL resource of a single location.
+     *
+     * @param attributes resource attributes, values are either {@link String} or {@link Double}; {@code null}
+     *                   values are skipped.
+     * @return encoded {@code Resource} message.
+     */
+    static byte[] encodeResource(Object... attributes) {
+        var buffer = Unpooled.buffer();
+
+        for (int i = 0; i < attributes.length; i += 2) {
+            var key = (String) attributes[i];
+            var value = attributes[i + 1];
+            if (value == null) {
+                continue;
+            }
+
+            // AnyValue: string_value (1) or double_value (4)
+            var anyValue = Unpooled.buffer();
+            if (value instanceof Double doubleValue) {
+                writeVarint(anyValue, tag(4, I64));
+                anyValue.writeLongLE(Double.doubleToRawLongBits(doubleValue));
+            } else {
+                writeString(anyValue, 1, value.toString());
+            }
+
+            // KeyValue: key (1), value (2)
+            var keyValue = Unpooled.buffer();
+            writeString(keyValue, 1, key);
+            writeVarint(keyValue, tag(2, LEN));
+            writeVarint(keyValue, anyValue.readableBytes());
+            keyValue.writeBytes(anyValue);
+
+            // Resource: attributes (1)
+            writeVarint(buffer, tag(1, LEN));
+            writeVarint(buffer, keyValue.readableBytes());
+            buffer.writeBytes(keyValue);
+        }
+
+        return ByteBufUtil.getBytes(buffer);
+    }
+
+    // size of the whole ExportMetricsServiceRequest.resource_metrics (1) field of a location, 0 when it has no points
+    private static int locationSize(byte[] resource, int scopeMetricsSize) {
+        if (scopeMetricsSize == SCOPE_FIELD.length) {
+            return 0;
+        }
+        var resourceMetricsSize = resourceMetricsSize(resource, scopeMetricsSize);
+        return 1 + varintSize(resourceMetricsSize) + resourceMetricsSize;
+    }
+
+    private static int resourceMetricsSize(byte[] resource, int scopeMetricsSize) {
+        return 1 + varintSize(resource.length) + resource.length + 1 + varintSize(scopeMetricsSize) + scopeMetricsSize;
+    }
+
+    // size of the ScopeMetrics message, only the scope when no value is reported
+    private static int scopeMetricsSize(WeatherBatch.Row weather, WeatherVariables variables) {
+        if (isComplete(weather, variables)) {
+            return layout(weather, variables).scopeMetricsSize();
+        }
+
+        var headers = weather.batch().isForecast() ? FORECAST_HEADERS : HEADERS;
+        var size = SCOPE_FIELD.length;
+        for (var metric : variables.metrics()) {
+            var points = reportedPoints(weather, metric);
+            if (points > 0) {
+                var metricSize = metricSize(headers[metric.ordinal()], points);
+                size += 1 + varintSize(metricSize) + metricSize;
+            }
+        }
+        return size;
+    }
+
+    // Metric: name (1), unit (3), gauge (5)
+    private static int metricSize(byte[] header, int points) {
+        var gaugeSize = gaugeSize(points);
+        return header.length + 1 + varintSize(gaugeSize) + gaugeSize;
+    }
+
+    // Gauge: data_points (1)
+    private static int gaugeSize(int points) {
+        return points * (POINT_PREFIX.length + POINT_SIZE);
+    }
+
+    private static int pointCount(WeatherBatch.Row weather, WeatherVariables variables) {
+        if (isComplete(weather, variables)) {
+            return weather.points() * variables.size();
+        }
+
+        var count = 0;
+        for (var metric : variables.metrics()) {
+            count += reportedPoints(weather, metric);
+        }
+        return count;
+    }
+
+    // whether all values of the selected variables are reported, so that the precomputed layout applies
+    private static boolean isComplete(WeatherBatch.Row weather, WeatherVariables variables) {
+        var batch = weather.batch();
+        var index = weather.index();
+        for (var metric : variables.metrics()) {
+            for (int point = 0; point < batch.points(); point++) {
+                if (Double.isNaN(batch.value(metric, index, point))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // points of the metric which have a value, missing values are not exported
+    private static int reportedPoints(WeatherBatch.Row weather, WeatherMetric metric) {
+        var batch = weather.batch();
+        var index = weather.index();
+        var count = 0;
+        for (int point = 0; point < batch.points(); point++) {
+            if (!Double.isNaN(batch.value(metric, index, point))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeResourceMetrics(ByteBuf buffer, byte[] resource, int scopeMetricsSize,
+                                             WeatherBatch.Row weather, WeatherVariables variables) {
+        if (scopeMetricsSize == SCOPE_FIELD.length) {
+            return;
+        }
+
+        var batch = weather.batch();
+        var complete = isComplete(weather, variables);
+        var layout = complete ? layout(weather, variables) : null;
+        var headers = batch.isForecast() ? FORECAST_HEADERS : HEADERS;
+
+        // ExportMetricsServiceRequest: resource_metrics (1)
+        writeVarint(buffer, tag(1, LEN));
+        writeVarint(buffer, resourceMetricsSize(resource, scopeMetricsSize));
+
+        // ResourceMetrics: resource (1), scope_metrics (2)
+        writeVarint(buffer, tag(1, LEN));
+        writeVarint(buffer, resource.length);
+        buffer.writeBytes(resource);
+        if (complete) {
+            buffer.writeBytes(layout.scopeMetricsPrefix());
+        } else {
+            writeVarint(buffer, tag(2, LEN));
+            writeVarint(buffer, scopeMetricsSize);
+            buffer.writeBytes(SCOPE_FIELD);
+        }
+
+        for (var metric : variables.metrics()) {
+            if (complete) {
+                buffer.writeBytes(layout.metricPrefixes()[metric.ordinal()]);
+            } else {
+                var reported = reportedPoints(weather, metric);
+                if (reported == 0) {
+                    continue;
+                }
+                writeMetricPrefix(buffer, headers[metric.ordinal()], reported);
+            }
+            writePoints(buffer, weather, metric);
+        }
+    }
+
+    // ScopeMetrics: metrics (2) tag and length, Metric fields and gauge (5) tag and length
+    private static void writeMetricPrefix(ByteBuf buffer, byte[] header, int points) {
+        writeVarint(buffer, tag(2, LEN));
+        writeVarint(buffer, metricSize(header, points));
+        buffer.writeBytes(header);
+        writeVarint(buffer, tag(5, LEN));
+        writeVarint(buffer, gaugeSize(points));
+    }
+
+    private static void writePoints(ByteBuf buffer, WeatherBatch.Row weather, WeatherMetric metric) {
+        var batch = weather.batch();
+        var index = weather.index();
+        var points = batch.points();
+
+        for (int point = 0; point < points; point++) {
+            var value = batch.value(metric, index, point);
+            // missing value, (long) NaN would be exported as 0
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            var epochNanos = batch.epochNanos(index, point);
+
+            buffer.writeBytes(POINT_PREFIX);
+            buffer.writeByte(START_TIME_TAG);
+            buffer.writeLongLE(epochNanos - POINT_DURATION_NANOS);
+            buffer.writeByte(TIME_TAG);
+            buffer.writeLongLE(epochNanos);
+            if (metric.getType() == MetricDataType.LONG_GAUGE) {
+                buffer.writeByte(AS_INT_TAG);
+                buffer.writeLongLE((long) value);
+            } else {
+                buffer.writeByte(AS_DOUBLE_TAG);
+                buffer.writeLongLE(Double.doubleToRawLongBits(value));
+            }
+        }
+    }
+
+    private static int tag(int field, int wireType) {
+        return (field << 3) | wireType;
+    }
+
+    private static void writeString(ByteBuf buffer, int field, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(buffer, tag(field, LEN));
+        writeVarint(buffer, bytes.length);
+        buffer.writeBytes(bytes);
+    }
+
+    private static void writeVarint(ByteBuf buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    private static int varintSize(int value) {
+        var size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+}
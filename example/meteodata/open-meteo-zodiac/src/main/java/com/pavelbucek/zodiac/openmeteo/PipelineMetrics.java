@@ -0,0 +1,379 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.exporter.otlp.metrics.OtlpGrpcMetricExporter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.Aggregation;
+import io.opentelemetry.sdk.metrics.InstrumentSelector;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.View;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.CollectionRegistration;
+import io.opentelemetry.sdk.metrics.export.MetricReader;
+import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
+import io.opentelemetry.sdk.resources.Resource;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Instrumentation of the trigger pipeline.
+ * <p>
+ * Every stage of a run records its latency ({@code meteodata.stage.duration}, tagged by stage, tenant and outcome -
+ * {@code ok}, {@code error} or {@code cancelled}, so the histogram count is also the error count), number of
+ * processed items ({@code meteodata.stage.items} - locations, metric data points or log records, depending on the
+ * stage) and payload bytes ({@code meteodata.stage.bytes} - received response bodies or encoded requests). Whole
+ * trigger is recorded as {@code meteodata.trigger.duration}. Log records dropped by the full log buffer of a run are
+ * counted as {@code meteodata.logs.dropped}, pages of locations not read because the pagination reached its limit as
+ * {@code meteodata.locations.skipped_pages}.
+ * <p>
+ * Metrics are kept by an OTEL SDK meter provider of this service (unrelated to the tenant metrics), they are
+ * available in Prometheus text format on {@code GET /metrics} ({@link MetricsController}) and, when
+ * {@code meteo-zodiac.self-metrics.otlp-endpoint} is set, also exported by OTLP every
+ * {@code meteo-zodiac.self-metrics.otlp-interval}.
+ */
+@Singleton
+public class PipelineMetrics {
+
+    static final String FETCH_CONFIG = "fetchConfig";
+    static final String INIT_LOGGING = "initLogging";
+    static final String FETCH_LOCATIONS = "fetchLocations";
+    static final String FETCH_OPEN_METEO_DATA = "fetchOpenMeteoData";
+    static final String FETCH_BACKFILL_DATA = "fetchBackfillData";
+    static final String FETCH_FORECAST_DATA = "fetchForecastData";
+    static final String PREPARE_METRIC_DATA = "prepareMetricData";
+    static final String EXPORT_METRIC_DATA = "exportMetricData";
+    static final String REPLAY_SPOOL = "replaySpool";
+    static final String EXPORT_LOGS = "exportLogs";
+
+    static final String SPOOL_APPENDED = "appended";
+    static final String SPOOL_REPLAYED = "replayed";
+    static final String SPOOL_DROPPED = "dropped";
+
+    static final String OUTCOME_OK = "ok";
+    static final String OUTCOME_ERROR = "error";
+    static final String OUTCOME_CANCELLED = "cancelled";
+
+    private static final AttributeKey<String> STAGE = AttributeKey.stringKey("stage");
+    private static final AttributeKey<String> TENANT = AttributeKey.stringKey("tenant");
+    private static final AttributeKey<String> OUTCOME = AttributeKey.stringKey("outcome");
+    private static final AttributeKey<String> TRIGGER = AttributeKey.stringKey("trigger");
+    private static final AttributeKey<String> SIGNAL = AttributeKey.stringKey("signal");
+    private static final AttributeKey<String> REASON = AttributeKey.stringKey("reason");
+    private static final AttributeKey<String> OPERATION = AttributeKey.stringKey("operation");
+
+    // seconds; Open Meteo and ingestion calls take tens to hundreds of milliseconds, whole trigger up to minutes
+    private static final List<Double> DURATION_BUCKETS = List.of(
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0, 120.0, 300.0);
+
+    private final SdkMeterProvider meterProvider;
+    private final ScrapeReader scrapeReader = new ScrapeReader();
+
+    private final DoubleHistogram stageDuration;
+    private final LongCounter stageItems;
+    private final LongCounter stageBytes;
+    private final DoubleHistogram triggerDuration;
+    private final LongCounter exportRetries;
+    private final LongCounter exportGiveUps;
+    private final LongCounter spoolRecords;
+    private final LongCounter logsDropped;
+    private final LongCounter locationPagesSkipped;
+
+    public PipelineMetrics(@Value("${meteo-zodiac.self-metrics.otlp-endpoint:}") String otlpEndpoint,
+                           @Value("${meteo-zodiac.self-metrics.otlp-interval:60s}") Duration otlpInterval) {
+        var builder = SdkMeterProvider.builder()
+                .setResource(Resource.getDefault().merge(Resource.builder()
+                        .put("service.name", "open-meteo-zodiac")
+                        .build()))
+                .registerView(
+                        InstrumentSelector.builder().setType(InstrumentType.HISTOGRAM).build(),
+                        View.builder().setAggregation(Aggregation.explicitBucketHistogram(DURATION_BUCKETS)).build())
+                .registerMetricReader(scrapeReader);
+
+        if (otlpEndpoint != null && !otlpEndpoint.isBlank()) {
+            builder.registerMetricReader(PeriodicMetricReader.builder(
+                            OtlpGrpcMetricExporter.builder().setEndpoint(otlpEndpoint).build())
+                    .setInterval(otlpInterval)
+                    .build());
+        }
+
+        meterProvider = builder.build();
+
+        var meter = meterProvider.get("meteodata.pipeline");
+        stageDuration = meter.histogramBuilder("meteodata.stage.duration")
+                .setDescription("Duration of a single invocation of a pipeline stage")
+                .setUnit("s")
+                .build();
+        stageItems = meter.counterBuilder("meteodata.stage.items")
+                .setDescription("Items processed by a pipeline stage (locations, data points or log records)")
+                .setUnit("{item}")
+                .build();
+        stageBytes = meter.counterBuilder("meteodata.stage.bytes")
+                .setDescription("Payload received or sent by a pipeline stage")
+                .setUnit("By")
+                .build();
+        triggerDuration = meter.histogramBuilder("meteodata.trigger.duration")
+                .setDescription("Duration of the whole trigger")
+                .setUnit("s")
+                .build();
+        exportRetries = meter.counterBuilder("meteodata.export.retries")
+                .setDescription("Retried OTLP export attempts")
+                .setUnit("{attempt}")
+                .build();
+        exportGiveUps = meter.counterBuilder("meteodata.export.give_ups")
+                .setDescription("OTLP exports which failed for good (deadline, retries exhausted, non-retryable)")
+                .setUnit("{export}")
+                .build();
+        spoolRecords = meter.counterBuilder("meteodata.spool.records")
+                .setDescription("Metric requests appended to, replayed from or dropped by the spool")
+                .setUnit("{request}")
+                .build();
+        logsDropped = meter.counterBuilder("meteodata.logs.dropped")
+                .setDescription("Log records of runs dropped by the full log buffer (meteo-zodiac.logs.capacity)")
+                .setUnit("{record}")
+                .build();
+        locationPagesSkipped = meter.counterBuilder("meteodata.locations.skipped_pages")
+                .setDescription("Pages of locations not read, the Knowledge store returned more pages than planned")
+                .setUnit("{page}")
+                .build();
+    }
+
+    /**
+     * Record latency of a stage, from the subscription to the termination of the returned flux.
+     *
+     * @param stage   name of the stage.
+     * @param context context of the run.
+     * @param flux    stage to be measured.
+     * @return measured stage.
+     */
+    <T> Flux<T> stage(String stage, MeteoContext context, Flux<T> flux) {
+        return Flux.defer(() -> {
+            var startNanos = System.nanoTime();
+            return flux.doFinally(signal -> recordStage(stage, context, startNanos, outcome(signal)));
+        });
+    }
+
+    /**
+     * Record latency of a stage, from the subscription to the termination of the returned mono.
+     *
+     * @see #stage(String, MeteoContext, Flux)
+     */
+    <T> Mono<T> stage(String stage, MeteoContext context, Mono<T> mono) {
+        return Mono.defer(() -> {
+            var startNanos = System.nanoTime();
+            return mono.doFinally(signal -> recordStage(stage, context, startNanos, outcome(signal)));
+        });
+    }
+
+    /**
+     * Record latency of the whole trigger.
+     *
+     * @param trigger {@code single} or {@code bulk}.
+     * @param context context of the trigger.
+     * @param flux    trigger to be measured.
+     * @return measured trigger.
+     */
+    <T> Flux<T> trigger(String trigger, MeteoContext context, Flux<T> flux) {
+        return Flux.defer(() -> {
+            var startNanos = System.nanoTime();
+            return flux.doFinally(signal -> recordTrigger(trigger, context, startNanos, outcome(signal)));
+        });
+    }
+
+    /**
+     * @see #trigger(String, MeteoContext, Flux)
+     */
+    <T> Mono<T> trigger(String trigger, MeteoContext context, Mono<T> mono) {
+        return Mono.defer(() -> {
+            var startNanos = System.nanoTime();
+            return mono.doFinally(signal -> recordTrigger(trigger, context, startNanos, outcome(signal)));
+        });
+    }
+
+    /**
+     * @param stage   name of the stage.
+     * @param context context of the run.
+     * @param count   number of processed items.
+     */
+    void items(String stage, MeteoContext context, long count) {
+        stageItems.add(count, Attributes.of(STAGE, stage, TENANT, tenant(context)));
+    }
+
+    /**
+     * @param stage   name of the stage.
+     * @param context context of the run.
+     * @param bytes   size of the received or sent payload.
+     */
+    void bytes(String stage, MeteoContext context, long bytes) {
+        stageBytes.add(bytes, Attributes.of(STAGE, stage, TENANT, tenant(context)));
+    }
+
+    /**
+     * @param signal  {@code metrics} or {@code logs}.
+     * @param context context of the run.
+     */
+    void exportRetry(String signal, MeteoContext context) {
+        exportRetries.add(1, Attributes.of(SIGNAL, signal, TENANT, tenant(context)));
+    }
+
+    /**
+     * @param signal  {@code metrics} or {@code logs}.
+     * @param context context of the run.
+     * @param reason  {@code deadline}, {@code exhausted} or {@code non-retryable}.
+     */
+    void exportGiveUp(String signal, MeteoContext context, String reason) {
+        exportGiveUps.add(1, Attributes.of(SIGNAL, signal, TENANT, tenant(context), REASON, reason));
+    }
+
+    /**
+     * @param context context of the run.
+     * @param count   number of log records dropped by the full log buffer of the run.
+     */
+    void logsDropped(MeteoContext context, long count) {
+        logsDropped.add(count, Attributes.of(TENANT, tenant(context)));
+    }
+
+    /**
+     * @param context context of the run.
+     * @param count   number of pages of locations the run didn't read.
+     */
+    void locationPagesSkipped(MeteoContext context, long count) {
+        locationPagesSkipped.add(count, Attributes.of(TENANT, tenant(context)));
+    }
+
+    /**
+     * Observe slots of the OTLP exports.
+     *
+     * @param inFlight number of export attempts being sent.
+     * @param waiting  number of exports waiting for a free slot.
+     */
+    void exportSlots(LongSupplier inFlight, LongSupplier waiting) {
+        var meter = meterProvider.get("meteodata.pipeline");
+        meter.gaugeBuilder("meteodata.export.in_flight")
+                .setDescription("OTLP export attempts being sent")
+                .setUnit("{export}")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(inFlight.getAsLong()));
+        meter.gaugeBuilder("meteodata.export.waiting")
+                .setDescription("OTLP exports waiting for a free slot (meteo-zodiac.export.max-in-flight)")
+                .setUnit("{export}")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(waiting.getAsLong()));
+    }
+
+    /**
+     * @param operation {@link #SPOOL_APPENDED}, {@link #SPOOL_REPLAYED} or {@link #SPOOL_DROPPED}.
+     * @param tenant    {@code layer-id} of the tenant.
+     * @param reason    reason of the drop, {@code null} for other operations.
+     */
+    void spool(String operation, String tenant, String reason) {
+        var attributes = Attributes.builder()
+                .put(OPERATION, operation)
+                .put(TENANT, tenant != null ? tenant : "");
+        if (reason != null) {
+            attributes.put(REASON, reason);
+        }
+        spoolRecords.add(1, attributes.build());
+    }
+
+    /**
+     * Observe pending records of the spool.
+     *
+     * @param pendingBytes pending bytes by {@code layer-id} of the tenant.
+     */
+    void spoolUsage(Supplier<Map<String, Long>> pendingBytes) {
+        meterProvider.get("meteodata.pipeline").gaugeBuilder("meteodata.spool.pending")
+                .setDescription("Size of the spooled metric requests waiting for replay")
+                .setUnit("By")
+                .ofLongs()
+                .buildWithCallback(measurement -> pendingBytes.get().forEach((tenant, bytes) ->
+                        measurement.record(bytes, Attributes.of(TENANT, tenant))));
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format.
+     */
+    String scrape() {
+        return PrometheusTextFormat.write(scrapeReader.collect());
+    }
+
+    @PreDestroy
+    void close() {
+        meterProvider.shutdown();
+    }
+
+    private void recordStage(String stage, MeteoContext context, long startNanos, String outcome) {
+        stageDuration.record(seconds(startNanos),
+                Attributes.of(STAGE, stage, TENANT, tenant(context), OUTCOME, outcome));
+    }
+
+    private void recordTrigger(String trigger, MeteoContext context, long startNanos, String outcome) {
+        triggerDuration.record(seconds(startNanos),
+                Attributes.of(TRIGGER, trigger, TENANT, tenant(context), OUTCOME, outcome));
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    private static String outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_ERROR -> OUTCOME_ERROR;
+            case CANCEL -> OUTCOME_CANCELLED;
+            default -> OUTCOME_OK;
+        };
+    }
+
+    private static String tenant(MeteoContext context) {
+        var tenant = context.getHeaders().get("layer-id");
+        return tenant != null ? tenant : "";
+    }
+
+    /**
+     * Pull based reader, metrics are collected only when scraped. Cumulative temporality, as expected by Prometheus.
+     */
+    private static final class ScrapeReader implements MetricReader {
+
+        private volatile CollectionRegistration registration = CollectionRegistration.noop();
+
+        @Override
+        public void register(CollectionRegistration registration) {
+            this.registration = registration;
+        }
+
+        Collection<MetricData> collect() {
+            return registration.collectAllMetrics();
+        }
+
+        @Override
+        public AggregationTemporality getAggregationTemporality(InstrumentType instrumentType) {
+            return AggregationTemporality.CUMULATIVE;
+        }
+
+        @Override
+        public CompletableResultCode forceFlush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            registration = CollectionRegistration.noop();
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
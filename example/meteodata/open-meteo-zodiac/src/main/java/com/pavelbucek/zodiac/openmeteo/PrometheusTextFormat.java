@@ -0,0 +1,169 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.data.PointData;
+
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Writer of the Prometheus text exposition format (version 0.0.4).
+ * <p>
+ * Covers only what {@link PipelineMetrics} records - cumulative sums (counters), gauges and explicit bucket
+ * histograms. Names follow the OTEL to Prometheus conventions: dots are replaced by underscores, unit is appended
+ * ({@code s} as {@code _seconds}, {@code By} as {@code _bytes}, annotations in curly braces are dropped) and
+ * monotonic sums get the {@code _total} suffix.
+ */
+final class PrometheusTextFormat {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusTextFormat() {
+    }
+
+    static String write(Collection<MetricData> metrics) {
+        var sb = new StringBuilder();
+
+        metrics.stream()
+                .sorted(Comparator.comparing(MetricData::getName))
+                .forEach(metric -> {
+                    var name = name(metric);
+                    switch (metric.getType()) {
+                        case LONG_SUM -> {
+                            var monotonic = metric.getLongSumData().isMonotonic();
+                            var sampleName = monotonic ? name + "_total" : name;
+                            header(sb, metric, name, monotonic ? "counter" : "gauge");
+                            metric.getLongSumData().getPoints().forEach(point ->
+                                    sample(sb, sampleName, point, null, Long.toString(point.getValue())));
+                        }
+                        case DOUBLE_SUM -> {
+                            var monotonic = metric.getDoubleSumData().isMonotonic();
+                            var sampleName = monotonic ? name + "_total" : name;
+                            header(sb, metric, name, monotonic ? "counter" : "gauge");
+                            metric.getDoubleSumData().getPoints().forEach(point ->
+                                    sample(sb, sampleName, point, null, number(point.getValue())));
+                        }
+                        case LONG_GAUGE -> {
+                            header(sb, metric, name, "gauge");
+                            metric.getLongGaugeData().getPoints().forEach(point ->
+                                    sample(sb, name, point, null, Long.toString(point.getValue())));
+                        }
+                        case DOUBLE_GAUGE -> {
+                            header(sb, metric, name, "gauge");
+                            metric.getDoubleGaugeData().getPoints().forEach(point ->
+                                    sample(sb, name, point, null, number(point.getValue())));
+                        }
+                        case HISTOGRAM -> {
+                            header(sb, metric, name, "histogram");
+                            metric.getHistogramData().getPoints().forEach(point -> histogram(sb, name, point));
+                        }
+                        default -> {
+                            // not recorded by this service
+                        }
+                    }
+                });
+
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, HistogramPointData point) {
+        var boundaries = point.getBoundaries();
+        var counts = point.getCounts();
+
+        // OTEL counts are per bucket, Prometheus buckets are cumulative
+        long cumulative = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            cumulative += counts.get(i);
+            var le = i < boundaries.size() ? number(boundaries.get(i)) : "+Inf";
+            sample(sb, name + "_bucket", point, le, Long.toString(cumulative));
+        }
+        sample(sb, name + "_sum", point, null, number(point.getSum()));
+        sample(sb, name + "_count", point, null, Long.toString(point.getCount()));
+    }
+
+    private static void header(StringBuilder sb, MetricData metric, String name, String type) {
+        if (!metric.getDescription().isEmpty()) {
+            sb.append("# HELP ").append(name).append(' ')
+                    .append(metric.getDescription().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        }
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, PointData point, String le, String value) {
+        sb.append(name);
+        labels(sb, point.getAttributes(), le);
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void labels(StringBuilder sb, Attributes attributes, String le) {
+        if (attributes.isEmpty() && le == null) {
+            return;
+        }
+
+        sb.append('{');
+        var first = new boolean[]{true};
+        attributes.forEach((key, value) -> {
+            if (!first[0]) {
+                sb.append(',');
+            }
+            first[0] = false;
+            label(sb, sanitize(key.getKey()), String.valueOf(value));
+        });
+        if (le != null) {
+            if (!first[0]) {
+                sb.append(',');
+            }
+            label(sb, "le", le);
+        }
+        sb.append('}');
+    }
+
+    private static void label(StringBuilder sb, String name, String value) {
+        sb.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '"' -> sb.append("\\\"");
+                case '\n' -> sb.append("\\n");
+                default -> sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static String name(MetricData metric) {
+        var name = sanitize(metric.getName());
+        var unit = switch (metric.getUnit()) {
+            case "s" -> "seconds";
+            case "By" -> "bytes";
+            case "ms" -> "milliseconds";
+            default -> metric.getUnit().startsWith("{") || metric.getUnit().isEmpty()
+                    ? "" : sanitize(metric.getUnit());
+        };
+        return unit.isEmpty() || name.endsWith("_" + unit) ? name : name + "_" + unit;
+    }
+
+    private static String sanitize(String name) {
+        var sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            var valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'
+                    || c == ':';
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String number(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,86 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.Executors;
+
+/**
+ * Scheduler of the pipeline stages which block or burn CPU - creating the log exporter, encoding metrics, handing the
+ * request to the OTLP exporter (exporter creation, synchronized cache lookup, marshaling) and flushing the logs.
+ * <p>
+ * Execution mode is set by {@code meteo-zodiac.execution.mode}:
+ * <ul>
+ *     <li>{@code event-loop} - stages run on the thread which subscribes, i.e. a Netty event loop (HTTP server or
+ *     client); nothing is offloaded,</li>
+ *     <li>{@code bounded-elastic} - stages run on Reactor's bounded elastic scheduler,</li>
+ *     <li>{@code virtual-thread} - every stage runs on its own virtual thread, the event loops only do the I/O.</li>
+ * </ul>
+ */
+@Singleton
+public class StageScheduler {
+
+    /**
+     * Where the blocking stages run.
+     */
+    enum Mode {
+        EVENT_LOOP,
+        BOUNDED_ELASTIC,
+        VIRTUAL_THREAD;
+
+        /**
+         * @param value mode name, e.g. {@code virtual-thread}.
+         * @return parsed mode.
+         */
+        static Mode parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final Mode mode;
+    private final Scheduler scheduler;
+
+    public StageScheduler(@Value("${meteo-zodiac.execution.mode:virtual-thread}") String mode) {
+        this.mode = Mode.parse(mode);
+        this.scheduler = switch (this.mode) {
+            case EVENT_LOOP -> Schedulers.immediate();
+            case BOUNDED_ELASTIC -> Schedulers.boundedElastic();
+            case VIRTUAL_THREAD -> Schedulers.fromExecutorService(
+                    Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("meteo-stage-", 0).factory()),
+                    "meteo-stage");
+        };
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mono blocking stage.
+     * @return stage subscribed on the scheduler of the configured mode.
+     */
+    <T> Mono<T> offload(Mono<T> mono) {
+        return mode == Mode.EVENT_LOOP ? mono : mono.subscribeOn(scheduler);
+    }
+
+    /**
+     * @param flux blocking stage.
+     * @return stage subscribed on the scheduler of the configured mode.
+     */
+    <T> Flux<T> offload(Flux<T> flux) {
+        return mode == Mode.EVENT_LOOP ? flux : flux.subscribeOn(scheduler);
+    }
+
+    @PreDestroy
+    void close() {
+        // shared Reactor schedulers are not ours to dispose
+        if (mode == Mode.VIRTUAL_THREAD) {
+            scheduler.dispose();
+        }
+    }
+}
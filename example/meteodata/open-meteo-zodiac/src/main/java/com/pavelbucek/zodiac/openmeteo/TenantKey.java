@@ -0,0 +1,17 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.http.HttpHeaders;
+
+/**
+ * Tenant identity, used as a key of per-tenant caches.
+ *
+ * @param layerId       value of {@code layer-id} header.
+ * @param principalId   value of {@code appd-cpid} header.
+ * @param principalType value of {@code appd-cpty} header.
+ */
+record TenantKey(String layerId, String principalId, String principalType) {
+
+    static TenantKey of(HttpHeaders headers) {
+        return new TenantKey(headers.get("layer-id"), headers.get("appd-cpid"), headers.get("appd-cpty"));
+    }
+}
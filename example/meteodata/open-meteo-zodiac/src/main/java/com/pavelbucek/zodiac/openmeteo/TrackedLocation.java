@@ -0,0 +1,94 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Location together with the state derived from it.
+ * <p>
+ * Instances are kept in the {@link LocationSnapshotCache} and reused by subsequent runs as long as the location is
+ * still present in the Knowledge store, so the derived state doesn't need to be recomputed on every run.
+ */
+public final class TrackedLocation {
+
+    private final Location location;
+    private final String queryLatitude;
+    private final String queryLongitude;
+
+    private final AtomicLong lastExportedEpochNanos = new AtomicLong();
+
+    private volatile ElevatedResource resource;
+
+    public TrackedLocation(Location location) {
+        this.location = location;
+        this.queryLatitude = Double.toString(location.getLatitude());
+        this.queryLongitude = Double.toString(location.getLongitude());
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    /**
+     * @return latitude formatted for the Open Meteo request.
+     */
+    public String getQueryLatitude() {
+        return queryLatitude;
+    }
+
+    /**
+     * @return longitude formatted for the Open Meteo request.
+     */
+    public String getQueryLongitude() {
+        return queryLongitude;
+    }
+
+    /**
+     * OTEL resource to be mapped to FMM Entity, encoded as OTLP {@code Resource} message. Each location has its own
+     * OTEL resource (and consequently entity as well).
+     * <p>
+     * Elevation is reported by Open Meteo, the resource is encoded again only when it changes.
+     *
+     * @param elevation elevation of the location.
+     * @return encoded OTEL resource.
+     */
+    public byte[] getEncodedResource(double elevation) {
+        var current = resource;
+        if (current == null || Double.compare(current.elevation(), elevation) != 0) {
+            current = new ElevatedResource(elevation, OtlpMetricsEncoder.encodeResource(
+                    "location.elevation", elevation,
+                    "location.latitude", location.getLatitude(),
+                    "location.longitude", location.getLongitude(),
+                    "location.name", location.getName(),
+                    "telemetry.sdk.name", "SOLUTION_PREFIX"));
+            resource = current;
+        }
+        return current.resource();
+    }
+
+    /**
+     * @return timestamp of the newest exported weather data, {@code 0} when nothing was exported yet.
+     */
+    public long getLastExportedEpochNanos() {
+        return lastExportedEpochNanos.get();
+    }
+
+    /**
+     * Record exported weather data, older timestamp than the already recorded one is ignored (concurrent runs of the
+     * same tenant may complete in any order).
+     *
+     * @param epochNanos timestamp of the exported weather data.
+     */
+    public void markExported(long epochNanos) {
+        lastExportedEpochNanos.accumulateAndGet(epochNanos, Math::max);
+    }
+
+    @Override
+    public String toString() {
+        return location.toString();
+    }
+
+    private record ElevatedResource(double elevation, byte[] resource) {
+    }
+}
@@ -0,0 +1,269 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import java.util.Arrays;
+
+/**
+ * Weather data of a batch of locations, as returned by a single Open Meteo request.
+ * <p>
+ * Data are kept column by column in primitive arrays (one array per requested {@link WeatherMetric}, see
+ * {@link WeatherVariables}), there is no object per location. Single location is referenced by {@link Row}, which is
+ * only a view of the batch. Missing values (including variables which were not requested) are {@link Double#NaN}.
+ * <p>
+ * Every location has the same number of points - a single one for {@code current} weather, a series of 15-minute
+ * intervals for backfilled data ({@code minutely_15}) or of hours for forecast ({@code hourly}); points of a location
+ * are stored next to each other, oldest first.
+ * <p>
+ * Batch is filled by {@link WeatherBatchDecoder} and must not be modified once it's published.
+ */
+public final class WeatherBatch {
+
+    private static final WeatherMetric[] METRICS = WeatherMetric.values();
+
+    private final int points;
+    private final boolean forecast;
+    private final WeatherVariables variables;
+    private int size;
+    private double[] latitudes;
+    private double[] longitudes;
+    private double[] elevations;
+    private long[] epochNanos;
+    // [metric ordinal][row * points + point], null for variables which were not requested
+    private final double[][] values;
+
+    WeatherBatch(int capacity) {
+        this(capacity, 1, false, WeatherVariables.ALL);
+    }
+
+    /**
+     * @param capacity  expected number of locations.
+     * @param points    number of points of every location.
+     * @param forecast  whether the points are forecast, not observed weather.
+     * @param variables requested variables, only these are allocated.
+     */
+    WeatherBatch(int capacity, int points, boolean forecast, WeatherVariables variables) {
+        var initialCapacity = Math.max(1, capacity);
+        this.points = Math.max(1, points);
+        this.forecast = forecast;
+        this.variables = variables;
+        this.latitudes = new double[initialCapacity];
+        this.longitudes = new double[initialCapacity];
+        this.elevations = new double[initialCapacity];
+        this.epochNanos = new long[initialCapacity * this.points];
+        this.values = new double[METRICS.length][];
+        for (var metric : variables.metrics()) {
+            values[metric.ordinal()] = new double[initialCapacity * this.points];
+        }
+    }
+
+    /**
+     * @return number of locations in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of points of every location.
+     */
+    public int points() {
+        return points;
+    }
+
+    /**
+     * @return {@code true} when the points are forecast, reported as {@link WeatherMetric#getForecastName()}.
+     */
+    public boolean isForecast() {
+        return forecast;
+    }
+
+    /**
+     * @return requested variables, values of other variables are {@link Double#NaN}.
+     */
+    WeatherVariables variables() {
+        return variables;
+    }
+
+    /**
+     * @param index index of the location, in the same order as the locations were requested.
+     * @return view of a single location.
+     */
+    public Row row(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for batch of " + size);
+        }
+        return new Row(this, index);
+    }
+
+    public double latitude(int index) {
+        return latitudes[index];
+    }
+
+    public double longitude(int index) {
+        return longitudes[index];
+    }
+
+    public double elevation(int index) {
+        return elevations[index];
+    }
+
+    /**
+     * @param index index of the location.
+     * @return timestamp of the current weather, the last point of a series.
+     */
+    public long epochNanos(int index) {
+        return epochNanos(index, points - 1);
+    }
+
+    /**
+     * @param index index of the location.
+     * @param point index of the point, oldest first.
+     * @return timestamp of the point.
+     */
+    public long epochNanos(int index, int point) {
+        return epochNanos[index * points + point];
+    }
+
+    /**
+     * @param metric weather variable.
+     * @param index  index of the location.
+     * @return value of the variable, the last point of a series; {@link Double#NaN} when it was not reported.
+     */
+    public double value(WeatherMetric metric, int index) {
+        return value(metric, index, points - 1);
+    }
+
+    /**
+     * @param metric weather variable.
+     * @param index  index of the location.
+     * @param point  index of the point, oldest first.
+     * @return value of the variable, {@link Double#NaN} when it was not reported.
+     */
+    public double value(WeatherMetric metric, int index, int point) {
+        var column = values[metric.ordinal()];
+        return column != null ? column[index * points + point] : Double.NaN;
+    }
+
+    /**
+     * Append new location, all its values are {@link Double#NaN} until set.
+     *
+     * @return index of the added location.
+     */
+    int add() {
+        if (size == latitudes.length) {
+            var capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            elevations = Arrays.copyOf(elevations, capacity);
+            epochNanos = Arrays.copyOf(epochNanos, capacity * points);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    values[i] = Arrays.copyOf(values[i], capacity * points);
+                }
+            }
+        }
+
+        var index = size++;
+        latitudes[index] = Double.NaN;
+        longitudes[index] = Double.NaN;
+        elevations[index] = Double.NaN;
+        for (double[] column : values) {
+            if (column != null) {
+                Arrays.fill(column, index * points, (index + 1) * points, Double.NaN);
+            }
+        }
+        return index;
+    }
+
+    void setLatitude(int index, double latitude) {
+        latitudes[index] = latitude;
+    }
+
+    void setLongitude(int index, double longitude) {
+        longitudes[index] = longitude;
+    }
+
+    void setElevation(int index, double elevation) {
+        elevations[index] = elevation;
+    }
+
+    void setEpochNanos(int index, long nanos) {
+        setEpochNanos(index, points - 1, nanos);
+    }
+
+    void setEpochNanos(int index, int point, long nanos) {
+        epochNanos[index * points + point] = nanos;
+    }
+
+    void setValue(WeatherMetric metric, int index, double value) {
+        setValue(metric, index, points - 1, value);
+    }
+
+    void setValue(WeatherMetric metric, int index, int point, double value) {
+        values[metric.ordinal()][index * points + point] = value;
+    }
+
+    @Override
+    public String toString() {
+        return "WeatherBatch{" +
+                "size=" + size +
+                ", points=" + points +
+                ", forecast=" + forecast +
+                ", variables=" + variables +
+                '}';
+    }
+
+    /**
+     * Weather data of a single location within a batch.
+     *
+     * @param batch batch the location belongs to.
+     * @param index index of the location within the batch.
+     */
+    public record Row(WeatherBatch batch, int index) {
+
+        public double latitude() {
+            return batch.latitude(index);
+        }
+
+        public double longitude() {
+            return batch.longitude(index);
+        }
+
+        public double elevation() {
+            return batch.elevation(index);
+        }
+
+        public long epochNanos() {
+            return batch.epochNanos(index);
+        }
+
+        public double value(WeatherMetric metric) {
+            return batch.value(metric, index);
+        }
+
+        public int points() {
+            return batch.points();
+        }
+
+        public long epochNanos(int point) {
+            return batch.epochNanos(index, point);
+        }
+
+        public double value(WeatherMetric metric, int point) {
+            return batch.value(metric, index, point);
+        }
+
+        @Override
+        public String toString() {
+            var sb = new StringBuilder("Row{")
+                    .append("latitude=").append(latitude())
+                    .append(", longitude=").append(longitude())
+                    .append(", elevation=").append(elevation())
+                    .append(", points=").append(points())
+                    .append(", epochNanos=").append(epochNanos());
+            for (var metric : batch.variables().metrics()) {
+                sb.append(", ").append(metric.getName()).append('=').append(value(metric));
+            }
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Streaming decoder of Open Meteo {@code /v1/forecast} responses.
+ * <p>
+ * Response is parsed token by token directly into a {@link WeatherBatch}, no object is created per location. Batch
+ * request returns an array of locations, request for a single location returns just the object; both are accepted.
+ * Only {@code latitude}, {@code longitude}, {@code elevation}, {@code current}, {@code minutely_15} and
+ * {@code hourly} (their {@code time} and requested variables, see {@link WeatherVariables}) are read, everything
+ * else is skipped. Series ({@code minutely_15}, {@code hourly}) is a {@code time} array and an array per variable,
+ * values are parsed one by one straight into the batch; both the {@code time} array and the array of every variable
+ * must have exactly the number of points the batch was created for. Missing values ({@code null}) are decoded as
+ * {@link Double#NaN}.
+ * <p>
+ * Decoder is stateful (it remembers the last parsed timestamp of every point, all locations of a single response
+ * usually share them), so it must not be shared between threads; create new one for each response.
+ */
+final class WeatherBatchDecoder {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // exactly representable powers of ten
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18,
+            1e19, 1e20, 1e21, 1e22
+    };
+
+    private final int points;
+    private final boolean forecast;
+    private final WeatherVariables variables;
+
+    // last parsed timestamp, by point
+    private final char[][] lastTimes;
+    private final long[] lastEpochNanos;
+
+    /**
+     * Decoder of {@code current} weather, all variables.
+     */
+    WeatherBatchDecoder() {
+        this(1, false, WeatherVariables.ALL);
+    }
+
+    /**
+     * Decoder of either {@code current} weather, or {@code minutely_15} or {@code hourly} series.
+     *
+     * @param points    number of points of every location, {@code 1} for current weather.
+     * @param forecast  whether the response is a forecast, see {@link WeatherBatch#isForecast()}.
+     * @param variables requested variables, other variables are skipped.
+     */
+    WeatherBatchDecoder(int points, boolean forecast, WeatherVariables variables) {
+        this.points = Math.max(1, points);
+        this.forecast = forecast;
+        this.variables = variables;
+        this.lastTimes = new char[this.points][];
+        this.lastEpochNanos = new long[this.points];
+    }
+
+    /**
+     * Decode Open Meteo response.
+     *
+     * @param content      raw response body.
+     * @param expectedSize expected number of locations, used to size the batch.
+     * @return decoded batch, locations are in the same order as in the response.
+     * @throws IOException when the content is not a valid Open Meteo response, or a series (its times or values of a
+     *                     variable) doesn't have the expected number of points.
+     */
+    WeatherBatch decode(byte[] content, int expectedSize) throws IOException {
+        var batch = new WeatherBatch(expectedSize, points, forecast, variables);
+
+        try (var parser = JSON_FACTORY.createParser(content)) {
+            var token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                    readLocation(parser, batch);
+                }
+                if (token != JsonToken.END_ARRAY) {
+                    throw unexpected(parser, token);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                readLocation(parser, batch);
+            } else {
+                throw unexpected(parser, token);
+            }
+        }
+
+        return batch;
+    }
+
+    // parser is positioned at START_OBJECT of the location
+    private void readLocation(JsonParser parser, WeatherBatch batch) throws IOException {
+        var index = batch.add();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.currentName();
+            var token = parser.nextToken();
+
+            switch (name) {
+                case "latitude" -> batch.setLatitude(index, readDouble(parser, token));
+                case "longitude" -> batch.setLongitude(index, readDouble(parser, token));
+                case "elevation" -> batch.setElevation(index, readDouble(parser, token));
+                case "current" -> {
+                    if (token == JsonToken.START_OBJECT) {
+                        readCurrent(parser, batch, index);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                case "minutely_15", "hourly" -> {
+                    if (token == JsonToken.START_OBJECT) {
+                        readSeries(parser, batch, index);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    // parser is positioned at START_OBJECT of the current weather
+    private void readCurrent(JsonParser parser, WeatherBatch batch, int index) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.currentName();
+            var token = parser.nextToken();
+
+            if ("time".equals(name) && token == JsonToken.VALUE_STRING) {
+                batch.setEpochNanos(index, readTime(parser, batch.points() - 1));
+                continue;
+            }
+
+            var metric = WeatherMetric.forName(name);
+            if (metric != null && variables.contains(metric)) {
+                batch.setValue(metric, index, readDouble(parser, token));
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    // parser is positioned at START_OBJECT of the series
+    private void readSeries(JsonParser parser, WeatherBatch batch, int index) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.currentName();
+            var token = parser.nextToken();
+
+            if (token != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+
+            if ("time".equals(name)) {
+                var point = 0;
+                while ((token = parser.nextToken()) == JsonToken.VALUE_STRING) {
+                    if (point < batch.points()) {
+                        batch.setEpochNanos(index, point, readTime(parser, point));
+                    }
+                    point++;
+                }
+                if (token != JsonToken.END_ARRAY) {
+                    throw unexpected(parser, token);
+                }
+                if (point != batch.points()) {
+                    throw new IOException("Expected " + batch.points() + " points in Open Meteo response, got "
+                            + point + " at " + parser.currentLocation());
+                }
+                continue;
+            }
+
+            var metric = WeatherMetric.forName(name);
+            if (metric == null || !variables.contains(metric)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            var point = 0;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw unexpected(parser, null);
+                }
+                var value = readDouble(parser, token);
+                if (point < batch.points()) {
+                    batch.setValue(metric, index, point, value);
+                }
+                point++;
+            }
+            if (point != batch.points()) {
+                throw new IOException("Expected " + batch.points() + " values of " + name
+                        + " in Open Meteo response, got " + point + " at " + parser.currentLocation());
+            }
+        }
+    }
+
+    private static double readDouble(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+            var value = parseDecimal(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            return Double.isNaN(value) ? parser.getDoubleValue() : value;
+        }
+        parser.skipChildren();
+        return Double.NaN;
+    }
+
+    /**
+     * Parse plain decimal number (e.g. {@code -12.5}) without creating a String, which is what
+     * {@link JsonParser#getDoubleValue()} does. Result is the same as of {@link Double#parseDouble(String)}: both the
+     * digits and the power of ten are exact doubles, so the division is correctly rounded.
+     *
+     * @return parsed value or {@link Double#NaN}, when the number is not a plain decimal with at most 15 significant
+     * digits.
+     */
+    static double parseDecimal(char[] chars, int offset, int length) {
+        var end = offset + length;
+        var i = offset;
+        var negative = i < end && chars[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        long digits = 0;
+        var digitCount = 0;
+        var scale = -1;
+
+        for (; i < end; i++) {
+            var c = chars[i];
+            if (c >= '0' && c <= '9') {
+                digits = digits * 10 + (c - '0');
+                if (digits != 0 && ++digitCount > 15) {
+                    return Double.NaN;
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                // exponent
+                return Double.NaN;
+            }
+        }
+
+        if (scale < 0 || scale >= POWERS_OF_TEN.length) {
+            return Double.NaN;
+        }
+
+        var value = digits / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Open Meteo reports time as {@code yyyy-MM-ddTHH:mm} in GMT (unless a timezone is requested).
+     */
+    private long readTime(JsonParser parser, int point) throws IOException {
+        var chars = parser.getTextCharacters();
+        var offset = parser.getTextOffset();
+        var length = parser.getTextLength();
+
+        var lastTime = lastTimes[point];
+        if (lastTime != null && Arrays.equals(chars, offset, offset + length, lastTime, 0, lastTime.length)) {
+            return lastEpochNanos[point];
+        }
+
+        var epochSecond = LocalDateTime.parse(new String(chars, offset, length)).toEpochSecond(ZoneOffset.UTC);
+
+        lastTimes[point] = Arrays.copyOfRange(chars, offset, offset + length);
+        lastEpochNanos[point] = epochSecond * 1_000_000_000L;
+        return lastEpochNanos[point];
+    }
+
+    private static IOException unexpected(JsonParser parser, JsonToken token) {
+        return new IOException("Unexpected token " + token + " in Open Meteo response at "
+                + parser.currentLocation());
+    }
+}
@@ -0,0 +1,229 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Singleton;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of Open Meteo responses, shared by all tenants.
+ * <p>
+ * Open Meteo updates {@code current} data once per 15 minutes, so there is no point in asking for the same
+ * coordinates twice within the same interval. Entries are keyed by coordinates rounded to
+ * {@code meteo-zodiac.weather-cache.precision} decimal places (nearby locations share a grid cell), by the requested
+ * variables and by the interval ("slot") of {@code meteo-zodiac.weather-cache.interval} in which they were fetched.
+ * All entries are dropped when the slot rolls over, the number of entries is capped by
+ * {@code meteo-zodiac.weather-cache.max-size} (least recently used entry is evicted first). Non-positive max size
+ * disables the cache.
+ * <p>
+ * Hourly forecast is kept separately, keyed also by the number of forecast days (horizon), in slots of
+ * {@code meteo-zodiac.weather-cache.forecast-interval} and capped by
+ * {@code meteo-zodiac.weather-cache.forecast-max-size}; a forecast entry holds a whole series, so it's much larger
+ * than an entry of current weather.
+ * <p>
+ * Entries are views of decoded {@link WeatherBatch}es, a batch is retained until all its cached rows are gone (at the
+ * latest when the slot rolls over).
+ */
+@Singleton
+public class WeatherCache {
+
+    private final Clock clock;
+    private final double scale;
+    private final Store current;
+    private final Store forecast;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public WeatherCache(@Value("${meteo-zodiac.weather-cache.interval:15m}") Duration interval,
+                        @Value("${meteo-zodiac.weather-cache.precision:2}") int precision,
+                        @Value("${meteo-zodiac.weather-cache.max-size:10000}") int maxSize,
+                        @Value("${meteo-zodiac.weather-cache.forecast-interval:1h}") Duration forecastInterval,
+                        @Value("${meteo-zodiac.weather-cache.forecast-max-size:1000}") int forecastMaxSize) {
+        this.clock = Clock.systemUTC();
+        this.scale = Math.pow(10, precision);
+        this.current = new Store(interval, maxSize);
+        this.forecast = new Store(forecastInterval, forecastMaxSize);
+    }
+
+    /**
+     * @return slot (interval) the current time belongs to.
+     */
+    public long currentSlot() {
+        return clock.millis() / current.intervalMillis;
+    }
+
+    /**
+     * @return slot (interval) of the forecast the current time belongs to.
+     */
+    public long forecastSlot() {
+        return clock.millis() / forecast.intervalMillis;
+    }
+
+    /**
+     * Create cache key of current weather for given coordinates.
+     *
+     * @param latitude  latitude of the location.
+     * @param longitude longitude of the location.
+     * @param slot      slot, see {@link #currentSlot()}.
+     * @param variables requested weather variables.
+     * @return cache key.
+     */
+    public CellKey key(double latitude, double longitude, long slot, WeatherVariables variables) {
+        return key(latitude, longitude, slot, variables, 0);
+    }
+
+    /**
+     * Create cache key for given coordinates.
+     *
+     * @param latitude  latitude of the location.
+     * @param longitude longitude of the location.
+     * @param slot      slot, see {@link #currentSlot()} and {@link #forecastSlot()}.
+     * @param variables requested weather variables.
+     * @param days      number of forecast days, {@code 0} for current weather.
+     * @return cache key.
+     */
+    public CellKey key(double latitude, double longitude, long slot, WeatherVariables variables, int days) {
+        return new CellKey(Math.round(latitude * scale), Math.round(longitude * scale), slot, variables.mask(), days);
+    }
+
+    /**
+     * Get cached response.
+     *
+     * @param key cache key.
+     * @return cached response or {@code null}, when there is no cached value for current slot.
+     */
+    public WeatherBatch.Row get(CellKey key) {
+        var response = store(key).get(key);
+
+        if (response == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return response;
+    }
+
+    /**
+     * Get cached response without updating hit and miss statistics.
+     *
+     * @param key cache key.
+     * @return cached response or {@code null}, when there is no cached value for current slot.
+     */
+    public WeatherBatch.Row peek(CellKey key) {
+        return store(key).get(key);
+    }
+
+    /**
+     * Store response.
+     *
+     * @param key      cache key.
+     * @param response response for coordinates represented by the key.
+     */
+    public void put(CellKey key, WeatherBatch.Row response) {
+        store(key).put(key, response);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return current.size() + forecast.size();
+    }
+
+    private Store store(CellKey key) {
+        return key.days() > 0 ? forecast : current;
+    }
+
+    /**
+     * Entries of a single slot.
+     */
+    private final class Store {
+
+        private final long intervalMillis;
+        private final int maxSize;
+
+        private final LinkedHashMap<CellKey, WeatherBatch.Row> entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CellKey, WeatherBatch.Row> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        private long entriesSlot = Long.MIN_VALUE;
+
+        Store(Duration interval, int maxSize) {
+            this.intervalMillis = Math.max(1, interval.toMillis());
+            this.maxSize = maxSize;
+        }
+
+        WeatherBatch.Row get(CellKey key) {
+            if (maxSize <= 0) {
+                return null;
+            }
+
+            synchronized (entries) {
+                rollOver(key.slot());
+                return entries.get(key);
+            }
+        }
+
+        void put(CellKey key, WeatherBatch.Row response) {
+            if (maxSize <= 0 || response == null) {
+                return;
+            }
+
+            synchronized (entries) {
+                rollOver(key.slot());
+                // response fetched for a slot which is already gone
+                if (key.slot() == entriesSlot) {
+                    entries.put(key, response);
+                }
+            }
+        }
+
+        int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        // must be called with the entries lock held
+        private void rollOver(long slot) {
+            if (slot > entriesSlot) {
+                evictions.add(entries.size());
+                entries.clear();
+                entriesSlot = slot;
+            }
+        }
+    }
+
+    /**
+     * Grid cell within an interval.
+     *
+     * @param latitude  scaled and rounded latitude.
+     * @param longitude scaled and rounded longitude.
+     * @param slot      interval.
+     * @param variables mask of the requested variables, see {@link WeatherVariables#mask()}.
+     * @param days      number of forecast days (horizon), {@code 0} for current weather.
+     */
+    public record CellKey(long latitude, long longitude, long slot, long variables, int days) {
+    }
+}
@@ -0,0 +1,65 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Missed 15-minute intervals of a location, to be backfilled from Open Meteo {@code minutely_15} data.
+ * <p>
+ * Gap lies between the last exported interval and the current one (both exclusive), a location which was never
+ * exported (or its last export is not known) is backfilled as far back as allowed. Locations with the same gap are
+ * fetched by a single request, so the bounds are aligned to the interval.
+ *
+ * @param startEpochNanos timestamp of the first missed interval.
+ * @param endEpochNanos   timestamp of the last missed interval.
+ */
+record WeatherGap(long startEpochNanos, long endEpochNanos) {
+
+    static final long INTERVAL_NANOS = Duration.ofMinutes(15).toNanos();
+
+    /**
+     * @param lastExportedEpochNanos timestamp of the last exported weather data, {@code 0} when there's none (gap
+     *                               then spans the whole {@code maxWindow}).
+     * @param currentEpochNanos      timestamp of the current weather data.
+     * @param maxWindow              how far back from the current weather data gaps are backfilled.
+     * @return missed intervals, or {@code null} when there's nothing to backfill.
+     */
+    static WeatherGap of(long lastExportedEpochNanos, long currentEpochNanos, Duration maxWindow) {
+        if (currentEpochNanos - lastExportedEpochNanos <= INTERVAL_NANOS) {
+            return null;
+        }
+
+        var start = Math.max(lastExportedEpochNanos + INTERVAL_NANOS, currentEpochNanos - maxWindow.toNanos());
+        // round up to the interval, the first point must not precede the last exported one
+        start = Math.ceilDiv(start, INTERVAL_NANOS) * INTERVAL_NANOS;
+        var end = Math.floorDiv(currentEpochNanos - INTERVAL_NANOS, INTERVAL_NANOS) * INTERVAL_NANOS;
+
+        return start <= end ? new WeatherGap(start, end) : null;
+    }
+
+    /**
+     * @return number of missed intervals.
+     */
+    int points() {
+        return (int) ((endEpochNanos - startEpochNanos) / INTERVAL_NANOS) + 1;
+    }
+
+    /**
+     * @return {@code start_minutely_15} query parameter, {@code yyyy-MM-ddTHH:mm} in GMT.
+     */
+    String startTime() {
+        return format(startEpochNanos);
+    }
+
+    /**
+     * @return {@code end_minutely_15} query parameter, {@code yyyy-MM-ddTHH:mm} in GMT.
+     */
+    String endTime() {
+        return format(endEpochNanos);
+    }
+
+    private static String format(long epochNanos) {
+        return LocalDateTime.ofEpochSecond(epochNanos / 1_000_000_000L, 0, ZoneOffset.UTC).toString();
+    }
+}
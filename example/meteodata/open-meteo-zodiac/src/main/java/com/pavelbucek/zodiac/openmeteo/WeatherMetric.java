@@ -0,0 +1,84 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.opentelemetry.sdk.metrics.data.MetricDataType;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Weather variables requested from Open Meteo and reported as OTEL gauges.
+ * <p>
+ * Metric name is the same as the name of the Open Meteo variable, forecast of the variable is reported as a separate
+ * metric prefixed by {@code forecast_}. Values are decoded as {@code double} (see {@link WeatherBatch}), integral
+ * variables (codes, flags, percentages) are reported as long gauges. Tenants may select a subset of the variables,
+ * see {@link WeatherVariables}.
+ */
+public enum WeatherMetric {
+
+    APPARENT_TEMPERATURE("apparent_temperature", "{Celsius}", MetricDataType.DOUBLE_GAUGE),
+    CLOUD_COVER("cloud_cover", "%", MetricDataType.LONG_GAUGE),
+    IS_DAY("is_day", "", MetricDataType.LONG_GAUGE),
+    PRECIPITATION("precipitation", "mm", MetricDataType.DOUBLE_GAUGE),
+    PRESSURE_MSL("pressure_msl", "hPa", MetricDataType.DOUBLE_GAUGE),
+    RAIN("rain", "mm", MetricDataType.DOUBLE_GAUGE),
+    RELATIVE_HUMIDITY_2M("relative_humidity_2m", "%", MetricDataType.LONG_GAUGE),
+    SHOWERS("showers", "mm", MetricDataType.DOUBLE_GAUGE),
+    SNOWFALL("snowfall", "cm", MetricDataType.DOUBLE_GAUGE),
+    SURFACE_PRESSURE("surface_pressure", "hPa", MetricDataType.DOUBLE_GAUGE),
+    TEMPERATURE_2M("temperature_2m", "{Celsius}", MetricDataType.DOUBLE_GAUGE),
+    WEATHER_CODE("weather_code", "{WMO Code}", MetricDataType.LONG_GAUGE),
+    WIND_DIRECTION_10M("wind_direction_10m", "{Degree}", MetricDataType.DOUBLE_GAUGE),
+    WIND_GUSTS_10M("wind_gusts_10m", "km/h", MetricDataType.DOUBLE_GAUGE),
+    WIND_SPEED_10M("wind_speed_10m", "km/h", MetricDataType.DOUBLE_GAUGE);
+
+    // values() creates a copy on every call
+    static final List<WeatherMetric> ALL = List.of(values());
+
+    private static final Map<String, WeatherMetric> BY_NAME = Arrays.stream(values())
+            .collect(Collectors.toUnmodifiableMap(WeatherMetric::getName, Function.identity()));
+
+    private final String name;
+    private final String forecastName;
+    private final String unit;
+    private final MetricDataType type;
+
+    WeatherMetric(String name, String unit, MetricDataType type) {
+        this.name = name;
+        this.forecastName = "forecast_" + name;
+        this.unit = unit;
+        this.type = type;
+    }
+
+    /**
+     * @param name name of the Open Meteo variable.
+     * @return metric reporting the variable, {@code null} when the variable is not reported.
+     */
+    static WeatherMetric forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return name of the metric reporting forecast of the variable.
+     */
+    public String getForecastName() {
+        return forecastName;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return {@link MetricDataType#DOUBLE_GAUGE} or {@link MetricDataType#LONG_GAUGE}.
+     */
+    public MetricDataType getType() {
+        return type;
+    }
+}
@@ -0,0 +1,102 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalescing of concurrent Open Meteo requests.
+ * <p>
+ * All tenants are triggered by the cron at the same minute and many of them ask for the same grid cells. The first
+ * run which misses a cell in the {@link WeatherCache} becomes the owner of the request for that cell; other runs
+ * asking for the same cell while the request is pending don't issue their own request, they subscribe to the pending
+ * result instead.
+ * <p>
+ * Owner of a registration must always {@link #complete(Registration, WeatherBatch.Row)} or
+ * {@link #fail(Registration, Throwable)} it, otherwise other runs would wait forever.
+ */
+@Singleton
+public class WeatherRequestCoalescer {
+
+    private final ConcurrentHashMap<WeatherCache.CellKey, Sinks.One<WeatherBatch.Row>> pending =
+            new ConcurrentHashMap<>();
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Register interest in a grid cell.
+     *
+     * @param key grid cell.
+     * @return registration; when {@link Registration#owner()} is {@code true}, the caller is responsible for fetching
+     * the cell.
+     */
+    public Registration register(WeatherCache.CellKey key) {
+        var sink = Sinks.<WeatherBatch.Row>one();
+        var existing = pending.putIfAbsent(key, sink);
+
+        if (existing != null) {
+            coalesced.increment();
+            return new Registration(key, existing, false);
+        }
+
+        issued.increment();
+        return new Registration(key, sink, true);
+    }
+
+    /**
+     * Complete pending request, all waiting runs receive the response.
+     *
+     * @param registration owned registration.
+     * @param response     received response.
+     */
+    public void complete(Registration registration, WeatherBatch.Row response) {
+        if (pending.remove(registration.key(), registration.sink())) {
+            registration.sink().tryEmitValue(response);
+        }
+    }
+
+    /**
+     * Fail pending request, all waiting runs receive the error. Registration, which was already completed, is not
+     * affected.
+     *
+     * @param registration owned registration.
+     * @param throwable    cause.
+     */
+    public void fail(Registration registration, Throwable throwable) {
+        if (pending.remove(registration.key(), registration.sink())) {
+            registration.sink().tryEmitError(throwable);
+        }
+    }
+
+    /**
+     * @return number of cells requested from Open Meteo.
+     */
+    public long getIssuedCount() {
+        return issued.sum();
+    }
+
+    /**
+     * @return number of cells, which were not requested, because the same request was already pending.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Registered interest in a grid cell.
+     *
+     * @param key   grid cell.
+     * @param sink  pending response.
+     * @param owner whether the registering run is responsible for fetching the cell.
+     */
+    public record Registration(WeatherCache.CellKey key, Sinks.One<WeatherBatch.Row> sink, boolean owner) {
+
+        public Mono<WeatherBatch.Row> response() {
+            return sink.asMono();
+        }
+    }
+}
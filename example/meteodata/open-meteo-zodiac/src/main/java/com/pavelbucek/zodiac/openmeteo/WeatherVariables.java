@@ -0,0 +1,136 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Selection of {@link WeatherMetric}s reported for a tenant ({@code variables} of {@code meteodata:meteoConfig}).
+ * <p>
+ * The selection drives the whole pipeline: only selected variables are requested from Open Meteo ({@link #query()}),
+ * parsed and allocated by {@link WeatherBatchDecoder}, and encoded as gauges by {@link OtlpMetricsEncoder}. Metrics
+ * are always in the order of {@link WeatherMetric} declaration, so two selections of the same variables are equal.
+ */
+final class WeatherVariables {
+
+    /**
+     * All variables, used when the tenant doesn't select any.
+     */
+    static final WeatherVariables ALL = new WeatherVariables(EnumSet.allOf(WeatherMetric.class));
+
+    private final List<WeatherMetric> metrics;
+    private final long mask;
+    private final String query;
+
+    private WeatherVariables(EnumSet<WeatherMetric> metrics) {
+        this.metrics = List.copyOf(metrics);
+        this.mask = metrics.stream().mapToLong(metric -> 1L << metric.ordinal()).reduce(0, (a, b) -> a | b);
+        this.query = metrics.stream().map(WeatherMetric::getName).collect(Collectors.joining(","));
+    }
+
+    /**
+     * @param names names of the Open Meteo variables, unknown names are ignored (see {@link #unknown(Collection)}).
+     * @return selection of the variables, {@link #ALL} when no known variable is selected.
+     */
+    static WeatherVariables of(Collection<String> names) {
+        if (names == null || names.isEmpty()) {
+            return ALL;
+        }
+
+        var metrics = EnumSet.noneOf(WeatherMetric.class);
+        for (var name : names) {
+            var metric = WeatherMetric.forName(name);
+            if (metric != null) {
+                metrics.add(metric);
+            }
+        }
+
+        return metrics.isEmpty() || metrics.size() == WeatherMetric.ALL.size() ? ALL : new WeatherVariables(metrics);
+    }
+
+    /**
+     * @param names names of the Open Meteo variables.
+     * @return names which are not reported by any {@link WeatherMetric}.
+     */
+    static List<String> unknown(Collection<String> names) {
+        var unknown = new ArrayList<String>();
+        if (names != null) {
+            for (var name : names) {
+                if (WeatherMetric.forName(name) == null) {
+                    unknown.add(name);
+                }
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * @return variables selected by either of the selections.
+     */
+    WeatherVariables union(WeatherVariables other) {
+        if (containsAll(other)) {
+            return this;
+        }
+        if (other.containsAll(this)) {
+            return other;
+        }
+
+        var metrics = EnumSet.copyOf(this.metrics);
+        metrics.addAll(other.metrics);
+        return metrics.size() == WeatherMetric.ALL.size() ? ALL : new WeatherVariables(metrics);
+    }
+
+    /**
+     * @return selected metrics, in the order of declaration.
+     */
+    List<WeatherMetric> metrics() {
+        return metrics;
+    }
+
+    boolean contains(WeatherMetric metric) {
+        return (mask & (1L << metric.ordinal())) != 0;
+    }
+
+    /**
+     * @return {@code true} when all variables of the other selection are selected by this one.
+     */
+    boolean containsAll(WeatherVariables other) {
+        return (mask & other.mask) == other.mask;
+    }
+
+    int size() {
+        return metrics.size();
+    }
+
+    /**
+     * @return bit set of the selected metric ordinals, identifies the selection.
+     */
+    long mask() {
+        return mask;
+    }
+
+    /**
+     * @return comma separated names of the selected variables, as expected by the {@code current},
+     * {@code minutely_15} and {@code hourly} query parameters of Open Meteo.
+     */
+    String query() {
+        return query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WeatherVariables other && mask == other.mask;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mask);
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+}
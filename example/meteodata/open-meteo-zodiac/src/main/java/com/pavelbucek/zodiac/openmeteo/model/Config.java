@@ -5,19 +5,28 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import io.micronaut.core.annotation.Introspected;
 import io.micronaut.serde.annotation.Serdeable;
 
+import java.util.List;
+
 @Introspected
 @Serdeable
 public class Config {
 
     private final String name;
     private final LogLevel logLevel;
+    private final List<String> variables;
+
+    public Config(String name, String logLevel) {
+        this(name, logLevel, null);
+    }
 
     @JsonCreator
     public Config(
             @JsonProperty("name") String name,
-            @JsonProperty("logLevel") String logLevel) {
+            @JsonProperty("logLevel") String logLevel,
+            @JsonProperty("variables") List<String> variables) {
         this.name = name;
         this.logLevel = LogLevel.valueOf(logLevel.toUpperCase());
+        this.variables = variables == null ? List.of() : List.copyOf(variables);
     }
 
     public String getName() {
@@ -28,6 +37,13 @@ public class Config {
         return logLevel;
     }
 
+    /**
+     * @return names of the selected weather variables, empty when all variables are reported.
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
     public enum LogLevel {
         OFF,
         INFO,
@@ -39,6 +55,7 @@ public class Config {
         return "Config{" +
                 "name='" + name + '\'' +
                 ", logLevel=" + logLevel +
+                ", variables=" + variables +
                 '}';
     }
 }
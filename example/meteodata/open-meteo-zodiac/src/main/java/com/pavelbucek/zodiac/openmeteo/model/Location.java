@@ -5,6 +5,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import io.micronaut.core.annotation.Introspected;
 import io.micronaut.serde.annotation.Serdeable;
 
+import java.util.Objects;
+
 @Introspected
 @Serdeable
 public class Location {
@@ -35,6 +37,25 @@ public class Location {
         return longitude;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Location location = (Location) o;
+        return Double.compare(latitude, location.latitude) == 0
+                && Double.compare(longitude, location.longitude) == 0
+                && Objects.equals(name, location.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, latitude, longitude);
+    }
+
     @Override
     public String toString() {
         return "KnowledgeLocation{" +
@@ -5,6 +5,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import io.micronaut.core.annotation.Introspected;
 import io.micronaut.serde.annotation.Serdeable;
 
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 @Introspected
@@ -13,13 +16,16 @@ public class LocationResponseWrapper {
 
     private final List<Item> items;
     private final int total;
+    private final Links links;
 
     @JsonCreator
     public LocationResponseWrapper(
             @JsonProperty("items") List<Item> items,
-            @JsonProperty("total") int total) {
+            @JsonProperty("total") int total,
+            @JsonProperty("_links") Links links) {
         this.items = items;
         this.total = total;
+        this.links = links;
     }
 
     public List<Item> getItems() {
@@ -30,6 +36,42 @@ public class LocationResponseWrapper {
         return total;
     }
 
+    public Links getLinks() {
+        return links;
+    }
+
+    /**
+     * Cursor pointing to the next page of results.
+     *
+     * @return cursor extracted from {@code _links.next.href}, {@code null} when this is the last page.
+     */
+    public String getNextCursor() {
+        if (links == null || links.getNext() == null || links.getNext().getHref() == null) {
+            return null;
+        }
+
+        var query = URI.create(links.getNext().getHref()).getRawQuery();
+        if (query == null) {
+            return null;
+        }
+
+        for (String param : query.split("&")) {
+            if (param.startsWith("cursor=")) {
+                return URLDecoder.decode(param.substring("cursor=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationResponseWrapper{" +
+                "items=" + items +
+                ", total=" + total +
+                ", links=" + links +
+                '}';
+    }
+
     @Introspected
     @Serdeable
     public static class Item {
@@ -44,6 +86,58 @@ public class LocationResponseWrapper {
         public Location getKnowledgeLocation() {
             return location;
         }
+
+        @Override
+        public String toString() {
+            return "Item{" +
+                    "location=" + location +
+                    '}';
+        }
     }
-}
 
+    @Introspected
+    @Serdeable
+    public static class Links {
+
+        private final Link next;
+
+        @JsonCreator
+        public Links(@JsonProperty("next") Link next) {
+            this.next = next;
+        }
+
+        public Link getNext() {
+            return next;
+        }
+
+        @Override
+        public String toString() {
+            return "Links{" +
+                    "next=" + next +
+                    '}';
+        }
+    }
+
+    @Introspected
+    @Serdeable
+    public static class Link {
+
+        private final String href;
+
+        @JsonCreator
+        public Link(@JsonProperty("href") String href) {
+            this.href = href;
+        }
+
+        public String getHref() {
+            return href;
+        }
+
+        @Override
+        public String toString() {
+            return "Link{" +
+                    "href='" + href + '\'' +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.core.convert.ConversionService;
+import io.micronaut.http.simple.SimpleHttpHeaders;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.logs.Severity;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.resources.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exports of the {@link BackgroundLogExporter}, the drop accounting and the result of its close.
+ */
+class BackgroundLogExporterTest {
+
+    private final PipelineMetrics metrics = new PipelineMetrics("", Duration.ofMinutes(1));
+    private final MeteoContext context = new MeteoContext(new SimpleHttpHeaders(Map.of("layer-id", "tenant"),
+            ConversionService.SHARED));
+    private final List<List<LogRecordData>> exported = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void close() {
+        metrics.close();
+    }
+
+    @Test
+    void droppedRecordsAreCounted() {
+        var exporter = exporter(new LogRecordBuffer(2, LogRecordBuffer.OverflowPolicy.DROP_OLDEST, 0, 0));
+        for (int i = 0; i < 5; i++) {
+            exporter.add(i, Severity.INFO, "message " + i, Attributes.empty());
+        }
+
+        assertTrue(exporter.flush().isSuccess());
+        assertEquals(3, exporter.getDroppedRecordCount());
+        assertTrue(metrics.scrape().contains("meteodata_logs_dropped_total{tenant=\"tenant\"} 3"), metrics::scrape);
+
+        // the tenant is told as well
+        var records = exported.get(0);
+        assertEquals(3, records.size());
+        assertEquals(3L, records.get(2).getAttributes().get(BackgroundLogExporter.LOGS_DROPPED));
+
+        exporter.add(5, Severity.INFO, "message 5", Attributes.empty());
+        exporter.flush();
+        assertTrue(metrics.scrape().contains("meteodata_logs_dropped_total{tenant=\"tenant\"} 3"), metrics::scrape);
+    }
+
+    @Test
+    void closeWaitsForExportsInFlight() {
+        var sinks = new CopyOnWriteArrayList<Sinks.Empty<Void>>();
+        var exporter = exporter(logs -> {
+            var sink = Sinks.<Void>empty();
+            sinks.add(sink);
+            return sink.asMono();
+        });
+
+        exporter.add(0, Severity.INFO, "background", Attributes.empty());
+        var background = exporter.flush();
+        exporter.add(1, Severity.INFO, "last", Attributes.empty());
+        var closed = exporter.close();
+        assertEquals(2, sinks.size());
+
+        sinks.get(1).tryEmitEmpty();
+        assertFalse(closed.isDone());
+
+        sinks.get(0).tryEmitEmpty();
+        assertTrue(background.isSuccess());
+        assertTrue(closed.isSuccess());
+        assertSame(closed, exporter.close());
+        assertEquals(2, exporter.getExportedRecordCount());
+    }
+
+    @Test
+    void failedExportInFlightFailsClose() {
+        var sinks = new CopyOnWriteArrayList<Sinks.Empty<Void>>();
+        var exporter = exporter(logs -> {
+            var sink = Sinks.<Void>empty();
+            sinks.add(sink);
+            return sink.asMono();
+        });
+
+        exporter.add(0, Severity.INFO, "background", Attributes.empty());
+        exporter.flush();
+        // nothing left to export by close
+        var closed = exporter.close();
+        assertEquals(1, sinks.size());
+        assertFalse(closed.isDone());
+
+        sinks.get(0).tryEmitError(new IllegalStateException("export not accepted"));
+        assertTrue(closed.isDone());
+        assertFalse(closed.isSuccess());
+    }
+
+    private BackgroundLogExporter exporter(LogRecordBuffer buffer) {
+        return exporter(logs -> Mono.fromRunnable(() -> exported.add(logs)), buffer);
+    }
+
+    private BackgroundLogExporter exporter(Function<List<LogRecordData>, Mono<Void>> export) {
+        return exporter(export, new LogRecordBuffer(16, LogRecordBuffer.OverflowPolicy.DROP_OLDEST, 0, 0));
+    }
+
+    private BackgroundLogExporter exporter(Function<List<LogRecordData>, Mono<Void>> export, LogRecordBuffer buffer) {
+        // scheduled flushes never run, exports are triggered by the test
+        return new BackgroundLogExporter(export, dropped -> metrics.logsDropped(context, dropped), buffer,
+                Resource.empty(), Duration.ZERO, Schedulers.fromExecutor(task -> {
+                }));
+    }
+}
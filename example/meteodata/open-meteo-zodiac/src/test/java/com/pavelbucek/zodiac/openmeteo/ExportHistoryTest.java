@@ -0,0 +1,125 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Recording, persisting and expiry of the {@link ExportHistory}.
+ */
+class ExportHistoryTest {
+
+    private static final TenantKey TENANT_A = new TenantKey("tenant-a", "principal-a", "SERVICE");
+    private static final TenantKey TENANT_B = new TenantKey("tenant-b", null, null);
+    private static final Duration MAX_WINDOW = Duration.ofHours(24);
+    private static final long INTERVAL = WeatherGap.INTERVAL_NANOS;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void gapIsBackfilledAfterRestart() {
+        var now = alignedNow();
+        var history = new ExportHistory(directory.toString(), MAX_WINDOW);
+        var location = location("prague");
+        location.markExported(now - 8 * INTERVAL);
+        history.record(TENANT_A, List.of(location));
+        history.close();
+
+        // restarted service tracks the location from scratch
+        var restarted = new ExportHistory(directory.toString(), MAX_WINDOW);
+        var tracked = location("prague");
+        assertEquals(now - 8 * INTERVAL, restarted.lastExported(TENANT_A, tracked));
+
+        var gap = WeatherGap.of(restarted.lastExported(TENANT_A, tracked), now, MAX_WINDOW);
+        assertEquals(now - 7 * INTERVAL, gap.startEpochNanos());
+        assertEquals(now - INTERVAL, gap.endEpochNanos());
+        assertEquals(7, gap.points());
+    }
+
+    @Test
+    void locationsAreRecordedPerTenant() {
+        var now = alignedNow();
+        var history = new ExportHistory(directory.toString(), MAX_WINDOW);
+        var prague = location("prague");
+        prague.markExported(now - INTERVAL);
+        var brno = location("brno");
+        brno.markExported(now - 2 * INTERVAL);
+        history.record(TENANT_A, List.of(prague, location("never-exported")));
+        history.record(TENANT_B, List.of(brno));
+        history.close();
+
+        var restarted = new ExportHistory(directory.toString(), MAX_WINDOW);
+        assertEquals(2, restarted.size());
+        assertEquals(now - INTERVAL, restarted.lastExported(TENANT_A, location("prague")));
+        assertEquals(now - 2 * INTERVAL, restarted.lastExported(TENANT_B, location("brno")));
+        assertEquals(0, restarted.lastExported(TENANT_B, location("prague")));
+        assertEquals(0, restarted.lastExported(TENANT_A, location("never-exported")));
+    }
+
+    @Test
+    void newerExportOfTrackedLocationWins() {
+        var now = alignedNow();
+        var history = new ExportHistory(directory.toString(), MAX_WINDOW);
+        var location = location("prague");
+        location.markExported(now - 4 * INTERVAL);
+        history.record(TENANT_A, List.of(location));
+
+        var tracked = location("prague");
+        tracked.markExported(now - INTERVAL);
+        assertEquals(now - INTERVAL, history.lastExported(TENANT_A, tracked));
+    }
+
+    @Test
+    void expiredTimestampsAreNotKept() {
+        var now = alignedNow();
+        var history = new ExportHistory(directory.toString(), Duration.ofHours(1));
+        var expired = location("prague");
+        expired.markExported(now - Duration.ofHours(2).toNanos());
+        var recent = location("brno");
+        recent.markExported(now - INTERVAL);
+        history.record(TENANT_A, List.of(expired, recent));
+        history.close();
+
+        var restarted = new ExportHistory(directory.toString(), Duration.ofHours(1));
+        assertEquals(1, restarted.size());
+        assertEquals(0, restarted.lastExported(TENANT_A, location("prague")));
+    }
+
+    @Test
+    void inMemoryWithoutDirectory() throws Exception {
+        var history = new ExportHistory("", MAX_WINDOW);
+        var location = location("prague");
+        location.markExported(alignedNow());
+        history.record(TENANT_A, List.of(location));
+        history.close();
+
+        assertEquals(1, history.size());
+        try (var files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void corruptedFileIsIgnored() throws Exception {
+        Files.write(directory.resolve("export-history.bin"), new byte[] {0, 0, 0, 1, 0, 0});
+
+        var history = new ExportHistory(directory.toString(), MAX_WINDOW);
+        assertEquals(0, history.size());
+    }
+
+    private static TrackedLocation location(String name) {
+        return new TrackedLocation(new Location(name, 50.08, 14.42));
+    }
+
+    private static long alignedNow() {
+        return Math.floorDiv(System.currentTimeMillis() * 1_000_000L, INTERVAL) * INTERVAL;
+    }
+}
@@ -0,0 +1,95 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.core.convert.ConversionService;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.simple.SimpleHttpHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tenants of the bulk request allowed by {@link MeteoZodiacFunction#isBulkTenantAllowed} and limits of the location
+ * pagination.
+ */
+class MeteoZodiacFunctionTest {
+
+    private static final HttpHeaders CALLER = headers("tenant-a", "meteodata", "SOLUTION");
+
+    @Test
+    void callerTenantIsAllowed() {
+        assertTrue(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, headers("tenant-a", "meteodata", "SOLUTION"),
+                List.of()));
+    }
+
+    @Test
+    void otherTenantIsAllowedOnlyWhenListed() {
+        var tenant = headers("tenant-b", "meteodata", "SOLUTION");
+
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, tenant, List.of()));
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, tenant, List.of("tenant-c", "")));
+        assertTrue(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, tenant, List.of("tenant-c", "tenant-b")));
+    }
+
+    @Test
+    void tenantWithOtherPrincipalIsNotAllowed() {
+        var allowed = List.of("tenant-a", "tenant-b");
+
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, headers("tenant-a", "other", "SOLUTION"),
+                allowed));
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, headers("tenant-b", "meteodata", "USER"),
+                allowed));
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, headers("tenant-b", null, null), allowed));
+    }
+
+    @Test
+    void callerWithoutIdentityIsNotTrusted() {
+        var caller = new SimpleHttpHeaders(Map.of(), ConversionService.SHARED);
+
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(caller, headers("tenant-a", null, null),
+                List.of("tenant-a")));
+    }
+
+    @Test
+    void tenantWithoutLayerIdIsNotAllowed() {
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, headers(null, "meteodata", "SOLUTION"),
+                List.of("")));
+        assertFalse(MeteoZodiacFunction.isBulkTenantAllowed(CALLER, headers("", "meteodata", "SOLUTION"),
+                List.of("")));
+    }
+
+    @Test
+    void locationPagesOverrunPlannedCountByOne() {
+        assertTrue(MeteoZodiacFunction.isLocationPageAllowed(2, 3));
+        assertTrue(MeteoZodiacFunction.isLocationPageAllowed(3, 3));
+        assertFalse(MeteoZodiacFunction.isLocationPageAllowed(4, 3));
+    }
+
+    @Test
+    void skippedLocationPagesFollowLastTotal() {
+        // planned 3 pages of 100, 4 were read and the last one reports 650 locations
+        assertEquals(3, MeteoZodiacFunction.skippedLocationPages(4, 650, 100));
+        // total didn't grow, but the cursor is still there
+        assertEquals(1, MeteoZodiacFunction.skippedLocationPages(4, 300, 100));
+    }
+
+    private static HttpHeaders headers(String layerId, String principalId, String principalType) {
+        var headers = new HashMap<String, String>();
+        headers.put("layer-type", "TENANT");
+        if (layerId != null) {
+            headers.put("layer-id", layerId);
+        }
+        if (principalId != null) {
+            headers.put("appd-cpid", principalId);
+        }
+        if (principalType != null) {
+            headers.put("appd-cpty", principalType);
+        }
+        return new SimpleHttpHeaders(headers, ConversionService.SHARED);
+    }
+}
@@ -0,0 +1,221 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Appending, replaying and recovery of the {@link MetricSpool}.
+ */
+class MetricSpoolTest {
+
+    // two records of PAYLOAD_SIZE fit into a segment, the third one doesn't
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int PAYLOAD_SIZE = 1500;
+
+    private static final TenantKey TENANT_A = new TenantKey("tenant-a", "principal-a", "SERVICE");
+    private static final TenantKey TENANT_B = new TenantKey("tenant-b", "principal-b", "SERVICE");
+
+    @TempDir
+    Path directory;
+
+    private final PipelineMetrics metrics = new PipelineMetrics("", Duration.ofMinutes(1));
+    private final List<MetricSpool> spools = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        spools.forEach(MetricSpool::close);
+        metrics.close();
+    }
+
+    @Test
+    void disabledWithoutDirectory() {
+        var spool = new MetricSpool("", SEGMENT_SIZE, 4 * SEGMENT_SIZE, SEGMENT_SIZE, Duration.ofHours(1), metrics);
+
+        assertFalse(spool.isEnabled());
+        assertFalse(spool.append(TENANT_A, request(1)));
+        assertEquals(List.of(), spool.claim(TENANT_A, 10));
+    }
+
+    @Test
+    void pendingRecordsAreRecovered() {
+        var spool = spool(4 * SEGMENT_SIZE, Duration.ofHours(1));
+        assertTrue(spool.append(TENANT_A, request(1)));
+        assertTrue(spool.append(TENANT_B, request(2)));
+        assertTrue(spool.append(TENANT_A, request(3)));
+        var spooledAt = spool.claim(TENANT_A, 10).get(0).getSpooledAt();
+        spool.close();
+
+        var recovered = spool(4 * SEGMENT_SIZE, Duration.ofHours(1));
+        var records = recovered.claim(TENANT_A, 10);
+        assertEquals(2, records.size());
+        assertRequest(1, records.get(0));
+        assertRequest(3, records.get(1));
+        assertEquals(spooledAt, records.get(0).getSpooledAt());
+
+        records = recovered.claim(TENANT_B, 10);
+        assertEquals(1, records.size());
+        assertRequest(2, records.get(0));
+    }
+
+    @Test
+    void completedRecordsAreNotRecovered() {
+        var spool = spool(4 * SEGMENT_SIZE, Duration.ofHours(1));
+        spool.append(TENANT_A, request(1));
+        spool.append(TENANT_A, request(2));
+        spool.append(TENANT_A, request(3));
+
+        var records = spool.claim(TENANT_A, 2);
+        assertEquals(2, records.size());
+        spool.done(records.get(0));
+        spool.reject(records.get(1));
+        spool.release(TENANT_A);
+        spool.close();
+
+        records = spool(4 * SEGMENT_SIZE, Duration.ofHours(1)).claim(TENANT_A, 10);
+        assertEquals(1, records.size());
+        assertRequest(3, records.get(0));
+    }
+
+    @Test
+    void segmentIsDeletedOnceAllItsRecordsAreCompleted() throws IOException {
+        var spool = spool(4 * SEGMENT_SIZE, Duration.ofHours(1));
+        spool.append(TENANT_A, request(1));
+        spool.append(TENANT_B, request(2));
+        // starts the second segment
+        spool.append(TENANT_A, request(3));
+        assertEquals(2, segmentFiles());
+
+        var records = spool.claim(TENANT_A, 10);
+        spool.done(records.get(0));
+        spool.release(TENANT_A);
+        assertEquals(2, segmentFiles());
+
+        records = spool.claim(TENANT_B, 10);
+        spool.reject(records.get(0));
+        spool.release(TENANT_B);
+        assertEquals(1, segmentFiles());
+        assertTrue(metrics.scrape().contains("reason=\"rejected\""), metrics::scrape);
+
+        // the active segment is kept, even when it has no pending records
+        records = spool.claim(TENANT_A, 10);
+        spool.done(records.get(0));
+        spool.release(TENANT_A);
+        assertEquals(1, segmentFiles());
+        assertEquals(List.of(), spool.claim(TENANT_A, 10));
+    }
+
+    @Test
+    void oldestSegmentIsDroppedWhenFull() throws IOException {
+        // two segments at most
+        var spool = spool(2 * SEGMENT_SIZE, Duration.ofHours(1));
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(spool.append(i % 2 == 0 ? TENANT_B : TENANT_A, request(i)));
+        }
+        assertEquals(2, segmentFiles());
+
+        var records = spool.claim(TENANT_A, 10);
+        assertEquals(2, records.size());
+        assertRequest(3, records.get(0));
+        assertRequest(5, records.get(1));
+        records = spool.claim(TENANT_B, 10);
+        assertEquals(2, records.size());
+        assertRequest(4, records.get(0));
+        assertRequest(6, records.get(1));
+        assertTrue(metrics.scrape().contains("reason=\"full\""), metrics::scrape);
+    }
+
+    @Test
+    void expiredRecordsAreDroppedOnClaim() throws InterruptedException {
+        var spool = spool(4 * SEGMENT_SIZE, Duration.ofMillis(50));
+        spool.append(TENANT_A, request(1));
+        spool.append(TENANT_A, request(2));
+        Thread.sleep(100);
+        spool.append(TENANT_A, request(3));
+
+        var records = spool.claim(TENANT_A, 10);
+        assertEquals(1, records.size());
+        assertRequest(3, records.get(0));
+        assertTrue(metrics.scrape().contains("reason=\"expired\""), metrics::scrape);
+    }
+
+    @Test
+    void tenantIsReplayedBySingleRun() {
+        var spool = spool(4 * SEGMENT_SIZE, Duration.ofHours(1));
+        spool.append(TENANT_A, request(1));
+        spool.append(TENANT_A, request(2));
+
+        var records = spool.claim(TENANT_A, 1);
+        assertEquals(1, records.size());
+        assertEquals(List.of(), spool.claim(TENANT_A, 1));
+
+        // unfinished record stays pending
+        spool.release(TENANT_A);
+        records = spool.claim(TENANT_A, 10);
+        assertEquals(2, records.size());
+        assertRequest(1, records.get(0));
+    }
+
+    @Test
+    void tenantAndRecordSizeAreLimited() {
+        // a single record fits into the limit of the tenant
+        var spool = new MetricSpool(directory.toString(), SEGMENT_SIZE, 4 * SEGMENT_SIZE, 2 * PAYLOAD_SIZE,
+                Duration.ofHours(1), metrics);
+        spools.add(spool);
+
+        assertTrue(spool.append(TENANT_A, request(1)));
+        assertFalse(spool.append(TENANT_A, request(2)));
+        assertTrue(spool.append(TENANT_B, request(3)));
+        assertFalse(spool.append(TENANT_A, new EncodedMetrics(Unpooled.wrappedBuffer(new byte[SEGMENT_SIZE]), 1)));
+        assertTrue(metrics.scrape().contains("reason=\"tenant-full\""), metrics::scrape);
+        assertTrue(metrics.scrape().contains("reason=\"too-large\""), metrics::scrape);
+    }
+
+    private MetricSpool spool(long maxSize, Duration maxAge) {
+        var spool = new MetricSpool(directory.toString(), SEGMENT_SIZE, maxSize, maxSize, maxAge, metrics);
+        spools.add(spool);
+        return spool;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    // request of PAYLOAD_SIZE bytes, filled with the given number, with the number of points
+    private static EncodedMetrics request(int number) {
+        return new EncodedMetrics(Unpooled.wrappedBuffer(payload(number)), number);
+    }
+
+    private static byte[] payload(int number) {
+        var payload = new byte[PAYLOAD_SIZE];
+        Arrays.fill(payload, (byte) number);
+        return payload;
+    }
+
+    private static void assertRequest(int number, MetricSpool.Record record) {
+        var request = record.request();
+        assertEquals(number, request.getPointCount());
+
+        var bytes = ByteBuffer.allocate(request.getBinarySerializedSize());
+        request.copyTo(bytes);
+        assertArrayEquals(payload(number), bytes.array());
+    }
+}
@@ -0,0 +1,241 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.core.convert.ConversionService;
+import io.micronaut.http.simple.SimpleHttpHeaders;
+import io.opentelemetry.exporter.internal.grpc.GrpcResponse;
+import io.opentelemetry.exporter.internal.grpc.GrpcSender;
+import io.opentelemetry.exporter.internal.marshal.Marshaler;
+import io.opentelemetry.exporter.internal.otlp.logs.LogsRequestMarshaler;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Slots, retries and deadline of {@link OtlpDispatcher}, failures reported by {@link OtlpGrpcSender}.
+ */
+class OtlpDispatcherTest {
+
+    private static final Marshaler REQUEST = LogsRequestMarshaler.create(List.of());
+    private static final GrpcResponse UNAVAILABLE = GrpcResponse.create(14, "unavailable");
+    private static final GrpcResponse INVALID_ARGUMENT = GrpcResponse.create(3, "invalid argument");
+
+    private final PipelineMetrics metrics = new PipelineMetrics("", Duration.ofMinutes(1));
+    private final MeteoContext context = new MeteoContext(new SimpleHttpHeaders(Map.of("layer-id", "tenant"),
+            ConversionService.SHARED));
+
+    @AfterEach
+    void close() {
+        metrics.close();
+    }
+
+    @Test
+    void cancelledWaiterDoesNotLeakSlot() {
+        var limit = new OtlpDispatcher.InFlightLimit(1);
+        var first = limit.acquire().block();
+        var waiter = limit.acquire().subscribe();
+        assertEquals(1, limit.inFlight());
+        assertEquals(1, limit.waiting());
+
+        waiter.dispose();
+        assertEquals(0, limit.waiting());
+
+        first.release();
+        assertEquals(0, limit.inFlight());
+
+        limit.acquire().block(Duration.ofSeconds(1)).release();
+        assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    void slotIsReleasedOnce() {
+        var limit = new OtlpDispatcher.InFlightLimit(2);
+        var first = limit.acquire().block();
+        limit.acquire().block();
+
+        first.release();
+        first.release();
+        assertEquals(1, limit.inFlight());
+    }
+
+    @Test
+    void slotHandedOverToWaiter() {
+        var limit = new OtlpDispatcher.InFlightLimit(1);
+        var first = limit.acquire().block();
+        var granted = new AtomicInteger();
+        limit.acquire().subscribe(slot -> granted.incrementAndGet());
+
+        first.release();
+        assertEquals(1, granted.get());
+        assertEquals(1, limit.inFlight());
+        assertEquals(0, limit.waiting());
+    }
+
+    @Test
+    void cancelledAttemptsDoNotLeakSlots() throws InterruptedException {
+        var limit = new OtlpDispatcher.InFlightLimit(2);
+        var done = new AtomicInteger();
+        var attempts = new ArrayList<Disposable>();
+
+        // attempts are cancelled at random points - while waiting for a slot, while it's handed over, or in flight
+        for (int i = 0; i < 20_000; i++) {
+            attempts.add(Mono.usingWhen(
+                            limit.acquire(),
+                            slot -> Mono.delay(Duration.ofNanos(ThreadLocalRandom.current().nextInt(50_000))),
+                            slot -> Mono.fromRunnable(slot::release),
+                            (slot, error) -> Mono.fromRunnable(slot::release),
+                            slot -> Mono.fromRunnable(slot::release))
+                    .doFinally(signal -> done.incrementAndGet())
+                    .subscribeOn(Schedulers.parallel())
+                    .subscribe());
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                var attempt = attempts.get(Math.max(0, attempts.size() - 1 - ThreadLocalRandom.current().nextInt(8)));
+                Schedulers.parallel().schedule(attempt::dispose);
+            }
+        }
+
+        var deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (done.get() < attempts.size() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(attempts.size(), done.get());
+        assertEquals(0, limit.inFlight());
+        assertEquals(0, limit.waiting());
+    }
+
+    @Test
+    void cancelledExportReleasesSlot() {
+        var dispatcher = dispatcher(Duration.ofSeconds(10), 5, 1);
+        var pending = sender((onSuccess, onError) -> {
+        }, new AtomicInteger());
+
+        var inFlight = dispatcher.export(pending, REQUEST, OtlpDispatcher.SIGNAL_METRICS, context).subscribe();
+        var waiting = dispatcher.export(pending, REQUEST, OtlpDispatcher.SIGNAL_METRICS, context).subscribe();
+        waiting.dispose();
+        inFlight.dispose();
+
+        var sends = new AtomicInteger();
+        dispatcher.export(sender((onSuccess, onError) -> onSuccess.run(), sends), REQUEST,
+                OtlpDispatcher.SIGNAL_METRICS, context).block(Duration.ofSeconds(1));
+        assertEquals(1, sends.get());
+    }
+
+    @Test
+    void retryableFailureIsRetried() {
+        var dispatcher = dispatcher(Duration.ofSeconds(10), 5, 1);
+        var sends = new AtomicInteger();
+        var sender = sender((onSuccess, onError) -> {
+            if (sends.get() < 3) {
+                onError.accept(UNAVAILABLE, null);
+            } else {
+                onSuccess.run();
+            }
+        }, sends);
+
+        dispatcher.export(sender, REQUEST, OtlpDispatcher.SIGNAL_METRICS, context).block(Duration.ofSeconds(5));
+        assertEquals(3, sends.get());
+        assertTrue(metrics.scrape().contains("meteodata_export_retries_total{signal=\"metrics\",tenant=\"tenant\"} 2"),
+                metrics::scrape);
+    }
+
+    @Test
+    void nonRetryableFailureIsNotRetried() {
+        var dispatcher = dispatcher(Duration.ofSeconds(10), 5, 1);
+        var sends = new AtomicInteger();
+        var sender = sender((onSuccess, onError) -> onError.accept(INVALID_ARGUMENT, null), sends);
+
+        var exception = assertThrows(OtlpDispatcher.ExportException.class, () ->
+                dispatcher.export(sender, REQUEST, OtlpDispatcher.SIGNAL_METRICS, context).block());
+        assertEquals(1, sends.get());
+        assertEquals(3, exception.getGrpcStatus());
+        assertFalse(OtlpDispatcher.isTransient(exception));
+    }
+
+    @Test
+    void retryableStatusesMatchOtelExporters() {
+        // CANCELLED, DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED, ABORTED, OUT_OF_RANGE, UNAVAILABLE, DATA_LOSS
+        var retryable = List.of(1, 4, 8, 10, 11, 14, 15);
+        for (int status = 0; status <= 16; status++) {
+            assertEquals(retryable.contains(status), OtlpGrpcSender.isRetryable(status), "status " + status);
+        }
+        assertFalse(OtlpGrpcSender.isRetryable(OtlpGrpcSender.NO_STATUS));
+    }
+
+    @Test
+    void connectionFailureIsRetried() {
+        var dispatcher = dispatcher(Duration.ofSeconds(10), 3, 1);
+        var sends = new AtomicInteger();
+        var sender = sender((onSuccess, onError) -> onError.accept(null, new IOException("connection refused")),
+                sends);
+
+        var exception = assertThrows(OtlpDispatcher.ExportException.class, () ->
+                dispatcher.export(sender, REQUEST, OtlpDispatcher.SIGNAL_METRICS, context).block());
+        assertEquals(3, sends.get());
+        assertEquals(OtlpGrpcSender.NO_STATUS, exception.getGrpcStatus());
+        assertEquals("connection refused", exception.getMessage());
+        assertTrue(OtlpDispatcher.isTransient(exception));
+    }
+
+    @Test
+    void retryStopsAtDeadline() throws InterruptedException {
+        var dispatcher = dispatcher(Duration.ofMillis(300), 1_000, 1);
+        var sends = new AtomicInteger();
+        var sender = sender((onSuccess, onError) -> onError.accept(UNAVAILABLE, null), sends);
+
+        var startNanos = System.nanoTime();
+        var exception = assertThrows(RuntimeException.class, () ->
+                dispatcher.export(sender, REQUEST, OtlpDispatcher.SIGNAL_METRICS, context).block());
+        var elapsed = Duration.ofNanos(System.nanoTime() - startNanos);
+
+        assertInstanceOf(TimeoutException.class, exception.getCause());
+        assertTrue(OtlpDispatcher.isTransient(exception.getCause()));
+        assertTrue(elapsed.toMillis() < 1_000, elapsed::toString);
+        assertTrue(sends.get() > 1 && sends.get() < 1_000, sends::toString);
+
+        // no attempt after the deadline
+        var attempts = sends.get();
+        Thread.sleep(200);
+        assertEquals(attempts, sends.get());
+        assertTrue(metrics.scrape().contains("reason=\"deadline\""), metrics::scrape);
+    }
+
+    private OtlpDispatcher dispatcher(Duration deadline, int maxAttempts, int maxInFlight) {
+        return new OtlpDispatcher(metrics, deadline, maxAttempts, Duration.ofMillis(10), Duration.ofMillis(20),
+                maxInFlight);
+    }
+
+    // fake of the OTEL gRPC sender, wrapped by the adapter under test
+    private static OtlpGrpcSender sender(BiConsumer<Runnable, BiConsumer<GrpcResponse, Throwable>> response,
+                                         AtomicInteger sends) {
+        return new OtlpGrpcSender(new GrpcSender<>() {
+            @Override
+            public void send(Marshaler request, Runnable onSuccess, BiConsumer<GrpcResponse, Throwable> onError) {
+                sends.incrementAndGet();
+                response.accept(onSuccess, onError);
+            }
+
+            @Override
+            public CompletableResultCode shutdown() {
+                return CompletableResultCode.ofSuccess();
+            }
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import io.micronaut.core.convert.ConversionService;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.simple.SimpleHttpHeaders;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Exporters held by a run are not shut down by {@link OtlpExporterCache} eviction.
+ */
+class OtlpExporterCacheTest {
+
+    private static final HttpHeaders TENANT_A = headers("tenant-a");
+    private static final HttpHeaders TENANT_B = headers("tenant-b");
+
+    private final OtlpExporterCache cache = new OtlpExporterCache("localhost:4317", 1, Duration.ZERO,
+            Duration.ofSeconds(1));
+
+    @AfterEach
+    void close() {
+        cache.close();
+    }
+
+    @Test
+    void evictedEntryIsKeptUntilReleased() {
+        var first = cache.acquire(TENANT_A);
+        var second = cache.acquire(TENANT_A);
+        var sender = first.metricExporter();
+
+        // evicts tenant-a by the size limit
+        cache.acquire(TENANT_B).release();
+        assertEquals(1, cache.getEvictionCount());
+
+        first.release();
+        assertSame(sender, second.metricExporter());
+        second.release();
+
+        // shut down with the last lease, the next run creates new exporter
+        var next = cache.acquire(TENANT_A);
+        assertNotSame(sender, next.metricExporter());
+        next.release();
+    }
+
+    @Test
+    void heldEntryIsNotEvictedAsIdle() {
+        var lease = cache.acquire(TENANT_A);
+        var sender = lease.logRecordExporter();
+
+        cache.evictIdle();
+        assertEquals(1, cache.size());
+        assertSame(sender, lease.logRecordExporter());
+
+        lease.release();
+        cache.evictIdle();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void releasedLeaseCannotExport() {
+        var lease = cache.acquire(TENANT_A);
+        lease.release();
+        lease.release();
+
+        assertThrows(IllegalStateException.class, lease::metricExporter);
+    }
+
+    private static HttpHeaders headers(String layerId) {
+        return new SimpleHttpHeaders(Map.of("layer-id", layerId, "layer-type", "TENANT", "appd-cpid", layerId,
+                "appd-cpty", "TENANT"), ConversionService.SHARED);
+    }
+}
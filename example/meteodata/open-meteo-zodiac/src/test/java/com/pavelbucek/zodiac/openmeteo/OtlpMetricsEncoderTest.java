@@ -0,0 +1,223 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+import io.netty.buffer.ByteBufAllocator;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.exporter.internal.otlp.metrics.MetricsRequestMarshaler;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.metrics.data.DoublePointData;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.data.MetricDataType;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableDoublePointData;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableGaugeData;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableLongPointData;
+import io.opentelemetry.sdk.metrics.internal.data.ImmutableMetricData;
+import io.opentelemetry.sdk.resources.Resource;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link OtlpMetricsEncoder} must produce the same bytes as the OTEL SDK marshaler of the equivalent
+ * {@link MetricData}, where missing values are simply not reported. Both the encoder and {@link EncodedMetrics}
+ * depend on the OTEL exporter internals, this is the check to run when {@code otelVersion} is bumped.
+ */
+class OtlpMetricsEncoderTest {
+
+    private static final InstrumentationScopeInfo SCOPE = InstrumentationScopeInfo.create("meteodata");
+
+    private static final String CURRENT = """
+            [{"latitude":50.08,"longitude":14.42,"elevation":219.0,"current":{"time":"2024-01-01T10:00",
+            "interval":900,"temperature_2m":-1.5,"is_day":1,"weather_code":3,"cloud_cover":100,"rain":0.0}},
+            {"latitude":37.34,"longitude":-121.89,"elevation":26.0,"current":{"time":"2024-01-01T10:00",
+            "interval":900,"temperature_2m":12.25,"is_day":null,"weather_code":null,"cloud_cover":5,"rain":null}}]
+            """;
+
+    private static final String SERIES = """
+            {"latitude":35.68,"longitude":139.69,"elevation":40.0,"minutely_15":{
+            "time":["2024-01-01T09:00","2024-01-01T09:15","2024-01-01T09:30","2024-01-01T09:45"],
+            "temperature_2m":[1.0,null,3.5,4.0],"weather_code":[null,2,null,61],"wind_speed_10m":[null,null,null,null],
+            "is_day":[0,0,1,1]}}
+            """;
+
+    @Test
+    void currentWeatherMatchesSdkMarshaler() throws IOException {
+        var batch = decode(CURRENT, 1, false);
+        var locations = locations(batch);
+        var weather = rows(batch);
+
+        assertEncodedAsSdk(locations, weather, WeatherVariables.ALL);
+        assertEncodedAsSdk(locations, weather, WeatherVariables.of(List.of("temperature_2m", "weather_code")));
+    }
+
+    @Test
+    void missingValuesAreNotEncoded() throws IOException {
+        var batch = decode(CURRENT, 1, false);
+        var encoded = encode(locations(batch).subList(1, 2), rows(batch).subList(1, 2), WeatherVariables.ALL);
+
+        // temperature_2m and cloud_cover of the second location, nothing else is reported
+        assertEquals(2, encoded.getPointCount());
+        var text = new String(bytes(encoded), StandardCharsets.ISO_8859_1);
+        assertTrue(text.contains("temperature_2m"));
+        assertTrue(text.contains("cloud_cover"));
+        assertFalse(text.contains("weather_code"));
+        assertFalse(text.contains("is_day"));
+        encoded.release();
+    }
+
+    @Test
+    void seriesWithGapsMatchesSdkMarshaler() throws IOException {
+        var batch = decode(SERIES, 4, false);
+        assertEncodedAsSdk(locations(batch), rows(batch), WeatherVariables.ALL);
+    }
+
+    @Test
+    void forecastMatchesSdkMarshaler() throws IOException {
+        var batch = decode(SERIES.replace("minutely_15", "hourly"), 4, true);
+        assertEncodedAsSdk(locations(batch), rows(batch), WeatherVariables.ALL);
+    }
+
+    @Test
+    void locationWithoutValuesIsNotEncoded() throws IOException {
+        var batch = decode(CURRENT, 1, false);
+        var encoded = encode(locations(batch).subList(1, 2), rows(batch).subList(1, 2),
+                WeatherVariables.of(List.of("is_day", "weather_code")));
+
+        assertEquals(0, encoded.getPointCount());
+        assertEquals(0, encoded.getBinarySerializedSize());
+        encoded.release();
+    }
+
+    @Test
+    void chunksMatchEncodedSize() throws IOException {
+        var batch = decode(CURRENT, 1, false);
+        var locations = locations(batch);
+        var weather = rows(batch);
+        var whole = encode(locations, weather, WeatherVariables.ALL);
+        var first = encode(locations.subList(0, 1), weather.subList(0, 1), WeatherVariables.ALL);
+
+        // the first location fits exactly, the second one doesn't
+        var chunks = OtlpMetricsEncoder.chunks(locations, weather, WeatherVariables.ALL,
+                first.getBinarySerializedSize(), 0);
+        assertEquals(List.of(new OtlpMetricsEncoder.Chunk(0, 1), new OtlpMetricsEncoder.Chunk(1, 2)), chunks);
+
+        chunks = OtlpMetricsEncoder.chunks(locations, weather, WeatherVariables.ALL, 0, whole.getPointCount());
+        assertEquals(List.of(new OtlpMetricsEncoder.Chunk(0, 2)), chunks);
+
+        whole.release();
+        first.release();
+    }
+
+    // requests are concatenations of their resource_metrics, so the whole request is compared with the SDK encoding
+    // of one location at a time (the SDK groups resources in a hash map, the order of locations is not kept)
+    private static void assertEncodedAsSdk(List<TrackedLocation> locations, List<WeatherBatch.Row> weather,
+                                           WeatherVariables variables) throws IOException {
+        var expected = new ByteArrayOutputStream();
+        var expectedPoints = 0;
+        for (int i = 0; i < locations.size(); i++) {
+            var metricData = metricData(locations.get(i), weather.get(i), variables);
+            expectedPoints += metricData.stream().mapToInt(data -> data.getData().getPoints().size()).sum();
+            MetricsRequestMarshaler.create(metricData).writeBinaryTo(expected);
+        }
+
+        var encoded = encode(locations, weather, variables);
+        try {
+            assertArrayEquals(expected.toByteArray(), bytes(encoded));
+            assertEquals(expectedPoints, encoded.getPointCount());
+
+            // the way the gRPC sender writes the request, through the Serializer of the pinned OTEL version
+            var written = new ByteArrayOutputStream();
+            encoded.writeBinaryTo(written);
+            assertArrayEquals(expected.toByteArray(), written.toByteArray());
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private static List<MetricData> metricData(TrackedLocation trackedLocation, WeatherBatch.Row row,
+                                               WeatherVariables variables) {
+        var location = trackedLocation.getLocation();
+        var resource = Resource.create(Attributes.builder()
+                .put("location.elevation", row.elevation())
+                .put("location.latitude", location.getLatitude())
+                .put("location.longitude", location.getLongitude())
+                .put("location.name", location.getName())
+                .put("telemetry.sdk.name", "SOLUTION_PREFIX")
+                .build());
+        var forecast = row.batch().isForecast();
+
+        var metricData = new ArrayList<MetricData>();
+        for (var metric : variables.metrics()) {
+            var name = forecast ? metric.getForecastName() : metric.getName();
+            var longPoints = new ArrayList<LongPointData>();
+            var doublePoints = new ArrayList<DoublePointData>();
+            for (int p = 0; p < row.points(); p++) {
+                var value = row.value(metric, p);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                var epochNanos = row.epochNanos(p);
+                var startEpochNanos = epochNanos - 60 * 1_000_000_000L;
+                if (metric.getType() == MetricDataType.LONG_GAUGE) {
+                    longPoints.add(ImmutableLongPointData.create(startEpochNanos, epochNanos, Attributes.empty(),
+                            (long) value));
+                } else {
+                    doublePoints.add(ImmutableDoublePointData.create(startEpochNanos, epochNanos, Attributes.empty(),
+                            value));
+                }
+            }
+            if (!longPoints.isEmpty()) {
+                metricData.add(ImmutableMetricData.createLongGauge(resource, SCOPE, name, "", metric.getUnit(),
+                        ImmutableGaugeData.create(longPoints)));
+            } else if (!doublePoints.isEmpty()) {
+                metricData.add(ImmutableMetricData.createDoubleGauge(resource, SCOPE, name, "", metric.getUnit(),
+                        ImmutableGaugeData.create(doublePoints)));
+            }
+        }
+        return metricData;
+    }
+
+    private static WeatherBatch decode(String json, int points, boolean forecast) throws IOException {
+        return new WeatherBatchDecoder(points, forecast, WeatherVariables.ALL)
+                .decode(json.getBytes(StandardCharsets.UTF_8), 2);
+    }
+
+    private static EncodedMetrics encode(List<TrackedLocation> locations, List<WeatherBatch.Row> weather,
+                                         WeatherVariables variables) {
+        return OtlpMetricsEncoder.encode(ByteBufAllocator.DEFAULT, locations, weather, variables);
+    }
+
+    private static byte[] bytes(EncodedMetrics encoded) {
+        var buffer = ByteBuffer.allocate(encoded.getBinarySerializedSize());
+        encoded.copyTo(buffer);
+        return buffer.array();
+    }
+
+    private static List<TrackedLocation> locations(WeatherBatch batch) {
+        var locations = new ArrayList<TrackedLocation>();
+        for (int i = 0; i < batch.size(); i++) {
+            locations.add(new TrackedLocation(
+                    new Location("location-" + i, batch.latitude(i), batch.longitude(i))));
+        }
+        return locations;
+    }
+
+    private static List<WeatherBatch.Row> rows(WeatherBatch batch) {
+        var rows = new ArrayList<WeatherBatch.Row>();
+        for (int i = 0; i < batch.size(); i++) {
+            rows.add(batch.row(i));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,155 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decoding of Open Meteo responses by {@link WeatherBatchDecoder}, including missing values and malformed input.
+ */
+class WeatherBatchDecoderTest {
+
+    private static final WeatherVariables VARIABLES = WeatherVariables.of(List.of("temperature_2m", "weather_code"));
+
+    @Test
+    void nullsAreDecodedAsMissingValues() throws IOException {
+        var batch = decode(1, """
+                [{"latitude":50.08,"longitude":14.42,"elevation":null,"current":{"time":"2024-01-01T10:00",
+                "temperature_2m":null,"weather_code":3}}]
+                """);
+
+        assertEquals(1, batch.size());
+        assertTrue(Double.isNaN(batch.elevation(0)));
+        assertTrue(Double.isNaN(batch.value(WeatherMetric.TEMPERATURE_2M, 0)));
+        assertEquals(3, batch.value(WeatherMetric.WEATHER_CODE, 0));
+    }
+
+    @Test
+    void nullsInSeriesAreDecodedAsMissingValues() throws IOException {
+        var batch = decode(3, """
+                {"latitude":50.08,"longitude":14.42,"minutely_15":{
+                "time":["2024-01-01T09:15","2024-01-01T09:30","2024-01-01T09:45"],
+                "temperature_2m":[null,-0.5,null],"weather_code":[null,null,null]}}
+                """);
+
+        assertTrue(Double.isNaN(batch.value(WeatherMetric.TEMPERATURE_2M, 0, 0)));
+        assertEquals(-0.5, batch.value(WeatherMetric.TEMPERATURE_2M, 0, 1));
+        assertTrue(Double.isNaN(batch.value(WeatherMetric.TEMPERATURE_2M, 0, 2)));
+        for (int point = 0; point < 3; point++) {
+            assertTrue(Double.isNaN(batch.value(WeatherMetric.WEATHER_CODE, 0, point)));
+        }
+    }
+
+    @Test
+    void unrequestedVariablesAreSkipped() throws IOException {
+        var batch = decode(1, """
+                {"latitude":50.08,"longitude":14.42,"current":{"time":"2024-01-01T10:00","temperature_2m":1.5,
+                "rain":[1,2,{"nested":true}],"weather_code":61},"daily":{"time":["2024-01-01"]}}
+                """);
+
+        assertEquals(1.5, batch.value(WeatherMetric.TEMPERATURE_2M, 0));
+        assertEquals(61, batch.value(WeatherMetric.WEATHER_CODE, 0));
+    }
+
+    @Test
+    void timeCountMismatchFails() {
+        var exception = assertThrows(IOException.class, () -> decode(3, """
+                {"minutely_15":{"time":["2024-01-01T09:15","2024-01-01T09:30"],"temperature_2m":[1.0,2.0]}}
+                """));
+        assertTrue(exception.getMessage().contains("Expected 3 points"), exception.getMessage());
+    }
+
+    @Test
+    void shorterValueSeriesFails() {
+        var exception = assertThrows(IOException.class, () -> decode(3, """
+                {"minutely_15":{"time":["2024-01-01T09:15","2024-01-01T09:30","2024-01-01T09:45"],
+                "temperature_2m":[1.0,2.0]}}
+                """));
+        assertTrue(exception.getMessage().contains("Expected 3 values of temperature_2m"), exception.getMessage());
+    }
+
+    @Test
+    void longerValueSeriesFails() {
+        var exception = assertThrows(IOException.class, () -> decode(2, """
+                {"hourly":{"time":["2024-01-01T09:00","2024-01-01T10:00"],"weather_code":[1,2,3]}}
+                """));
+        assertTrue(exception.getMessage().contains("Expected 2 values of weather_code"), exception.getMessage());
+    }
+
+    @Test
+    void valueSeriesOfUnrequestedVariableIsNotChecked() throws IOException {
+        var batch = decode(2, """
+                {"hourly":{"time":["2024-01-01T09:00","2024-01-01T10:00"],"rain":[1.0],"weather_code":[1,2]}}
+                """);
+
+        assertEquals(2, batch.value(WeatherMetric.WEATHER_CODE, 0, 1));
+    }
+
+    @Test
+    void malformedResponseFails() {
+        assertThrows(IOException.class, () -> decode(1, "\"error\""));
+        assertThrows(IOException.class, () -> decode(1, "[{\"current\":{\"temperature_2m\":1.5}}, 1]"));
+        assertThrows(IOException.class, () -> decode(1, "{\"current\":{\"temperature_2m\":1.5.2}}"));
+        assertThrows(IOException.class, () -> decode(1, "{\"current\":{\"temperature_2m\":-}}"));
+        assertThrows(IOException.class, () -> decode(2, """
+                {"minutely_15":{"time":["2024-01-01T09:15","2024-01-01T09:30"],"temperature_2m":[1.0,2.0
+                """));
+        assertThrows(IOException.class, () -> decode(2, """
+                {"minutely_15":{"time":["2024-01-01T09:15",null],"temperature_2m":[1.0,2.0]}}
+                """));
+    }
+
+    @Test
+    void decimalsWhichAreNotPlainAreDecodedByParser() throws IOException {
+        var batch = decode(4, """
+                {"minutely_15":{"time":["2024-01-01T09:00","2024-01-01T09:15","2024-01-01T09:30","2024-01-01T09:45"],
+                "temperature_2m":[1.5e2,-2.5E-1,1.2345678901234567,0.1000000000000000000001]}}
+                """);
+
+        assertEquals(150.0, batch.value(WeatherMetric.TEMPERATURE_2M, 0, 0));
+        assertEquals(-0.25, batch.value(WeatherMetric.TEMPERATURE_2M, 0, 1));
+        assertEquals(1.2345678901234567, batch.value(WeatherMetric.TEMPERATURE_2M, 0, 2));
+        assertEquals(0.1, batch.value(WeatherMetric.TEMPERATURE_2M, 0, 3));
+    }
+
+    @Test
+    void parseDecimalRejectsWhatIsNotPlainDecimal() {
+        for (var text : List.of("1e5", "1.5E-3", "1234567890.123456", "12", "1.2.3", "-", "")) {
+            assertTrue(Double.isNaN(parseDecimal(text)), text);
+        }
+    }
+
+    @Test
+    void parseDecimalMatchesParseDouble() {
+        for (var text : List.of("0.0", "-0.5", "12.25", "-121.89", "0.1", "1013.2", "0.000001", "00.10",
+                "123456789012.345")) {
+            assertEquals(Double.parseDouble(text), parseDecimal(text), text);
+        }
+
+        var random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            var text = new StringBuilder(random.nextBoolean() ? "-" : "").append(random.nextInt(100_000)).append('.');
+            for (int digits = 1 + random.nextInt(9); digits > 0; digits--) {
+                text.append((char) ('0' + random.nextInt(10)));
+            }
+            assertEquals(Double.parseDouble(text.toString()), parseDecimal(text.toString()), text::toString);
+        }
+    }
+
+    private static double parseDecimal(String text) {
+        // offset within a larger buffer, as the parser provides it
+        var chars = ("[" + text + "]").toCharArray();
+        return WeatherBatchDecoder.parseDecimal(chars, 1, text.length());
+    }
+
+    private static WeatherBatch decode(int points, String json) throws IOException {
+        return new WeatherBatchDecoder(points, false, VARIABLES).decode(json.getBytes(StandardCharsets.UTF_8), 1);
+    }
+}
@@ -0,0 +1,111 @@
+package com.pavelbucek.zodiac.openmeteo;
+
+import com.pavelbucek.zodiac.openmeteo.model.Location;
+import io.netty.buffer.ByteBufAllocator;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Missed intervals found by {@link WeatherGap} and export of the backfilled series.
+ */
+class WeatherGapTest {
+
+    private static final long CURRENT = epochNanos("2024-01-01T10:00");
+
+    @Test
+    void maxWindowWithoutPreviousExport() {
+        var gap = WeatherGap.of(0, CURRENT, Duration.ofHours(2));
+
+        assertEquals("2024-01-01T08:00", gap.startTime());
+        assertEquals("2024-01-01T09:45", gap.endTime());
+        assertEquals(8, gap.points());
+    }
+
+    @Test
+    void noGapAfterPreviousInterval() {
+        assertNull(WeatherGap.of(epochNanos("2024-01-01T09:45"), CURRENT, Duration.ofHours(24)));
+    }
+
+    @Test
+    void gapBetweenExportedIntervals() {
+        var gap = WeatherGap.of(epochNanos("2024-01-01T09:00"), CURRENT, Duration.ofHours(24));
+
+        assertEquals("2024-01-01T09:15", gap.startTime());
+        assertEquals("2024-01-01T09:45", gap.endTime());
+        assertEquals(3, gap.points());
+    }
+
+    @Test
+    void gapLimitedByMaxWindow() {
+        var gap = WeatherGap.of(epochNanos("2023-12-31T00:00"), CURRENT, Duration.ofHours(1));
+
+        assertEquals("2024-01-01T09:00", gap.startTime());
+        assertEquals("2024-01-01T09:45", gap.endTime());
+    }
+
+    @Test
+    void gapAlignedToInterval() {
+        var gap = WeatherGap.of(epochNanos("2024-01-01T08:07"), CURRENT, Duration.ofHours(24));
+
+        assertEquals("2024-01-01T08:30", gap.startTime());
+        assertEquals(6, gap.points());
+    }
+
+    @Test
+    void nullInBackfilledSeriesYieldsNoPoint() throws IOException {
+        var gap = WeatherGap.of(epochNanos("2024-01-01T09:00"), CURRENT, Duration.ofHours(24));
+        var variables = WeatherVariables.of(List.of("temperature_2m", "weather_code"));
+        var json = """
+                {"latitude":50.08,"longitude":14.42,"elevation":219.0,"minutely_15":{
+                "time":["2024-01-01T09:15","2024-01-01T09:30","2024-01-01T09:45"],
+                "temperature_2m":[1.5,null,2.5],"weather_code":[null,null,null]}}
+                """;
+        var batch = new WeatherBatchDecoder(gap.points(), false, variables)
+                .decode(json.getBytes(StandardCharsets.UTF_8), 1);
+
+        var encoded = OtlpMetricsEncoder.encode(ByteBufAllocator.DEFAULT,
+                List.of(new TrackedLocation(new Location("prague", 50.08, 14.42))), List.of(batch.row(0)), variables);
+        try {
+            assertEquals(2, encoded.getPointCount());
+
+            var bytes = ByteBuffer.allocate(encoded.getBinarySerializedSize());
+            encoded.copyTo(bytes);
+            var content = bytes.array();
+            assertTrue(containsTime(content, gap.startEpochNanos()));
+            assertFalse(containsTime(content, gap.startEpochNanos() + WeatherGap.INTERVAL_NANOS));
+            assertTrue(containsTime(content, gap.endEpochNanos()));
+            assertFalse(new String(content, StandardCharsets.ISO_8859_1).contains("weather_code"));
+        } finally {
+            encoded.release();
+        }
+    }
+
+    // time_unix_nano is a fixed64, little endian
+    private static boolean containsTime(byte[] content, long epochNanos) {
+        var time = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(epochNanos).array();
+        for (int i = 0; i + time.length <= content.length; i++) {
+            if (Arrays.equals(content, i, i + time.length, time, 0, time.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long epochNanos(String time) {
+        return LocalDateTime.parse(time).toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L;
+    }
+}